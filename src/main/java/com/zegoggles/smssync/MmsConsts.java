@@ -36,12 +36,20 @@ public interface MmsConsts {
 
     String THREAD_ID = "thread_id";
 
+    String SIZE = "m_size";
+
     String INSERT_ADDRESS_TOKEN = "insert-address-token";
 
     String TYPE = "m_type";
+    String MESSAGE_BOX = "msg_box";
 
     String DELIVERY_REPORT = "134"; // 0x86
 
+    /** the table holding the addresses of each message, with {@link #ADDR_MSG_ID} referencing {@link #ID} */
+    String ADDR_TABLE = "addr";
+    String ADDR_MSG_ID = "msg_id";
+    String ADDR_ADDRESS = "address";
+
     @SuppressWarnings("UnusedDeclaration")
     int MESSAGE_BOX_INBOX = 1;
     @SuppressWarnings("UnusedDeclaration")
@@ -23,6 +23,7 @@ import android.content.Context;
 import android.content.res.Resources;
 import android.database.Cursor;
 import android.provider.ContactsContract.CommonDataKinds.GroupMembership;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.provider.ContactsContract.Data;
 import android.provider.ContactsContract.Groups;
 import com.zegoggles.smssync.R;
@@ -58,9 +59,30 @@ public class ContactAccessorPost20 implements ContactAccessor {
             contactIds.add(c.getLong(0), c.getLong(1));
         }
         if (c != null) c.close();
+        if (!contactIds.isEmpty()) {
+            addNumbers(resolver, contactIds);
+        }
         return contactIds;
     }
 
+    private void addNumbers(ContentResolver resolver, ContactGroupIds contactIds) {
+        final StringBuilder ids = new StringBuilder();
+        for (long id : contactIds.getIds()) {
+            if (ids.length() > 0) ids.append(',');
+            ids.append(id);
+        }
+        Cursor c = resolver.query(
+                Data.CONTENT_URI,
+                new String[]{ Phone.NUMBER },
+                Phone.MIMETYPE + " = ? AND " + Phone.CONTACT_ID + " IN (" + ids + ")",
+                new String[]{ Phone.CONTENT_ITEM_TYPE },
+                null);
+        while (c != null && c.moveToNext()) {
+            contactIds.addNumber(c.getString(0));
+        }
+        if (c != null) c.close();
+    }
+
     public Map<Integer, Group> getGroups(ContentResolver resolver, Resources resources) {
         final Map<Integer, Group> map = new LinkedHashMap<Integer, Group>();
 
@@ -2,35 +2,120 @@ package com.zegoggles.smssync.contacts;
 
 import com.zegoggles.smssync.mail.PersonRecord;
 
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.Set;
 
+/**
+ * The contacts of a group, with their raw contact ids and phone numbers. Ids are kept in sorted
+ * primitive arrays, so lookups use a binary search and do not box.
+ */
 public class ContactGroupIds {
-    private final Set<Long> ids = new HashSet<Long>();
-    private final Set<Long> rawIds = new HashSet<Long>();
+    private long[] ids = new long[16];
+    private long[] rawIds = new long[16];
+    private int idCount, rawIdCount;
+    private final Set<String> numbers = new LinkedHashSet<String>();
 
     public void add(long id, long rawId) {
-        this.ids.add(id);
-        this.rawIds.add(rawId);
+        final long[] insertedId = insert(ids, idCount, id);
+        if (insertedId != null) {
+            ids = insertedId;
+            idCount++;
+        }
+        final long[] insertedRawId = insert(rawIds, rawIdCount, rawId);
+        if (insertedRawId != null) {
+            rawIds = insertedRawId;
+            rawIdCount++;
+        }
+    }
+
+    /**
+     * Adds a phone number of one of the contacts, used to filter messages in provider queries.
+     */
+    public void addNumber(String number) {
+        if (number != null && number.length() > 0) {
+            numbers.add(number);
+        }
     }
 
     public boolean contains(PersonRecord personRecord) {
-        return ids.contains(personRecord.getContactId());
+        return containsId(personRecord.getContactId());
     }
 
     public boolean isEmpty() {
-        return ids.isEmpty() && rawIds.isEmpty();
+        return idCount == 0 && rawIdCount == 0;
+    }
+
+    /**
+     * @return the sorted contact ids
+     */
+    public long[] getIds() {
+        return copy(ids, idCount);
     }
 
-    public Set<Long> getIds() {
-        return new HashSet<Long>(ids);
+    /**
+     * @return the sorted raw contact ids
+     */
+    public long[] getRawIds() {
+        return copy(rawIds, rawIdCount);
     }
 
-    public Set<Long> getRawIds() {
-        return new HashSet<Long>(rawIds);
+    public Set<String> getNumbers() {
+        return Collections.unmodifiableSet(numbers);
     }
 
     public String toString() {
-        return getClass().getSimpleName() + "[ids: " + ids + " rawIds: " + rawIds + "]";
+        return getClass().getSimpleName() + "[ids: " + Arrays.toString(getIds()) +
+                " rawIds: " + Arrays.toString(getRawIds()) +
+                " numbers: " + numbers.size() + "]";
+    }
+
+    private boolean containsId(long id) {
+        return binarySearch(ids, idCount, id) >= 0;
+    }
+
+    /**
+     * Inserts <code>value</code> into the first <code>size</code> sorted elements of <code>array</code>.
+     * @return the array containing the value, which might be a new one, or null if it was already present
+     */
+    private static long[] insert(long[] array, int size, long value) {
+        final int index = binarySearch(array, size, value);
+        if (index >= 0) return null;
+
+        final int insertAt = -(index + 1);
+        long[] target = array;
+        if (size == array.length) {
+            target = new long[array.length * 2];
+            System.arraycopy(array, 0, target, 0, insertAt);
+        }
+        System.arraycopy(array, insertAt, target, insertAt + 1, size - insertAt);
+        target[insertAt] = value;
+        return target;
+    }
+
+    /**
+     * Like {@link Arrays#binarySearch(long[], int, int, long)}, which needs API level 9.
+     */
+    private static int binarySearch(long[] array, int size, long value) {
+        int low = 0, high = size - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            if (array[mid] < value) {
+                low = mid + 1;
+            } else if (array[mid] > value) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    private static long[] copy(long[] array, int size) {
+        // Arrays.copyOf needs API level 9
+        final long[] copy = new long[size];
+        System.arraycopy(array, 0, copy, 0, size);
+        return copy;
     }
 }
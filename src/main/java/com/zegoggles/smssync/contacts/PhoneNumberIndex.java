@@ -0,0 +1,215 @@
+package com.zegoggles.smssync.contacts;
+
+import java.util.Arrays;
+
+/**
+ * Maps phone numbers to ids, matching numbers loosely like {@link android.telephony.PhoneNumberUtils#compare}:
+ * <ul>
+ *     <li>numbers with at least {@link #MIN_MATCH} equal trailing digits match if one is a suffix of the other,
+ *     or if the rest is an international prefix (<code>+</code>, <code>00</code>, <code>011</code>) on both sides,
+ *     or a trunk prefix (<code>0</code>) on one side and an international prefix with country code on the other
+ *     (<code>07700 900123</code> and <code>+44 7700 900123</code>)</li>
+ *     <li>shorter numbers only match if all digits are equal</li>
+ * </ul>
+ * The digits of each number are packed into a long, 4 bits per digit starting with the last one, and kept in
+ * sorted primitive arrays. A lookup packs the number, binary searches for the last {@link #MIN_MATCH} digits
+ * and compares the candidates, in O(digits) time and without allocating.
+ * Numbers longer than {@link #MAX_DIGITS} digits are truncated at the front.
+ * The index is immutable and can be shared between threads.
+ */
+public class PhoneNumberIndex {
+    public static final long NOT_FOUND = -1;
+    static final int MIN_MATCH = 7;
+    static final int MAX_DIGITS = 15;
+
+    private static final long PLUS = 1L << 63;
+    private static final long DIGITS_MASK = ~(0xFL << 60);
+    private static final long KEY_MASK = (1L << (4 * MIN_MATCH)) - 1;
+
+    private final long[] keys;
+    private final long[] numbers;
+    private final long[] ids;
+
+    private PhoneNumberIndex(long[] keys, long[] numbers, long[] ids) {
+        this.keys = keys;
+        this.numbers = numbers;
+        this.ids = ids;
+    }
+
+    /**
+     * @return the id of the first number added which matches <code>number</code>, or {@link #NOT_FOUND}
+     */
+    public long lookup(CharSequence number) {
+        final long packed = pack(number);
+        if (length(packed) == 0) return NOT_FOUND;
+
+        final long key = packed & KEY_MASK;
+        int i = Arrays.binarySearch(keys, key);
+        if (i < 0) return NOT_FOUND;
+        while (i > 0 && keys[i - 1] == key) i--;
+
+        for (; i < keys.length && keys[i] == key; i++) {
+            if (matches(packed, numbers[i])) {
+                return ids[i];
+            }
+        }
+        return NOT_FOUND;
+    }
+
+    public int size() {
+        return keys.length;
+    }
+
+    public long getEstimatedBytes() {
+        return 3L * 8 * keys.length;
+    }
+
+    /**
+     * @return the digits of the number, packed starting with the last one, with the highest bit set
+     * if the number starts with <code>+</code>
+     */
+    static long pack(CharSequence number) {
+        if (number == null) return 0;
+        long packed = 0;
+        int digits = 0;
+        boolean plus = false;
+        for (int i = number.length() - 1; i >= 0; i--) {
+            final char c = number.charAt(i);
+            if (c >= '0' && c <= '9') {
+                if (digits < MAX_DIGITS) {
+                    packed |= (long) (c - '0' + 1) << (4 * digits++);
+                }
+            } else if (c == '+') {
+                plus = true;
+            }
+        }
+        return plus ? packed | PLUS : packed;
+    }
+
+    static boolean matches(long a, long b) {
+        final int lengthA = length(a), lengthB = length(b);
+        int matched = 0;
+        while (matched < lengthA && matched < lengthB && digit(a, matched) == digit(b, matched)) {
+            matched++;
+        }
+        // PhoneNumberUtils compares the + like a digit, it is left over once all digits of its number have matched
+        if (matched < MIN_MATCH) {
+            return lengthA == lengthB && matched == lengthA && (a & PLUS) == (b & PLUS);
+        } else if (matched == lengthA && matched < lengthB && (a & PLUS) != 0) {
+            return isIntlPrefix(b, matched);
+        } else if (matched == lengthB && matched < lengthA && (b & PLUS) != 0) {
+            return isIntlPrefix(a, matched);
+        } else if (matched == lengthA || matched == lengthB) {
+            return true;
+        } else {
+            return (isIntlPrefix(a, matched) && isIntlPrefix(b, matched)) ||
+                   (isTrunkPrefix(a, matched) && isIntlPrefixAndCountryCode(b, matched)) ||
+                   (isTrunkPrefix(b, matched) && isIntlPrefixAndCountryCode(a, matched));
+        }
+    }
+
+    private static int length(long packed) {
+        int length = 0;
+        while (length < MAX_DIGITS && digit(packed, length) >= 0) length++;
+        return length;
+    }
+
+    /**
+     * @return the digit at <code>position</code>, counted from the end, or -1
+     */
+    private static int digit(long packed, int position) {
+        return (int) (((packed & DIGITS_MASK) >>> (4 * position)) & 0xF) - 1;
+    }
+
+    /**
+     * @return the length of the international prefix at the start of the number if the number
+     * starts with one and the prefix ends before <code>end</code>, otherwise -1
+     */
+    private static int intlPrefixLength(long packed, int end) {
+        if ((packed & PLUS) != 0) return 0;
+        final int length = length(packed);
+        if (length - end >= 2 && digit(packed, length - 1) == 0 && digit(packed, length - 2) == 0) {
+            return 2;
+        } else if (length - end >= 3 && digit(packed, length - 1) == 0 &&
+                   digit(packed, length - 2) == 1 && digit(packed, length - 3) == 1) {
+            return 3;
+        } else {
+            return -1;
+        }
+    }
+
+    /**
+     * @return true if the digits before position <code>end</code> are an international prefix
+     */
+    private static boolean isIntlPrefix(long packed, int end) {
+        return intlPrefixLength(packed, end) == length(packed) - end;
+    }
+
+    /**
+     * @return true if the digits before position <code>end</code> are an international prefix followed
+     * by a country code of 1-3 digits
+     */
+    private static boolean isIntlPrefixAndCountryCode(long packed, int end) {
+        final int prefix = intlPrefixLength(packed, end);
+        if (prefix < 0) return false;
+        final int countryCode = length(packed) - end - prefix;
+        return countryCode >= 1 && countryCode <= 3;
+    }
+
+    /**
+     * @return true if the digits before position <code>end</code> are a single 0
+     */
+    private static boolean isTrunkPrefix(long packed, int end) {
+        return length(packed) - end == 1 && digit(packed, end) == 0 && (packed & PLUS) == 0;
+    }
+
+    public static class Builder {
+        private long[] numbers = new long[64];
+        private long[] ids = new long[64];
+        private int size;
+
+        /**
+         * Adds a number, numbers without digits are ignored.
+         */
+        public Builder add(CharSequence number, long id) {
+            final long packed = pack(number);
+            if (length(packed) == 0) return this;
+
+            if (size == numbers.length) {
+                numbers = grow(numbers);
+                ids = grow(ids);
+            }
+            numbers[size] = packed;
+            ids[size] = id;
+            size++;
+            return this;
+        }
+
+        private static long[] grow(long[] array) {
+            // Arrays.copyOf needs API level 9
+            final long[] grown = new long[array.length * 2];
+            System.arraycopy(array, 0, grown, 0, array.length);
+            return grown;
+        }
+
+        public PhoneNumberIndex build() {
+            // sort by key, keeping the order numbers were added in for equal keys
+            final long[] order = new long[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = ((numbers[i] & KEY_MASK) << 32) | i;
+            }
+            Arrays.sort(order);
+
+            final long[] sortedKeys = new long[size];
+            final long[] sortedNumbers = new long[size];
+            final long[] sortedIds = new long[size];
+            for (int i = 0; i < size; i++) {
+                final int index = (int) (order[i] & 0xFFFFFFFFL);
+                sortedKeys[i] = numbers[index] & KEY_MASK;
+                sortedNumbers[i] = numbers[index];
+                sortedIds[i] = ids[index];
+            }
+            return new PhoneNumberIndex(sortedKeys, sortedNumbers, sortedIds);
+        }
+    }
+}
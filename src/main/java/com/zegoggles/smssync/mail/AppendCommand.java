@@ -0,0 +1,248 @@
+package com.zegoggles.smssync.mail;
+
+import com.fsck.k9.mail.Flag;
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.MessagingException;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * An APPEND command uploading one or more messages (MULTIAPPEND, RFC 3502):
+ * <pre>
+ * tag APPEND mailbox (flags) {size1}
+ * literal1 (flags) {size2}
+ * literal2
+ * </pre>
+ * A synchronizing literal (<code>{size}</code>) is only sent after the server has asked for it with a
+ * continuation response. If the server supports non-synchronizing literals (LITERAL+ / LITERAL-, RFC 7888)
+ * literals up to the allowed size are announced as <code>{size+}</code> and sent right away,
+ * saving a round trip per message.
+ * With MULTIAPPEND the server either stores all messages or none of them.
+ * <p>
+ * Messages are not buffered: the size of each literal is computed up front with a {@link SizingOutputStream},
+ * which gets the size of base64 encoded attachments from the size of their content without reading it.
+ * The messages are then streamed to the server in a single pass. A {@link RawMessage} is already serialized
+ * with CRLF line endings, its size is known without writing it.
+ */
+class AppendCommand {
+    static final String MULTIAPPEND = "MULTIAPPEND";
+    static final String LITERAL_PLUS = "LITERAL+";
+    static final String LITERAL_MINUS = "LITERAL-";
+    /** Maximum size of a non-synchronizing literal with LITERAL- */
+    static final long LITERAL_MINUS_MAX_SIZE = 4096;
+
+    static final byte[] CRLF = {'\r', '\n'};
+
+    private final String mailbox;
+    private final long maxNonSynchronizingSize;
+    private final List<String> flags = new ArrayList<String>();
+    private final List<Message> messages = new ArrayList<Message>();
+    private final long[] sizes;
+
+    /**
+     * @param maxNonSynchronizingSize the maximum size of literals which can be sent without waiting for
+     *                                a continuation request, 0 if the server requires synchronizing literals
+     */
+    AppendCommand(@NotNull String mailbox,
+                  @NotNull List<? extends Message> messages,
+                  long maxNonSynchronizingSize) throws MessagingException {
+        if (messages.isEmpty()) throw new IllegalArgumentException("no messages");
+        this.mailbox = mailbox;
+        this.maxNonSynchronizingSize = maxNonSynchronizingSize;
+        this.sizes = new long[messages.size()];
+        for (Message message : messages) {
+            sizes[this.messages.size()] = size(message);
+            flags.add(flags(message));
+            this.messages.add(message);
+        }
+    }
+
+    AppendCommand(@NotNull String mailbox, @NotNull List<? extends Message> messages) throws MessagingException {
+        this(mailbox, messages, 0);
+    }
+
+    public int size() {
+        return messages.size();
+    }
+
+    /**
+     * @return the combined size of all messages
+     */
+    public long getLiteralBytes() {
+        long bytes = 0;
+        for (long size : sizes) {
+            bytes += size;
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the command line starting the append, announcing the first literal
+     */
+    public String getCommand() {
+        return String.format(Locale.ENGLISH, "APPEND %s %s", quote(mailbox), getMessageHeader(0));
+    }
+
+    /**
+     * @return true if the client has to wait for a continuation request before sending literal <code>index</code>
+     */
+    public boolean isSynchronizing(int index) {
+        return sizes[index] > maxNonSynchronizingSize;
+    }
+
+    /**
+     * Writes the data sent for literal <code>index</code>: the literal itself followed by
+     * the announcement of the next message, or by CRLF to finish the command.
+     * @throws IOException if the message does not have the announced size anymore, the connection
+     * cannot be used after that
+     */
+    public void writeContinuation(int index, OutputStream out) throws IOException {
+        final CountingOutputStream counter = new CountingOutputStream(out);
+        final CrlfOutputStream eolOut = new CrlfOutputStream(counter);
+        try {
+            messages.get(index).writeTo(eolOut);
+        } catch (MessagingException e) {
+            final IOException ioException = new IOException("error writing message");
+            ioException.initCause(e);
+            throw ioException;
+        }
+        eolOut.flush();
+        if (counter.count != sizes[index]) {
+            throw new IOException("message size changed from " + sizes[index] + " to " + counter.count);
+        }
+        out.write(index + 1 < size() ? (" " + getMessageHeader(index + 1) + "\r\n").getBytes() : CRLF);
+    }
+
+    private String getMessageHeader(int index) {
+        return String.format(Locale.ENGLISH, "(%s) {%d%s}",
+                flags.get(index),
+                sizes[index],
+                isSynchronizing(index) ? "" : "+");
+    }
+
+    /**
+     * @return the maximum size of non-synchronizing literals supported by a server with the given capabilities
+     */
+    static long getMaxNonSynchronizingSize(boolean literalPlus, boolean literalMinus) {
+        if (literalPlus) {
+            return Long.MAX_VALUE;
+        } else if (literalMinus) {
+            return LITERAL_MINUS_MAX_SIZE;
+        } else {
+            return 0;
+        }
+    }
+
+    /**
+     * @return true if the mailbox name can be sent as a quoted string, i.e. does not need to be encoded
+     */
+    static boolean canQuote(String mailbox) {
+        for (int i = 0; i < mailbox.length(); i++) {
+            final char c = mailbox.charAt(i);
+            if (c < 0x20 || c > 0x7e || c == '&') return false;
+        }
+        return true;
+    }
+
+    static String quote(String s) {
+        return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    static String flags(Message message) {
+        final StringBuilder sb = new StringBuilder();
+        for (Flag flag : message.getFlags()) {
+            final String imapFlag;
+            switch (flag) {
+                case SEEN:      imapFlag = "\\Seen"; break;
+                case FLAGGED:   imapFlag = "\\Flagged"; break;
+                case ANSWERED:  imapFlag = "\\Answered"; break;
+                case DELETED:   imapFlag = "\\Deleted"; break;
+                case DRAFT:     imapFlag = "\\Draft"; break;
+                default:        imapFlag = null;
+            }
+            if (imapFlag != null) {
+                if (sb.length() > 0) sb.append(' ');
+                sb.append(imapFlag);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the size of <code>message</code> as written to the server
+     */
+    static long size(Message message) throws MessagingException {
+        if (message instanceof RawMessage) {
+            return ((RawMessage) message).getLength();
+        }
+        try {
+            final SizingOutputStream out = new SizingOutputStream();
+            message.writeTo(out);
+            return out.getSize();
+        } catch (IOException e) {
+            throw new MessagingException("error sizing message", e);
+        }
+    }
+
+    /**
+     * Computes the size of a message as written to the server, without keeping the data.
+     * Bodies can skip writing when they know their size (see {@link Attachment}).
+     */
+    static class SizingOutputStream extends CrlfOutputStream {
+        private final CountingOutputStream counter;
+        private long skipped;
+
+        SizingOutputStream() {
+            this(new CountingOutputStream(null));
+        }
+
+        private SizingOutputStream(CountingOutputStream counter) {
+            super(counter);
+            this.counter = counter;
+        }
+
+        /**
+         * Adds <code>bytes</code> to the size, for data ending with CRLF.
+         */
+        void skip(long bytes) {
+            skipped += bytes;
+            if (bytes > 0) last = '\n';
+        }
+
+        long getSize() throws IOException {
+            flush();
+            return counter.count + skipped;
+        }
+    }
+
+    /**
+     * Counts the bytes written, and passes them on if there is an output stream.
+     */
+    private static class CountingOutputStream extends OutputStream {
+        private final OutputStream out;
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override public void write(int b) throws IOException {
+            if (out != null) out.write(b);
+            count++;
+        }
+
+        @Override public void write(@NotNull byte[] b, int off, int len) throws IOException {
+            if (out != null) out.write(b, off, len);
+            count += len;
+        }
+
+        @Override public void flush() throws IOException {
+            if (out != null) out.flush();
+        }
+    }
+}
@@ -2,15 +2,14 @@ package com.zegoggles.smssync.mail;
 
 import android.content.ContentResolver;
 import android.net.Uri;
+import android.os.ParcelFileDescriptor;
 import android.text.TextUtils;
 import android.util.Log;
 import com.fsck.k9.mail.Body;
 import com.fsck.k9.mail.MessagingException;
-import com.fsck.k9.mail.filter.Base64OutputStream;
 import com.fsck.k9.mail.internet.MimeBodyPart;
 import com.fsck.k9.mail.internet.MimeHeader;
 import com.fsck.k9.mail.internet.TextBody;
-import org.apache.commons.io.IOUtils;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
@@ -53,18 +52,37 @@ class Attachment {
         return part;
     }
 
+    /**
+     * Streams the content base64 encoded, with a fixed-size buffer. When written to a
+     * {@link AppendCommand.SizingOutputStream} only the encoded size is computed, from the size of the content,
+     * without reading it.
+     */
     private static abstract class Base64Body implements Body {
         @Override
         public void writeTo(OutputStream outputStream) throws IOException, MessagingException {
+            if (outputStream instanceof AppendCommand.SizingOutputStream) {
+                final long size = getSize();
+                if (size >= 0) {
+                    ((AppendCommand.SizingOutputStream) outputStream).skip(StreamingBase64.encodedSize(size));
+                    return;
+                }
+            }
             InputStream in = getInputStream();
             if (in != null)  {
-                Base64OutputStream base64Out = new Base64OutputStream(outputStream);
-                IOUtils.copy(in, base64Out);
-                base64Out.close();
+                try {
+                    StreamingBase64.encode(in, outputStream);
+                } finally {
+                    in.close();
+                }
             } else {
                 Log.w(TAG, "input stream is null");
             }
         }
+
+        /**
+         * @return the size of the content in bytes, or -1 if unknown
+         */
+        abstract long getSize();
     }
 
     private static class ResolverBody extends Base64Body {
@@ -88,6 +106,28 @@ class Attachment {
             }
         }
 
+        @Override
+        long getSize() {
+            ParcelFileDescriptor fd = null;
+            try {
+                fd = mResolver.openFileDescriptor(mUri, "r");
+                return fd == null ? -1 : fd.getStatSize();
+            } catch (FileNotFoundException e) {
+                // read as empty stream
+                return 0;
+            } catch (RuntimeException e) {
+                Log.w(TAG, "error getting size of " + mUri, e);
+                return -1;
+            } finally {
+                if (fd != null) {
+                    try {
+                        fd.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+
         @Override
         public void setEncoding(String s) throws MessagingException {
         }
@@ -109,6 +149,12 @@ class Attachment {
             }
         }
 
+        @Override
+        long getSize() {
+            // length() is 0 for missing files, which are read as empty stream
+            return file.length();
+        }
+
         @Override
         public void setEncoding(String s) throws MessagingException {
         }
@@ -32,20 +32,25 @@ import com.fsck.k9.mail.store.imap.ImapResponse;
 import com.fsck.k9.mail.store.imap.ImapStore;
 import com.zegoggles.smssync.MmsConsts;
 import com.zegoggles.smssync.SmsConsts;
+import com.zegoggles.smssync.preferences.Preferences;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 
 import static android.content.Context.CONNECTIVITY_SERVICE;
 import static com.zegoggles.smssync.App.LOCAL_LOGV;
@@ -55,15 +60,34 @@ import static java.util.Collections.sort;
 public class BackupImapStore extends ImapStore {
     private final Context context;
     private final Map<DataType, BackupFolder> openFolders = new HashMap<DataType, BackupFolder>();
+    private Set<String> capabilities;
+    private boolean settingsChecked;
+
+    private volatile TransferStats transferStats = new TransferStats();
 
     public BackupImapStore(final Context context, final String uri) throws MessagingException {
-        super(new BackupStoreConfig(uri),
+        super(new BackupStoreConfig(uri, new Preferences(context).isImapCompressionEnabled()),
                 getTrustedSocketFactory(context, uri),
                 (ConnectivityManager) context.getSystemService(CONNECTIVITY_SERVICE));
         this.context = context;
     }
 
-    public BackupFolder getFolder(DataType type) throws MessagingException {
+    /**
+     * @return statistics about the data transferred with this store since it has been created or
+     * the stats have been reset
+     */
+    public @NotNull TransferStats getTransferStats() {
+        return transferStats;
+    }
+
+    /**
+     * Starts counting from zero, for a store which is reused for another backup.
+     */
+    public void resetTransferStats() {
+        transferStats = new TransferStats();
+    }
+
+    public synchronized BackupFolder getFolder(DataType type) throws MessagingException {
         BackupFolder folder = openFolders.get(type);
         if (folder == null) {
             String label = type.getFolder(context);
@@ -75,7 +99,49 @@ public class BackupImapStore extends ImapStore {
         return folder;
     }
 
-    public void closeFolders() {
+    /**
+     * Checks the settings by connecting to the server. If this store has been used before,
+     * the connections of its open folders are validated with NOOP instead, and only if that
+     * fails a new connection is set up.
+     */
+    @Override
+    public void checkSettings() throws MessagingException {
+        if (settingsChecked && validateFolders()) {
+            if (LOCAL_LOGV) Log.v(TAG, "reusing connections for " + openFolders.keySet());
+            return;
+        }
+        super.checkSettings();
+        settingsChecked = true;
+    }
+
+    private boolean validateFolders() {
+        for (BackupFolder folder : openFolders.values()) {
+            try {
+                folder.noop();
+            } catch (MessagingException e) {
+                Log.w(TAG, "connection not usable anymore", e);
+                disconnect();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Closes all folders along with their connections.
+     */
+    public synchronized void disconnect() {
+        for (BackupFolder folder : openFolders.values()) {
+            try {
+                folder.disconnect();
+            } catch (Exception e) {
+                Log.w(TAG, e);
+            }
+        }
+        openFolders.clear();
+    }
+
+    public synchronized void closeFolders() {
         Collection<BackupFolder> folders = openFolders.values();
         for (BackupFolder folder : folders) {
             try {
@@ -145,51 +211,110 @@ public class BackupImapStore extends ImapStore {
             this.type = type;
         }
 
+        /**
+         * @param max the maximum number of messages, the newest ones are returned, 0 or less for all
+         */
         public List<ImapMessage> getMessages(final int max, final boolean flagged, final Date since)
                 throws MessagingException {
             if (LOCAL_LOGV)
                 Log.v(TAG, String.format(Locale.ENGLISH, "getMessages(%d, %b, %s)", max, flagged, since));
 
+            final StringBuilder criteria = new StringBuilder("1:*")
+                    .append(' ')
+                    .append(getQuery())
+                    .append(" UNDELETED");
+            if (since != null) criteria.append(" SENTSINCE ").append(RFC3501_DATE.format(since));
+            if (flagged) criteria.append(" FLAGGED");
+            final SearchCommand command = new SearchCommand(criteria.toString().trim());
+
             final List<ImapMessage> messages;
-            final ImapSearcher searcher = new ImapSearcher() {
+            if (max <= 0) {
+                messages = search(command);
+                Log.i(TAG, "Found " + messages.size() + " msgs" + (since == null ? "" : " (since " + since + ")"));
+            } else if (hasCapability(SearchCommand.SORT)) {
+                messages = getSortedMessages(command, max);
+            } else {
+                messages = getNewestMessages(command, max);
+            }
+
+            Collections.reverse(messages);
+
+            return messages;
+        }
+
+        private List<ImapMessage> search(final SearchCommand command) throws MessagingException {
+            return search(new ImapSearcher() {
                 @Override
                 public List<ImapResponse> search() throws IOException, MessagingException {
-                    final StringBuilder sb = new StringBuilder("UID SEARCH 1:*")
-                            .append(' ')
-                            .append(getQuery())
-                            .append(" UNDELETED");
-                    if (since != null) sb.append(" SENTSINCE ").append(RFC3501_DATE.format(since));
-                    if (flagged) sb.append(" FLAGGED");
-
-                    return executeSimpleCommand(sb.toString().trim());
+                    return executeSimpleCommand(command.getSearchCommand());
                 }
-            };
-
-            final List<ImapMessage> msgs = search(searcher, null);
-
-            Log.i(TAG, "Found " + msgs.size() + " msgs" + (since == null ? "" : " (since " + since + ")"));
-            if (max > 0 && msgs.size() > max) {
-                if (LOCAL_LOGV) Log.v(TAG, "Fetching envelopes");
+            }, null);
+        }
 
-                FetchProfile fp = new FetchProfile();
-                fp.add(FetchProfile.Item.DATE);
-                fetch(msgs, fp, null);
+        /**
+         * Lets the server sort the matching messages by date.
+         * @return the newest <code>max</code> messages, newest first
+         */
+        private List<ImapMessage> getSortedMessages(SearchCommand command, int max) throws MessagingException {
+            final List<String> uids;
+            try {
+                uids = SearchCommand.parseSort(executeSimpleCommand(command.getSortCommand()));
+            } catch (IOException e) {
+                throw new MessagingException("UID SORT failed", e);
+            }
+            Log.i(TAG, "Found " + uids.size() + " msgs (sorted by server)");
 
-                if (LOCAL_LOGV) Log.v(TAG, "Sorting");
-                //Debug.startMethodTracing("sorting");
-                sort(msgs, MessageComparator.INSTANCE);
-                //Debug.stopMethodTracing();
-                if (LOCAL_LOGV) Log.v(TAG, "Sorting done");
+            final List<ImapMessage> messages = new ArrayList<ImapMessage>(Math.min(max, uids.size()));
+            for (String uid : uids.subList(0, Math.min(max, uids.size()))) {
+                messages.add(getMessage(uid));
+            }
+            return messages;
+        }
 
-                messages = new ArrayList<ImapMessage>(max);
-                messages.addAll(msgs.subList(0, max));
+        /**
+         * Fetches the dates of the messages with the highest UIDs only and sorts them.
+         * @return the newest <code>max</code> of these messages, newest first
+         */
+        private List<ImapMessage> getNewestMessages(SearchCommand command, int max) throws MessagingException {
+            final int candidateCount = SearchCommand.getCandidateCount(max);
+            final List<String> candidates;
+            if (hasCapability(SearchCommand.ESEARCH)) {
+                final long[][] ranges;
+                try {
+                    ranges = SearchCommand.parseExtendedSearch(executeSimpleCommand(command.getExtendedSearchCommand()));
+                } catch (IOException e) {
+                    throw new MessagingException("UID SEARCH failed", e);
+                } catch (NumberFormatException e) {
+                    throw new MessagingException("invalid ESEARCH response", e);
+                }
+                Log.i(TAG, "Found " + SearchCommand.count(ranges) + " msgs");
+                candidates = SearchCommand.highest(ranges, candidateCount);
             } else {
-                messages = msgs;
+                final List<ImapMessage> found = search(command);
+                final long[] uids = new long[found.size()];
+                for (int i = 0; i < uids.length; i++) {
+                    uids[i] = Long.parseLong(found.get(i).getUid());
+                }
+                Arrays.sort(uids);
+                Log.i(TAG, "Found " + uids.length + " msgs");
+                candidates = SearchCommand.highest(uids, candidateCount);
             }
 
-            Collections.reverse(messages);
+            final List<ImapMessage> messages = new ArrayList<ImapMessage>(candidates.size());
+            for (String uid : candidates) {
+                messages.add(getMessage(uid));
+            }
+            if (messages.size() <= max) {
+                return messages;
+            }
 
-            return messages;
+            if (LOCAL_LOGV) Log.v(TAG, "Fetching envelopes of " + messages.size() + " candidates");
+            FetchProfile fp = new FetchProfile();
+            fp.add(FetchProfile.Item.DATE);
+            fetch(messages, fp, null);
+
+            sort(messages, MessageComparator.INSTANCE);
+            return new ArrayList<ImapMessage>(messages.subList(0, max));
         }
 
         private String getQuery() {
@@ -225,9 +350,174 @@ public class BackupImapStore extends ImapStore {
             super.fetch(messages, fp, listener);
         }
 
+        /**
+         * Fetches what is needed to restore <code>messages</code> with a single command, without temporary files
+         * (see {@link RestoreFetchCommand}). Messages which cannot be restored from these parts are fetched
+         * completely instead.
+         * @return the messages to restore, in the same order
+         */
+        public List<Message> fetchForRestore(List<? extends Message> messages) throws MessagingException {
+            if (!isOpen()) throw new MessagingException("folder " + getName() + " is not open");
+            final List<Message> result = new ArrayList<Message>(messages.size());
+            if (messages.isEmpty()) return result;
+
+            final List<String> uids = new ArrayList<String>(messages.size());
+            for (Message message : messages) {
+                uids.add(message.getUid());
+            }
+            final RestoreFetchCommand command = new RestoreFetchCommand(type != DataType.CALLLOG);
+            final Map<String, FetchedMessage> fetched;
+            try {
+                fetched = command.parse(executeSimpleCommand(command.getCommand(uids)));
+            } catch (IOException e) {
+                throw new MessagingException("UID FETCH failed", e);
+            }
+            transferStats.addMessageBytes(command.getBytes());
+
+            final List<ImapMessage> remaining = new ArrayList<ImapMessage>();
+            for (Message message : messages) {
+                final FetchedMessage fetchedMessage = fetched.get(message.getUid());
+                if (fetchedMessage != null) {
+                    result.add(fetchedMessage);
+                } else {
+                    result.add(message);
+                    remaining.add((ImapMessage) message);
+                }
+            }
+            if (!remaining.isEmpty()) {
+                if (LOCAL_LOGV) Log.v(TAG, "fetching " + remaining.size() + " complete message(s)");
+                final FetchProfile fp = new FetchProfile();
+                fp.add(FetchProfile.Item.BODY);
+                // also returns RFC822.SIZE, the bodies are not serialized again to measure them
+                fp.add(FetchProfile.Item.ENVELOPE);
+                fetch(remaining, fp, null);
+                for (Message message : remaining) {
+                    transferStats.addMessageBytes(message.getSize());
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Appends all messages with a single MULTIAPPEND command if the server supports it, otherwise
+         * with one APPEND command per message. Literals are sent without waiting for continuation requests
+         * if the server supports LITERAL+ or LITERAL-. Folders with non-ASCII names are left to K9.
+         */
         @Override
         public Map<String, String> appendMessages(List<? extends Message> messages) throws MessagingException {
-            return super.appendMessages(messages);
+            if (messages.isEmpty()) return Collections.emptyMap();
+            // non-ASCII names need modified UTF-7, leave those to K9
+            if (!AppendCommand.canQuote(getPrefixedName())) {
+                final Map<String, String> uids = super.appendMessages(messages);
+                for (Message message : messages) {
+                    // does not serialize attachments or raw messages again, unlike calculateSize()
+                    transferStats.addMessageBytes(AppendCommand.size(message));
+                }
+                return uids;
+            }
+
+            final boolean multiAppend = hasCapability(AppendCommand.MULTIAPPEND);
+            final long maxNonSynchronizingSize = AppendCommand.getMaxNonSynchronizingSize(
+                    hasCapability(AppendCommand.LITERAL_PLUS),
+                    hasCapability(AppendCommand.LITERAL_MINUS));
+
+            if (multiAppend) {
+                append(new AppendCommand(getPrefixedName(), messages, maxNonSynchronizingSize));
+            } else {
+                for (Message message : messages) {
+                    append(new AppendCommand(getPrefixedName(), Collections.singletonList(message), maxNonSynchronizingSize));
+                }
+            }
+            // new UIDs are not needed for backups
+            return Collections.emptyMap();
+        }
+
+        private void append(AppendCommand command) throws MessagingException {
+            open(OPEN_MODE_RW);
+            if (LOCAL_LOGV) Log.v(TAG, "APPEND " + command.size() + " message(s) to " + getName());
+            try {
+                mConnection.sendCommand(command.getCommand(), false);
+                final OutputStream out = mConnection.getOutputStream();
+
+                int literal = sendNonSynchronizing(out, command, 0);
+                ImapResponse response;
+                do {
+                    response = mConnection.readResponse();
+                    if (response.isContinuationRequested()) {
+                        if (literal >= command.size()) {
+                            throw new MessagingException("unexpected continuation request: " + response);
+                        }
+                        command.writeContinuation(literal++, out);
+                        literal = sendNonSynchronizing(out, command, literal);
+                    }
+                } while (response.getTag() == null);
+
+                if (!"OK".equalsIgnoreCase(response.getString(0))) {
+                    throw new MessagingException("APPEND failed: " + response);
+                }
+                transferStats.addMessageBytes(command.getLiteralBytes());
+            } catch (IOException e) {
+                // the connection is in an unknown state, do not hand it back for reuse
+                disconnect();
+                throw new MessagingException("error appending messages", e);
+            }
+        }
+
+        /**
+         * Sends literals which do not need a continuation request, starting at <code>literal</code>.
+         * @return the index of the next literal to send
+         */
+        private int sendNonSynchronizing(OutputStream out, AppendCommand command, int literal) throws IOException {
+            while (literal < command.size() && !command.isSynchronizing(literal)) {
+                command.writeContinuation(literal++, out);
+            }
+            out.flush();
+            return literal;
+        }
+
+        void noop() throws MessagingException {
+            if (!isOpen()) throw new MessagingException("folder " + getName() + " is not open");
+            try {
+                executeSimpleCommand("NOOP");
+            } catch (IOException e) {
+                throw new MessagingException("NOOP failed", e);
+            }
+        }
+
+        /**
+         * Closes the folder, without handing its connection back to the store for reuse.
+         */
+        void disconnect() {
+            if (mConnection != null) {
+                mConnection.close();
+            }
+            close();
+        }
+
+        private boolean hasCapability(String capability) throws MessagingException {
+            synchronized (BackupImapStore.this) {
+                if (capabilities == null) {
+                    capabilities = new HashSet<String>();
+                    try {
+                        for (ImapResponse response : executeCapability()) {
+                            if (!response.isEmpty() && "CAPABILITY".equalsIgnoreCase(String.valueOf(response.get(0)))) {
+                                for (Object c : response.subList(1, response.size())) {
+                                    capabilities.add(String.valueOf(c).toUpperCase(Locale.ENGLISH));
+                                }
+                            }
+                        }
+                    } catch (IOException e) {
+                        throw new MessagingException("error reading capabilities", e);
+                    }
+                    if (LOCAL_LOGV) Log.v(TAG, "server capabilities: " + capabilities);
+                }
+                return capabilities.contains(capability);
+            }
+        }
+
+        private List<ImapResponse> executeCapability() throws IOException, MessagingException {
+            open(OPEN_MODE_RW);
+            return executeSimpleCommand("CAPABILITY");
         }
     }
 
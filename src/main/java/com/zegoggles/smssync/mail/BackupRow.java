@@ -0,0 +1,137 @@
+package com.zegoggles.smssync.mail;
+
+import android.database.Cursor;
+import android.provider.CallLog;
+import com.zegoggles.smssync.MmsConsts;
+import com.zegoggles.smssync.SmsConsts;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The columns of an SMS, MMS or call log row needed for a backup, with numbers kept as primitives.
+ * Numeric columns which are <code>NULL</code> are set to {@link #NULL}.
+ * Rows are created by a {@link Reader}, which resolves the column indices once per cursor.
+ */
+public class BackupRow {
+    public static final int NULL = -1;
+
+    public long id = NULL;
+    /** in ms for SMS and call log, in seconds for MMS */
+    public long date = NULL;
+    public long threadId = NULL;
+    /** SMS message type, call type or MMS message type (m_type) */
+    public int type = NULL;
+    /** MMS message box */
+    public int messageBox = NULL;
+    public int read = NULL;
+    /** SMS address or call log number */
+    public @Nullable String address;
+    public @Nullable String body;
+    /** call duration in seconds */
+    public long duration = NULL;
+    /** MMS size in bytes */
+    public long size = NULL;
+    public @Nullable String status;
+    public @Nullable String protocol;
+    public @Nullable String serviceCenter;
+    /** MMS parts, if loaded in advance by {@link MessageConverter#prefetchMms(List)} */
+    @Nullable List<MmsSupport.Part> parts;
+
+    @Override public String toString() {
+        return String.format(Locale.ENGLISH, "BackupRow{id=%d, date=%d, type=%d, address=%s}", id, date, type, address);
+    }
+
+    /**
+     * Reads rows of one data type from a cursor.
+     */
+    public static class Reader {
+        private final Cursor cursor;
+        private final int id, date, threadId, type, messageBox, read, address, body, duration, size,
+                status, protocol, serviceCenter;
+
+        public Reader(@NotNull DataType dataType, @NotNull Cursor cursor) {
+            this.cursor = cursor;
+            switch (dataType) {
+                case SMS:
+                    id = cursor.getColumnIndex(SmsConsts.ID);
+                    date = cursor.getColumnIndex(SmsConsts.DATE);
+                    threadId = cursor.getColumnIndex(SmsConsts.THREAD_ID);
+                    type = cursor.getColumnIndex(SmsConsts.TYPE);
+                    messageBox = NULL;
+                    read = cursor.getColumnIndex(SmsConsts.READ);
+                    address = cursor.getColumnIndex(SmsConsts.ADDRESS);
+                    body = cursor.getColumnIndex(SmsConsts.BODY);
+                    duration = NULL;
+                    size = NULL;
+                    status = cursor.getColumnIndex(SmsConsts.STATUS);
+                    protocol = cursor.getColumnIndex(SmsConsts.PROTOCOL);
+                    serviceCenter = cursor.getColumnIndex(SmsConsts.SERVICE_CENTER);
+                    break;
+                case MMS:
+                    id = cursor.getColumnIndex(MmsConsts.ID);
+                    date = cursor.getColumnIndex(MmsConsts.DATE);
+                    threadId = cursor.getColumnIndex(MmsConsts.THREAD_ID);
+                    type = cursor.getColumnIndex(MmsConsts.TYPE);
+                    messageBox = cursor.getColumnIndex(MmsConsts.MESSAGE_BOX);
+                    read = cursor.getColumnIndex(MmsConsts.READ);
+                    address = NULL;
+                    body = NULL;
+                    duration = NULL;
+                    size = cursor.getColumnIndex(MmsConsts.SIZE);
+                    status = NULL;
+                    protocol = NULL;
+                    serviceCenter = NULL;
+                    break;
+                case CALLLOG:
+                    id = cursor.getColumnIndex(CallLog.Calls._ID);
+                    date = cursor.getColumnIndex(CallLog.Calls.DATE);
+                    threadId = NULL;
+                    type = cursor.getColumnIndex(CallLog.Calls.TYPE);
+                    messageBox = NULL;
+                    read = NULL;
+                    address = cursor.getColumnIndex(CallLog.Calls.NUMBER);
+                    body = NULL;
+                    duration = cursor.getColumnIndex(CallLog.Calls.DURATION);
+                    size = NULL;
+                    status = NULL;
+                    protocol = NULL;
+                    serviceCenter = NULL;
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown data type " + dataType);
+            }
+        }
+
+        /**
+         * @return the row at the current position of the cursor
+         */
+        public @NotNull BackupRow read() {
+            final BackupRow row = new BackupRow();
+            row.id = getLong(id);
+            row.date = getLong(date);
+            row.threadId = getLong(threadId);
+            row.type = (int) getLong(type);
+            row.messageBox = (int) getLong(messageBox);
+            row.read = (int) getLong(read);
+            row.address = getString(address);
+            row.body = getString(body);
+            row.duration = getLong(duration);
+            row.size = getLong(size);
+            row.status = getString(status);
+            row.protocol = getString(protocol);
+            row.serviceCenter = getString(serviceCenter);
+            return row;
+        }
+
+        private long getLong(int column) {
+            return column == NULL || cursor.isNull(column) ? NULL : cursor.getLong(column);
+        }
+
+        private @Nullable String getString(int column) {
+            return column == NULL ? null : cursor.getString(column);
+        }
+    }
+}
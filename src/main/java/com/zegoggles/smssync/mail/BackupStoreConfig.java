@@ -6,9 +6,15 @@ import com.fsck.k9.mail.NetworkType;
 class BackupStoreConfig implements StoreConfig {
     private static final String INBOX = "INBOX";
     private final String storeUri;
+    private final boolean useCompression;
 
-    BackupStoreConfig(String storeUri) {
+    BackupStoreConfig(String storeUri, boolean useCompression) {
         this.storeUri = storeUri;
+        this.useCompression = useCompression;
+    }
+
+    BackupStoreConfig(String storeUri) {
+        this(storeUri, false);
     }
 
     @Override public String getStoreUri() {
@@ -18,8 +24,12 @@ class BackupStoreConfig implements StoreConfig {
     @Override public boolean subscribedFoldersOnly() {
         return false;
     }
+    /**
+     * K9 negotiates COMPRESS=DEFLATE (RFC 4978) after login if this returns true
+     * and the server supports it.
+     */
     @Override public boolean useCompression(NetworkType type) {
-        return false;
+        return useCompression;
     }
     @Override public String getInboxFolderName() {
         return INBOX;
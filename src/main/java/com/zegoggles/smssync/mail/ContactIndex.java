@@ -0,0 +1,179 @@
+package com.zegoggles.smssync.mail;
+
+import android.annotation.TargetApi;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Build;
+import android.os.SystemClock;
+import android.provider.ContactsContract;
+import android.text.TextUtils;
+import android.text.format.Formatter;
+import com.zegoggles.smssync.contacts.PhoneNumberIndex;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An in-memory index of all contacts with phone numbers, built with two streaming passes over
+ * {@link ContactsContract.Data} (phone numbers and names, then email addresses). Used by
+ * {@link PersonLookup} instead of querying the contacts provider for each address.
+ * <p>
+ * Numbers are matched with a {@link PhoneNumberIndex}.
+ * The index is read-only once built and can be used from multiple threads.
+ */
+@TargetApi(Build.VERSION_CODES.ECLAIR)
+public class ContactIndex {
+    // rough per-object overhead used to estimate the size of the index
+    private static final int OBJECT_BYTES = 16;
+
+    private final Map<Long, Contact> contacts = new HashMap<Long, Contact>();
+    private PhoneNumberIndex numbers;
+    private long estimatedBytes;
+    private long buildMillis;
+
+    private ContactIndex() {
+    }
+
+    static @NotNull ContactIndex build(ContentResolver resolver) {
+        final long start = SystemClock.elapsedRealtime();
+        final ContactIndex index = new ContactIndex();
+        index.numbers = index.addPhones(resolver);
+        index.addEmails(resolver);
+        index.buildMillis = SystemClock.elapsedRealtime() - start;
+        return index;
+    }
+
+    /**
+     * @return the contact with the given phone number, or null if there is none
+     */
+    @Nullable PersonRecord lookup(String address) {
+        final long id = numbers.lookup(address);
+        if (id == PhoneNumberIndex.NOT_FOUND) return null;
+
+        final Contact contact = contacts.get(id);
+        return new PersonRecord(contact.id, contact.name, contact.email, address);
+    }
+
+    public int getContactCount() {
+        return contacts.size();
+    }
+
+    public int getNumberCount() {
+        return numbers.size();
+    }
+
+    /**
+     * @return a rough estimate of the memory used by the index
+     */
+    public long getEstimatedBytes() {
+        return estimatedBytes + numbers.getEstimatedBytes();
+    }
+
+    public long getBuildMillis() {
+        return buildMillis;
+    }
+
+    public String formatEstimatedBytes(Context context) {
+        return Formatter.formatFileSize(context, getEstimatedBytes());
+    }
+
+    private PhoneNumberIndex addPhones(ContentResolver resolver) {
+        final PhoneNumberIndex.Builder builder = new PhoneNumberIndex.Builder();
+        final Cursor c = query(resolver, ContactsContract.CommonDataKinds.Phone.CONTENT_ITEM_TYPE,
+                ContactsContract.CommonDataKinds.Phone.NUMBER, ContactsContract.Data.DISPLAY_NAME);
+        if (c == null) return builder.build();
+        try {
+            final int idIndex = c.getColumnIndex(ContactsContract.Data.CONTACT_ID);
+            final int numberIndex = c.getColumnIndex(ContactsContract.CommonDataKinds.Phone.NUMBER);
+            final int nameIndex = c.getColumnIndex(ContactsContract.Data.DISPLAY_NAME);
+            while (c.moveToNext()) {
+                final String number = c.getString(numberIndex);
+                if (TextUtils.isEmpty(number)) continue;
+
+                final long id = c.getLong(idIndex);
+                Contact contact = contacts.get(id);
+                if (contact == null) {
+                    contact = new Contact(id, c.getString(nameIndex));
+                    contacts.put(id, contact);
+                    estimatedBytes += OBJECT_BYTES + sizeOf(contact.name);
+                }
+                builder.add(number, id);
+            }
+        } finally {
+            c.close();
+        }
+        return builder.build();
+    }
+
+    /**
+     * Picks the email for each contact like {@link PersonLookup} does: the first Gmail address, otherwise
+     * the primary one.
+     */
+    private void addEmails(ContentResolver resolver) {
+        final Cursor c = query(resolver, ContactsContract.CommonDataKinds.Email.CONTENT_ITEM_TYPE,
+                ContactsContract.CommonDataKinds.Email.DATA, ContactsContract.CommonDataKinds.Email.IS_PRIMARY);
+        if (c == null) return;
+        try {
+            final int idIndex = c.getColumnIndex(ContactsContract.Data.CONTACT_ID);
+            final int emailIndex = c.getColumnIndex(ContactsContract.CommonDataKinds.Email.DATA);
+            while (c.moveToNext()) {
+                final Contact contact = contacts.get(c.getLong(idIndex));
+                if (contact == null || contact.hasGmailAddress) continue;
+
+                final String email = c.getString(emailIndex);
+                if (PersonLookup.isGmailAddress(email)) {
+                    contact.email = email;
+                    contact.hasGmailAddress = true;
+                } else if (contact.email == null) {
+                    contact.email = email;
+                } else {
+                    continue;
+                }
+                estimatedBytes += sizeOf(email);
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    private static Cursor query(ContentResolver resolver, String mimeType, String... columns) {
+        final String[] projection = new String[columns.length + 1];
+        projection[0] = ContactsContract.Data.CONTACT_ID;
+        System.arraycopy(columns, 0, projection, 1, columns.length);
+
+        return resolver.query(ContactsContract.Data.CONTENT_URI,
+                projection,
+                ContactsContract.Data.MIMETYPE + " = ?",
+                new String[] { mimeType },
+                // keeps the primary address of a contact in front of the others
+                ContactsContract.Data.CONTACT_ID + ", " + ContactsContract.Data.IS_PRIMARY + " DESC");
+    }
+
+    private static long sizeOf(String s) {
+        return s == null ? 0 : OBJECT_BYTES + 2L * s.length();
+    }
+
+    @Override public String toString() {
+        return "ContactIndex{" +
+                "contacts=" + contacts.size() +
+                ", numbers=" + numbers.size() +
+                ", estimatedBytes=" + getEstimatedBytes() +
+                ", buildMillis=" + buildMillis +
+                '}';
+    }
+
+    private static class Contact {
+        final long id;
+        final String name;
+        String email;
+        boolean hasGmailAddress;
+
+        Contact(long id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+    }
+}
@@ -4,21 +4,20 @@ import com.fsck.k9.mail.Message;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 
 public class ConversionResult {
     public final DataType type;
     private final List<Message> messages = new ArrayList<Message>();
-    private final List<Map<String, String>> mapList = new ArrayList<Map<String, String>>();
+    private final List<BackupRow> rows = new ArrayList<BackupRow>();
     private long maxDate = DataType.Defaults.MAX_SYNCED_DATE;
 
     public ConversionResult(DataType type) {
         this.type = type;
     }
 
-    public void add(Message message, Map<String, String> map) {
+    public void add(Message message, BackupRow row) {
         messages.add(message);
-        mapList.add(map);
+        rows.add(row);
 
         String dateHeader = Headers.get(message, Headers.DATE);
         if (dateHeader != null) {
@@ -32,6 +31,14 @@ public class ConversionResult {
         }
     }
 
+    public void addAll(ConversionResult other) {
+        messages.addAll(other.messages);
+        rows.addAll(other.rows);
+        if (other.maxDate > maxDate) {
+            maxDate = other.maxDate;
+        }
+    }
+
     public boolean isEmpty() {
         return messages.isEmpty();
     }
@@ -44,8 +51,8 @@ public class ConversionResult {
         return maxDate;
     }
 
-    public List<Map<String, String>> getMapList() {
-        return mapList;
+    public List<BackupRow> getRows() {
+        return rows;
     }
 
     public int size() {
@@ -0,0 +1,93 @@
+package com.zegoggles.smssync.mail;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Converts bare LF and bare CR line endings to CRLF, as required for IMAP literals, with the same result as
+ * {@link com.fsck.k9.mail.filter.EOLConvertingOutputStream}. Unlike that stream it passes arrays on in runs
+ * between line endings instead of byte by byte, so large attachments do not go through the stream one byte
+ * at a time.
+ */
+class CrlfOutputStream extends FilterOutputStream {
+    private static final int CR = '\r';
+    private static final int LF = '\n';
+
+    /** the last byte written, -1 if none */
+    protected int last = -1;
+    /** set if a CR has been completed by {@link #flush()}, so that an LF following it is not doubled */
+    private boolean ignoreLf;
+
+    CrlfOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    /**
+     * Forgets about the data written so far, for a stream which is reused.
+     */
+    void reset() {
+        last = -1;
+        ignoreLf = false;
+    }
+
+    @Override public void write(int b) throws IOException {
+        b &= 0xff;
+        if (ignoreLf) {
+            ignoreLf = false;
+            if (b == LF) return;
+        }
+        if (b == LF && last != CR) {
+            out.write(CR);
+        } else if (b != LF && last == CR) {
+            out.write(LF);
+        }
+        out.write(b);
+        last = b;
+    }
+
+    @Override public void write(@NotNull byte[] b, int off, int len) throws IOException {
+        if (len <= 0) return;
+        if (ignoreLf) {
+            ignoreLf = false;
+            if (b[off] == LF) {
+                off++;
+                len--;
+                if (len == 0) return;
+            }
+        }
+
+        final int end = off + len;
+        int start = off;
+        int previous = last;
+        for (int i = off; i < end; i++) {
+            final int c = b[i] & 0xff;
+            if (c == LF && previous != CR) {
+                out.write(b, start, i - start);
+                out.write(CR);
+                start = i;
+            } else if (c != LF && previous == CR) {
+                out.write(b, start, i - start);
+                out.write(LF);
+                start = i;
+            }
+            previous = c;
+        }
+        out.write(b, start, end - start);
+        last = previous;
+    }
+
+    /**
+     * Completes a trailing CR with LF, like {@link com.fsck.k9.mail.filter.EOLConvertingOutputStream#flush()}.
+     */
+    @Override public void flush() throws IOException {
+        if (last == CR) {
+            out.write(LF);
+            last = LF;
+            ignoreLf = true;
+        }
+        super.flush();
+    }
+}
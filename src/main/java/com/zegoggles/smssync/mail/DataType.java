@@ -5,6 +5,7 @@ import android.content.SharedPreferences;
 import android.os.Build;
 import android.preference.PreferenceManager;
 import com.zegoggles.smssync.R;
+import com.zegoggles.smssync.preferences.SyncStateStore;
 
 import java.util.ArrayList;
 import java.util.EnumSet;
@@ -80,7 +81,7 @@ public enum DataType {
      * @return returns the last synced date in milliseconds (epoch)
      */
     public long getMaxSyncedDate(Context context) {
-        long maxSynced = prefs(context).getLong(maxSyncedPreference, Defaults.MAX_SYNCED_DATE);
+        long maxSynced = SyncStateStore.get(context).getMaxSyncedDate(this);
         if (this == MMS && maxSynced > 0) {
             return maxSynced * 1000L;
         } else {
@@ -89,7 +90,7 @@ public enum DataType {
     }
 
     public boolean setMaxSyncedDate(Context context, long max) {
-        return prefs(context).edit().putLong(maxSyncedPreference, max).commit();
+        return SyncStateStore.get(context).setMaxSyncedDate(this, max);
     }
 
     private SharedPreferences prefs(Context context) {
@@ -114,11 +115,7 @@ public enum DataType {
     }
 
     public static void clearLastSyncData(Context ctx) {
-        SharedPreferences.Editor editor = PreferenceManager.getDefaultSharedPreferences(ctx).edit();
-        for (DataType type : values()) {
-            editor.remove(type.maxSyncedPreference);
-        }
-        editor.commit();
+        SyncStateStore.get(ctx).clear();
     }
 
     public static class PreferenceKeys {
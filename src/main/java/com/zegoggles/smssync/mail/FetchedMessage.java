@@ -0,0 +1,33 @@
+package com.zegoggles.smssync.mail;
+
+import com.fsck.k9.mail.internet.MimeMessage;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A message to restore, built from the parts fetched by {@link RestoreFetchCommand} instead of a complete
+ * message, so there is no body stored in a temporary file and no MIME tree.
+ * Only the UID, {@link #getHeader(String)} and the decoded text are available.
+ */
+class FetchedMessage extends MimeMessage {
+    /** header names and values, alternating */
+    private final String[] headers;
+    private final String text;
+
+    FetchedMessage(String uid, String[] headers, @Nullable String text) {
+        this.headers = headers;
+        this.text = text;
+        setUid(uid);
+    }
+
+    @Override
+    public String[] getHeader(String name) {
+        return Headers.find(headers, name);
+    }
+
+    /**
+     * @return the decoded text, null if it has not been fetched
+     */
+    @Nullable String getText() {
+        return text;
+    }
+}
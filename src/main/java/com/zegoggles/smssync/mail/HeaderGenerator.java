@@ -1,15 +1,11 @@
 package com.zegoggles.smssync.mail;
 
-import android.provider.CallLog;
 import com.fsck.k9.mail.Message;
 import com.fsck.k9.mail.MessagingException;
-import com.zegoggles.smssync.MmsConsts;
-import com.zegoggles.smssync.SmsConsts;
 import org.jetbrains.annotations.NotNull;
 
 import java.security.MessageDigest;
-import java.text.SimpleDateFormat;
-import java.util.*;
+import java.util.Date;
 
 import static com.zegoggles.smssync.utils.Sanitizer.sanitize;
 
@@ -17,19 +13,65 @@ import static com.zegoggles.smssync.utils.Sanitizer.sanitize;
  * Generates headers for SMS, MMS, Call logs
  */
 class HeaderGenerator {
-    private static final String REFERENCE_UID_TEMPLATE = "<%s.%s@sms-backup-plus.local>";
-    private static final String MSG_ID_TEMPLATE        = "<%s@sms-backup-plus.local>";
+    private static final String DOMAIN = "@sms-backup-plus.local>";
+    private static final String MSG_ID_PREFIX = "<";
+    private static final String MSG_ID_SUFFIX = DOMAIN;
+    private static final long MILLIS_PER_DAY = 24 * 60 * 60 * 1000L;
+    private static final String[] MONTHS = {
+        "Jan", "Feb", "Mar", "Apr", "May", "Jun", "Jul", "Aug", "Sep", "Oct", "Nov", "Dec"
+    };
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
 
-    private final String reference;
+    // headers are generated on several converter threads
+    private static final ThreadLocal<MessageDigest> DIGEST = new ThreadLocal<MessageDigest>() {
+        @Override protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("MD5");
+            } catch (java.security.NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    };
+
+    /** the start of the References header, <code>&lt;reference.</code> */
+    private final String referencePrefix;
     private final String version;
 
     public HeaderGenerator(String reference, String version) {
         this.version = version;
-        this.reference = reference;
+        this.referencePrefix = "<" + reference + ".";
+    }
+
+    /**
+     * Receives the generated headers, see {@link RawMessage.Builder}.
+     */
+    interface HeaderTarget {
+        void setHeader(String name, String value) throws MessagingException;
+
+        void setSentDate(Date sentDate) throws MessagingException;
     }
 
     public void setHeaders(final Message message,
-                           final Map<String, String> msgMap,
+                           final BackupRow row,
+                           final DataType dataType,
+                           final String address,
+                           final @NotNull PersonRecord contact,
+                           final Date sentDate,
+                           final int status) throws MessagingException {
+        setHeaders(new HeaderTarget() {
+            @Override public void setHeader(String name, String value) throws MessagingException {
+                message.setHeader(name, value);
+            }
+
+            @Override public void setSentDate(Date date) throws MessagingException {
+                message.setSentDate(date, false);
+                message.setInternalDate(date);
+            }
+        }, row, dataType, address, contact, sentDate, status);
+    }
+
+    public void setHeaders(final HeaderTarget target,
+                           final BackupRow row,
                            final DataType dataType,
                            final String address,
                            final @NotNull PersonRecord contact,
@@ -37,54 +79,84 @@ class HeaderGenerator {
                            final int status) throws MessagingException {
 
         // Threading by contact ID, not by thread ID. I think this value is more stable.
-        message.setHeader(Headers.REFERENCES, String.format(REFERENCE_UID_TEMPLATE, reference, contact.getId()));
-        message.setHeader(Headers.MESSAGE_ID, createMessageId(sentDate, address, status));
-        message.setHeader(Headers.ADDRESS,  sanitize(address));
-        message.setHeader(Headers.DATATYPE, dataType.toString());
-        message.setHeader(Headers.BACKUP_TIME, toGMTString(new Date()));
-        message.setHeader(Headers.VERSION, version);
-        message.setSentDate(sentDate, false);
-        message.setInternalDate(sentDate);
+        target.setHeader(Headers.REFERENCES, referencePrefix + contact.getId() + DOMAIN);
+        target.setHeader(Headers.MESSAGE_ID, createMessageId(sentDate, address, status));
+        target.setHeader(Headers.ADDRESS,  sanitize(address));
+        target.setHeader(Headers.DATATYPE, dataType.toString());
+        target.setHeader(Headers.BACKUP_TIME, toGMTString(System.currentTimeMillis()));
+        target.setHeader(Headers.VERSION, version);
+        target.setSentDate(sentDate);
         switch (dataType) {
-            case SMS: setSmsHeaders(message, msgMap); break;
-            case MMS: setMmsHeaders(message, msgMap); break;
-            case CALLLOG: setCallLogHeaders(message, msgMap); break;
+            case SMS: setSmsHeaders(target, row); break;
+            case MMS: setMmsHeaders(target, row); break;
+            case CALLLOG: setCallLogHeaders(target, row); break;
         }
     }
 
-    private void setSmsHeaders(Message message, Map<String,String> msgMap) throws MessagingException {
-        message.setHeader(Headers.ID, msgMap.get(SmsConsts.ID));
-        message.setHeader(Headers.TYPE, msgMap.get(SmsConsts.TYPE));
-        message.setHeader(Headers.DATE, msgMap.get(SmsConsts.DATE));
-        message.setHeader(Headers.THREAD_ID, msgMap.get(SmsConsts.THREAD_ID));
-        message.setHeader(Headers.READ, msgMap.get(SmsConsts.READ));
-        message.setHeader(Headers.STATUS, msgMap.get(SmsConsts.STATUS));
-        message.setHeader(Headers.PROTOCOL, msgMap.get(SmsConsts.PROTOCOL));
-        message.setHeader(Headers.SERVICE_CENTER, msgMap.get(SmsConsts.SERVICE_CENTER));
+    private void setSmsHeaders(HeaderTarget target, BackupRow row) throws MessagingException {
+        target.setHeader(Headers.ID, toHeader(row.id));
+        target.setHeader(Headers.TYPE, toHeader(row.type));
+        target.setHeader(Headers.DATE, toHeader(row.date));
+        target.setHeader(Headers.THREAD_ID, toHeader(row.threadId));
+        target.setHeader(Headers.READ, toHeader(row.read));
+        target.setHeader(Headers.STATUS, row.status);
+        target.setHeader(Headers.PROTOCOL, row.protocol);
+        target.setHeader(Headers.SERVICE_CENTER, row.serviceCenter);
     }
 
-    private void setMmsHeaders(Message message, Map<String,String> msgMap) throws MessagingException {
-        message.setHeader(Headers.ID, msgMap.get(MmsConsts.ID));
-        message.setHeader(Headers.TYPE, msgMap.get(MmsConsts.TYPE));
-        message.setHeader(Headers.DATE, msgMap.get(MmsConsts.DATE));
-        message.setHeader(Headers.THREAD_ID, msgMap.get(MmsConsts.THREAD_ID));
-        message.setHeader(Headers.READ, msgMap.get(MmsConsts.READ));
+    private void setMmsHeaders(HeaderTarget target, BackupRow row) throws MessagingException {
+        target.setHeader(Headers.ID, toHeader(row.id));
+        target.setHeader(Headers.TYPE, toHeader(row.type));
+        target.setHeader(Headers.DATE, toHeader(row.date));
+        target.setHeader(Headers.THREAD_ID, toHeader(row.threadId));
+        target.setHeader(Headers.READ, toHeader(row.read));
     }
 
-    private void setCallLogHeaders(Message message, Map<String,String> msgMap) throws MessagingException {
-        message.setHeader(Headers.ID, msgMap.get(CallLog.Calls._ID));
-        message.setHeader(Headers.TYPE, msgMap.get(CallLog.Calls.TYPE));
-        message.setHeader(Headers.DATE, msgMap.get(CallLog.Calls.DATE));
-        message.setHeader(Headers.DURATION, msgMap.get(CallLog.Calls.DURATION));
+    private void setCallLogHeaders(HeaderTarget target, BackupRow row) throws MessagingException {
+        target.setHeader(Headers.ID, toHeader(row.id));
+        target.setHeader(Headers.TYPE, toHeader(row.type));
+        target.setHeader(Headers.DATE, toHeader(row.date));
+        target.setHeader(Headers.DURATION, toHeader(row.duration));
     }
 
-    private static String toGMTString(Date date) {
-        SimpleDateFormat sdf = new SimpleDateFormat("d MMM y HH:mm:ss 'GMT'", Locale.US);
-        TimeZone gmtZone = TimeZone.getTimeZone("GMT");
-        sdf.setTimeZone(gmtZone);
-        GregorianCalendar gc = new GregorianCalendar(gmtZone);
-        gc.setTimeInMillis(date.getTime());
-        return sdf.format(date);
+    private static String toHeader(long value) {
+        return value == BackupRow.NULL ? null : String.valueOf(value);
+    }
+
+    /**
+     * Formats like <code>new SimpleDateFormat("d MMM y HH:mm:ss 'GMT'", Locale.US)</code> in GMT
+     * (for dates after the Gregorian cutover), without creating a formatter and calendar for each message.
+     */
+    static String toGMTString(long millis) {
+        long days = millis / MILLIS_PER_DAY;
+        long millisOfDay = millis % MILLIS_PER_DAY;
+        if (millisOfDay < 0) {
+            days--;
+            millisOfDay += MILLIS_PER_DAY;
+        }
+        // proleptic Gregorian calendar from days since epoch, see
+        // http://howardhinnant.github.io/date_algorithms.html#civil_from_days
+        final long z = days + 719468;
+        final long era = (z >= 0 ? z : z - 146096) / 146097;
+        final long dayOfEra = z - era * 146097;
+        final long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        final long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        final long mp = (5 * dayOfYear + 2) / 153;
+        final long day = dayOfYear - (153 * mp + 2) / 5 + 1;
+        final int month = (int) (mp < 10 ? mp + 2 : mp - 10);
+        final long year = yearOfEra + era * 400 + (month <= 1 ? 1 : 0);
+
+        final int secondsOfDay = (int) (millisOfDay / 1000);
+        final StringBuilder sb = new StringBuilder(24);
+        sb.append(day).append(' ').append(MONTHS[month]).append(' ').append(year).append(' ');
+        appendTwoDigits(sb, secondsOfDay / 3600).append(':');
+        appendTwoDigits(sb, secondsOfDay / 60 % 60).append(':');
+        appendTwoDigits(sb, secondsOfDay % 60).append(" GMT");
+        return sb.toString();
+    }
+
+    private static StringBuilder appendTwoDigits(StringBuilder sb, int value) {
+        return sb.append((char) ('0' + value / 10)).append((char) ('0' + value % 10));
     }
 
     /**
@@ -96,25 +168,49 @@ class HeaderGenerator {
      * @param type    the type
      * @return the message-id
      */
-    private static String createMessageId(Date sent, String address, int type) {
-        try {
-            final MessageDigest digest = MessageDigest.getInstance("MD5");
-
-            digest.update(Long.toString(sent.getTime()).getBytes("UTF-8"));
-            if (address != null) {
+    static String createMessageId(Date sent, String address, int type) {
+        final MessageDigest digest = DIGEST.get();
+        updateDecimal(digest, sent.getTime());
+        if (address != null) {
+            try {
                 digest.update(address.getBytes("UTF-8"));
+            } catch (java.io.UnsupportedEncodingException e) {
+                throw new RuntimeException(e);
             }
-            digest.update(Integer.toString(type).getBytes("UTF-8"));
+        }
+        updateDecimal(digest, type);
 
-            final StringBuilder sb = new StringBuilder();
-            for (byte b : digest.digest()) {
-                sb.append(String.format(Locale.ENGLISH, "%02x", b));
-            }
-            return String.format(Locale.ENGLISH, MSG_ID_TEMPLATE, sb.toString());
-        } catch (java.io.UnsupportedEncodingException e) {
-            throw new RuntimeException(e);
-        } catch (java.security.NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
+        final byte[] hash = digest.digest();
+        final char[] id = new char[MSG_ID_PREFIX.length() + 2 * hash.length + MSG_ID_SUFFIX.length()];
+        MSG_ID_PREFIX.getChars(0, MSG_ID_PREFIX.length(), id, 0);
+        int position = MSG_ID_PREFIX.length();
+        for (byte b : hash) {
+            id[position++] = HEX_DIGITS[(b >> 4) & 0xf];
+            id[position++] = HEX_DIGITS[b & 0xf];
+        }
+        MSG_ID_SUFFIX.getChars(0, MSG_ID_SUFFIX.length(), id, position);
+        return new String(id);
+    }
+
+    /**
+     * Updates the digest with the ASCII digits of <code>value</code>, like
+     * <code>Long.toString(value).getBytes()</code>.
+     */
+    private static void updateDecimal(MessageDigest digest, long value) {
+        if (value == Long.MIN_VALUE) {
+            digest.update(Long.toString(value).getBytes());
+            return;
+        }
+        if (value < 0) {
+            digest.update((byte) '-');
+            value = -value;
+        }
+        long divisor = 1;
+        while (value / divisor >= 10) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            digest.update((byte) ('0' + value / divisor % 10));
         }
     }
 }
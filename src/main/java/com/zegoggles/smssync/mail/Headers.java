@@ -3,6 +3,9 @@ package com.zegoggles.smssync.mail;
 import com.fsck.k9.mail.Message;
 import com.fsck.k9.mail.MessagingException;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public final class Headers {
     // private headers
     public static final String ID             = "X-smssync-id";
@@ -33,4 +36,18 @@ public final class Headers {
         }
         return null;
     }
+
+    /**
+     * @param fields header names and values, alternating
+     * @return the values of header <code>name</code>, or null if there are none
+     */
+    static String[] find(String[] fields, String name) {
+        final List<String> values = new ArrayList<String>(1);
+        for (int i = 0; i < fields.length; i += 2) {
+            if (fields[i].equalsIgnoreCase(name)) {
+                values.add(fields[i + 1]);
+            }
+        }
+        return values.isEmpty() ? null : values.toArray(new String[values.size()]);
+    }
 }
@@ -0,0 +1,120 @@
+package com.zegoggles.smssync.mail;
+
+import android.content.Context;
+import android.util.Log;
+import com.fsck.k9.mail.MessagingException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Timer;
+import java.util.TimerTask;
+
+import static com.zegoggles.smssync.App.LOCAL_LOGV;
+import static com.zegoggles.smssync.App.TAG;
+
+/**
+ * Keeps the store of the last backup, with its authenticated connections and selected folders,
+ * open for a while, so that incremental backups in quick succession (e.g. one per incoming SMS)
+ * do not have to connect, log in and select folders again.
+ * <p>
+ * A store is handed out to one backup at a time. Once released it stays idle for the configured
+ * window and gets disconnected afterwards. Connections are validated with NOOP in
+ * {@link BackupImapStore#checkSettings()} before they are reused.
+ */
+public class ImapConnectionManager {
+    private static ImapConnectionManager instance;
+
+    private final Timer timer = new Timer("ImapConnectionManager", true);
+    @Nullable private BackupImapStore idleStore;
+    @Nullable private TimerTask expiry;
+
+    public static synchronized ImapConnectionManager get() {
+        if (instance == null) {
+            instance = new ImapConnectionManager();
+        }
+        return instance;
+    }
+
+    /* package, for testing */ ImapConnectionManager() {
+    }
+
+    /**
+     * @return the idle store if it connects to <code>uri</code>, otherwise a new store, with fresh transfer stats
+     */
+    public synchronized @NotNull BackupImapStore acquire(Context context, String uri) throws MessagingException {
+        cancelExpiry();
+        final BackupImapStore store = idleStore;
+        idleStore = null;
+        if (store != null) {
+            if (store.getStoreUri().equals(uri)) {
+                if (LOCAL_LOGV) Log.v(TAG, "reusing " + store);
+                store.resetTransferStats();
+                return store;
+            } else {
+                disconnectLater(store);
+            }
+        }
+        return new BackupImapStore(context, uri);
+    }
+
+    /**
+     * Hands a store back after use.
+     * @param reuse whether the store is still in a usable state
+     * @param idleMillis how long to keep the store open, 0 to disconnect it right away
+     */
+    public void release(@NotNull BackupImapStore store, boolean reuse, long idleMillis) {
+        BackupImapStore disconnect = store;
+        if (reuse && idleMillis > 0) {
+            synchronized (this) {
+                cancelExpiry();
+                disconnect = idleStore != store ? idleStore : null;
+                idleStore = store;
+                expiry = new TimerTask() {
+                    @Override public void run() {
+                        expire(this);
+                    }
+                };
+                timer.schedule(expiry, idleMillis);
+            }
+        }
+        if (disconnect != null) {
+            disconnect.disconnect();
+        }
+    }
+
+    /**
+     * @param task the expiry task which fired, null to expire the idle store unconditionally
+     */
+    /* package, for testing */ void expire(@Nullable TimerTask task) {
+        final BackupImapStore store;
+        synchronized (this) {
+            // the store might have been acquired and released again in the meantime
+            if (task != null && task != expiry) return;
+            store = idleStore;
+            idleStore = null;
+            expiry = null;
+        }
+        if (store != null) {
+            if (LOCAL_LOGV) Log.v(TAG, "closing idle " + store);
+            store.disconnect();
+        }
+    }
+
+    private void cancelExpiry() {
+        if (expiry != null) {
+            expiry.cancel();
+            expiry = null;
+        }
+    }
+
+    /**
+     * Disconnects in the background, acquire is called from the main thread.
+     */
+    private void disconnectLater(final BackupImapStore store) {
+        timer.schedule(new TimerTask() {
+            @Override public void run() {
+                store.disconnect();
+            }
+        }, 0);
+    }
+}
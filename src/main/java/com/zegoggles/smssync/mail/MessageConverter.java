@@ -19,7 +19,6 @@ package com.zegoggles.smssync.mail;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
-import android.database.sqlite.SQLiteException;
 import android.net.Uri;
 import android.provider.CallLog;
 import android.util.Log;
@@ -39,12 +38,12 @@ import com.zegoggles.smssync.preferences.Preferences;
 import com.zegoggles.smssync.utils.ThreadHelper;
 import org.apache.commons.io.IOUtils;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
-import java.util.Map;
 import java.util.Random;
 
 import static com.zegoggles.smssync.App.LOCAL_LOGV;
@@ -61,7 +60,9 @@ public class MessageConverter {
     private final MarkAsReadTypes mMarkAsReadType;
     private final PersonLookup mPersonLookup;
     private final MessageGenerator mMessageGenerator;
+    private final MmsSupport mMmsSupport;
     private final boolean mMarkAsReadOnRestore;
+    private final boolean mPreloadContacts;
 
     public MessageConverter(Context context, Preferences preferences,
                             String userEmail,
@@ -71,6 +72,7 @@ public class MessageConverter {
         mMarkAsReadType = preferences.getMarkAsReadType();
         mPersonLookup = personLookup;
         mMarkAsReadOnRestore = preferences.getMarkAsReadOnRestore();
+        mPreloadContacts = preferences.isContactsPreloadEnabled();
 
         String referenceUid = preferences.getReferenceUid();
         if (referenceUid == null) {
@@ -82,6 +84,7 @@ public class MessageConverter {
         ContactGroupIds allowedIds = contactAccessor.getGroupContactIds(context.getContentResolver(), backupContactGroup);
         if (LOCAL_LOGV) Log.v(TAG, "whitelisted ids for backup: " + allowedIds);
 
+        mMmsSupport = new MmsSupport(mContext.getContentResolver(), mPersonLookup);
         mMessageGenerator = new MessageGenerator(mContext,
                 new Address(userEmail),
                 AddressStyle.getEmailAddressStyle(preferences),
@@ -89,17 +92,17 @@ public class MessageConverter {
                 mPersonLookup,
                 preferences.getMailSubjectPrefix(),
                 allowedIds,
-                new MmsSupport(mContext.getContentResolver(), mPersonLookup));
+                mMmsSupport,
+                true);
     }
 
-    private boolean markAsSeen(DataType dataType, Map<String, String> msgMap) {
+    private boolean markAsSeen(DataType dataType, BackupRow row) {
         switch (mMarkAsReadType) {
             case MESSAGE_STATUS:
                 switch (dataType) {
                     case SMS:
-                        return "1".equals(msgMap.get(SmsConsts.READ));
                     case MMS:
-                        return "1".equals(msgMap.get(MmsConsts.READ));
+                        return row.read == 1;
                     default:
                         return true;
                 }
@@ -111,15 +114,38 @@ public class MessageConverter {
         }
     }
 
+    /**
+     * Loads all contacts into memory for the lookups of this converter, if enabled.
+     * @return the index, or null if disabled or not supported on this device
+     */
+    public @Nullable ContactIndex preloadContacts() {
+        return mPreloadContacts ? mPersonLookup.preload() : null;
+    }
+
+    /**
+     * Loads the parts of several MMS rows at once, to be used when the rows get converted.
+     */
+    public void prefetchMms(List<BackupRow> rows) {
+        mMmsSupport.prefetchParts(rows);
+    }
+
     public @NotNull ConversionResult convertMessages(final Cursor cursor, DataType dataType)
             throws MessagingException {
+        return convertMessages(new BackupRow.Reader(dataType, cursor).read(), dataType);
+    }
 
-        final Map<String, String> msgMap = getMessageMap(cursor);
-        final Message m = mMessageGenerator.messageForDataType(msgMap, dataType);
+    /**
+     * Converts a row previously read with a {@link BackupRow.Reader}, does not touch the cursor
+     * and can therefore run on a different thread than the one reading the rows.
+     */
+    public @NotNull ConversionResult convertMessages(final BackupRow row, DataType dataType)
+            throws MessagingException {
+
+        final Message m = mMessageGenerator.messageForDataType(row, dataType);
         final ConversionResult result = new ConversionResult(dataType);
         if (m != null) {
-            m.setFlag(Flag.SEEN, markAsSeen(dataType, msgMap));
-            result.add(m, msgMap);
+            m.setFlag(Flag.SEEN, markAsSeen(dataType, row));
+            result.add(m, row);
         }
 
         return result;
@@ -133,13 +159,10 @@ public class MessageConverter {
         final ContentValues values = new ContentValues();
         switch (getDataType(message)) {
             case SMS:
-                if (message.getBody() == null) throw new MessagingException("body is null");
+                final String body = message instanceof FetchedMessage ?
+                        ((FetchedMessage) message).getText() : decodeBody(message);
+                if (body == null) throw new MessagingException("body is null");
 
-                InputStream is = MimeUtility.decodeBody(message.getBody());
-                if (is == null) {
-                    throw new MessagingException("body.getInputStream() is null for " + message.getBody());
-                }
-                final String body = IOUtils.toString(is);
                 final String address = Headers.get(message, Headers.ADDRESS);
                 values.put(SmsConsts.BODY, body);
                 values.put(SmsConsts.ADDRESS, address);
@@ -173,6 +196,16 @@ public class MessageConverter {
         return values;
     }
 
+    private static @Nullable String decodeBody(Message message) throws IOException, MessagingException {
+        if (message.getBody() == null) return null;
+
+        InputStream is = MimeUtility.decodeBody(message.getBody());
+        if (is == null) {
+            throw new MessagingException("body.getInputStream() is null for " + message.getBody());
+        }
+        return IOUtils.toString(is);
+    }
+
     public DataType getDataType(Message message) {
         final String dataTypeHeader = Headers.get(message, Headers.DATATYPE);
         final String typeHeader = Headers.get(message, Headers.TYPE);
@@ -193,28 +226,6 @@ public class MessageConverter {
         }
     }
 
-    private Map<String, String> getMessageMap(Cursor cursor) {
-        final String[] columns = cursor.getColumnNames();
-        final Map<String, String> msgMap = new HashMap<String, String>(columns.length);
-        for (String column : columns) {
-            String value;
-            try {
-                final int index = cursor.getColumnIndex(column);
-                if (index != -1) {
-                    value = cursor.getString(index);
-                } else {
-                    continue;
-                }
-            } catch (SQLiteException ignored) {
-                // this can happen in case of BLOBS in the DB
-                // column type checking is API level >= 11
-                value = "[BLOB]";
-            }
-            msgMap.put(column, value);
-        }
-        return msgMap;
-    }
-
     private static String generateReferenceValue() {
         final StringBuilder sb = new StringBuilder();
         final Random random = new Random();
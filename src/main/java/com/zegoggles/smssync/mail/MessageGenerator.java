@@ -13,7 +13,6 @@ import com.fsck.k9.mail.internet.MimeMessage;
 import com.fsck.k9.mail.internet.MimeMultipart;
 import com.fsck.k9.mail.internet.TextBody;
 import com.zegoggles.smssync.Consts;
-import com.zegoggles.smssync.MmsConsts;
 import com.zegoggles.smssync.SmsConsts;
 import com.zegoggles.smssync.contacts.ContactGroupIds;
 import com.zegoggles.smssync.preferences.AddressStyle;
@@ -23,8 +22,8 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
-import java.util.Map;
 
 import static com.fsck.k9.mail.internet.MimeMessageHelper.setBody;
 import static com.zegoggles.smssync.App.LOCAL_LOGV;
@@ -42,6 +41,7 @@ class MessageGenerator {
     private final AddressStyle mAddressStyle;
     private final MmsSupport mMmsSupport;
     private final CallLogTypes mCallLogTypes;
+    private final boolean mRawMessages;
 
     public MessageGenerator(Context context,
                             Address userAddress,
@@ -51,6 +51,22 @@ class MessageGenerator {
                             boolean mailSubjectPrefix,
                             @Nullable ContactGroupIds contactsToBackup,
                             MmsSupport mmsSupport) {
+        this(context, userAddress, addressStyle, headerGenerator, personLookup, mailSubjectPrefix,
+                contactsToBackup, mmsSupport, false);
+    }
+
+    /**
+     * @param rawMessages if true, SMS and call log entries are generated as {@link RawMessage}s
+     */
+    public MessageGenerator(Context context,
+                            Address userAddress,
+                            AddressStyle addressStyle,
+                            HeaderGenerator headerGenerator,
+                            PersonLookup personLookup,
+                            boolean mailSubjectPrefix,
+                            @Nullable ContactGroupIds contactsToBackup,
+                            MmsSupport mmsSupport,
+                            boolean rawMessages) {
         mHeaderGenerator = headerGenerator;
         mUserAddress = userAddress;
         mAddressStyle = addressStyle;
@@ -61,29 +77,46 @@ class MessageGenerator {
         mCallFormatter = new CallFormatter(mContext.getResources());
         mMmsSupport = mmsSupport;
         mCallLogTypes = CallLogTypes.getCallLogType(new Preferences(context));
+        mRawMessages = rawMessages;
     }
 
-    public  @Nullable Message messageForDataType(Map<String, String> msgMap, DataType dataType) throws MessagingException {
+    public  @Nullable Message messageForDataType(BackupRow row, DataType dataType) throws MessagingException {
         switch (dataType) {
-            case SMS: return messageFromMapSms(msgMap);
-            case MMS: return messageFromMapMms(msgMap);
-            case CALLLOG: return messageFromMapCallLog(msgMap);
+            case SMS: return messageFromRowSms(row);
+            case MMS: return messageFromRowMms(row);
+            case CALLLOG: return messageFromRowCallLog(row);
             default: return null;
         }
     }
 
-    private @Nullable Message messageFromMapSms(Map<String, String> msgMap) throws MessagingException {
-        final String address = msgMap.get(SmsConsts.ADDRESS);
+    private @Nullable Message messageFromRowSms(BackupRow row) throws MessagingException {
+        final String address = row.address;
         if (TextUtils.isEmpty(address)) return null;
 
         PersonRecord record = mPersonLookup.lookupPerson(address);
         if (!includePersonInBackup(record, DataType.SMS)) return null;
 
+        final int messageType = row.type;
+        final Date sentDate = toDate(row.date);
+        if (mRawMessages) {
+            final RawMessage.Builder builder = RawMessage.builder();
+            builder.setHeader("Subject", getSubject(DataType.SMS, record));
+            builder.setTextHeaders();
+            if (SmsConsts.MESSAGE_TYPE_INBOX == messageType) {
+                builder.setHeader("From", record.getAddress(mAddressStyle).toEncodedString());
+                builder.setHeader("To", mUserAddress.toEncodedString());
+            } else {
+                builder.setHeader("To", record.getAddress(mAddressStyle).toEncodedString());
+                builder.setHeader("From", mUserAddress.toEncodedString());
+            }
+            mHeaderGenerator.setHeaders(builder, row, DataType.SMS, address, record, sentDate, messageType);
+            return builder.build(row.body);
+        }
+
         final Message msg = new MimeMessage();
         msg.setSubject(getSubject(DataType.SMS, record));
-        setBody(msg, new TextBody(msgMap.get(SmsConsts.BODY)));
+        setBody(msg, new TextBody(row.body));
 
-        final int messageType = toInt(msgMap.get(SmsConsts.TYPE));
         if (SmsConsts.MESSAGE_TYPE_INBOX == messageType) {
             // Received message
             msg.setFrom(record.getAddress(mAddressStyle));
@@ -94,22 +127,15 @@ class MessageGenerator {
             msg.setFrom(mUserAddress);
         }
 
-        Date sentDate;
-        try {
-            sentDate = new Date(Long.valueOf(msgMap.get(SmsConsts.DATE)));
-        } catch (NumberFormatException n) {
-            Log.e(TAG, "error parsing date", n);
-            sentDate = new Date();
-        }
-        mHeaderGenerator.setHeaders(msg, msgMap, DataType.SMS, address, record, sentDate, messageType);
+        mHeaderGenerator.setHeaders(msg, row, DataType.SMS, address, record, sentDate, messageType);
         msg.setUsing7bitTransport();
         return msg;
     }
 
-    private @Nullable Message messageFromMapMms(Map<String, String> msgMap) throws MessagingException {
-        if (LOCAL_LOGV) Log.v(TAG, "messageFromMapMms(" + msgMap + ")");
+    private @Nullable Message messageFromRowMms(BackupRow row) throws MessagingException {
+        if (LOCAL_LOGV) Log.v(TAG, "messageFromRowMms(" + row + ")");
 
-        final Uri mmsUri = Uri.withAppendedPath(Consts.MMS_PROVIDER, msgMap.get(MmsConsts.ID));
+        final Uri mmsUri = Uri.withAppendedPath(Consts.MMS_PROVIDER, String.valueOf(row.id));
         MmsSupport.MmsDetails details = mMmsSupport.getDetails(mmsUri, mAddressStyle);
 
         if (details.isEmpty()) {
@@ -132,18 +158,14 @@ class MessageGenerator {
             msg.setFrom(mUserAddress);
         }
 
-        Date sentDate;
-        try {
-            sentDate = new Date(1000 * Long.valueOf(msgMap.get(MmsConsts.DATE)));
-        } catch (NumberFormatException n) {
-            Log.e(TAG, "error parsing date", n);
-            sentDate = new Date();
-        }
-        final int msg_box = toInt(msgMap.get("msg_box"));
-        mHeaderGenerator.setHeaders(msg, msgMap, DataType.MMS, details.address, details.getRecipient(), sentDate, msg_box);
+        final Date sentDate = toDate(row.date == BackupRow.NULL ? BackupRow.NULL : 1000 * row.date);
+        mHeaderGenerator.setHeaders(msg, row, DataType.MMS, details.address, details.getRecipient(), sentDate, row.messageBox);
         MimeMultipart body = new MimeMultipart();
 
-        for (BodyPart p : mMmsSupport.getMMSBodyParts(Uri.withAppendedPath(mmsUri, MMS_PART))) {
+        final List<BodyPart> parts = row.parts != null ?
+                mMmsSupport.getMMSBodyParts(row.parts) :
+                mMmsSupport.getMMSBodyParts(Uri.withAppendedPath(mmsUri, MMS_PART));
+        for (BodyPart p : parts) {
             body.addBodyPart(p);
         }
 
@@ -152,29 +174,25 @@ class MessageGenerator {
         return msg;
     }
 
-    private  @Nullable Message messageFromMapCallLog(Map<String, String> msgMap) throws MessagingException {
-        final String address = msgMap.get(CallLog.Calls.NUMBER);
-        final int callType = toInt(msgMap.get(CallLog.Calls.TYPE));
+    private  @Nullable Message messageFromRowCallLog(BackupRow row) throws MessagingException {
+        final String address = row.address;
+        final int callType = row.type;
 
         if (!mCallLogTypes.isTypeEnabled(callType)) {
-            if (LOCAL_LOGV) Log.v(TAG, "ignoring call log entry: " + msgMap);
+            if (LOCAL_LOGV) Log.v(TAG, "ignoring call log entry: " + row);
             return null;
         }
         PersonRecord record = mPersonLookup.lookupPerson(address);
         if (!includePersonInBackup(record, DataType.CALLLOG)) return null;
 
-        final Message msg = new MimeMessage();
-        msg.setSubject(getSubject(DataType.CALLLOG, record));
-
+        final boolean outgoing;
         switch (callType) {
             case CallLog.Calls.OUTGOING_TYPE:
-                msg.setFrom(mUserAddress);
-                msg.setRecipient(Message.RecipientType.TO, record.getAddress(mAddressStyle));
+                outgoing = true;
                 break;
             case CallLog.Calls.MISSED_TYPE:
             case CallLog.Calls.INCOMING_TYPE:
-                msg.setFrom(record.getAddress(mAddressStyle));
-                msg.setRecipient(Message.RecipientType.TO, mUserAddress);
+                outgoing = false;
                 break;
             default:
                 // some weird phones seem to have SMS in their call logs, which is
@@ -183,18 +201,36 @@ class MessageGenerator {
                 return null;
         }
 
-        final int duration = msgMap.get(CallLog.Calls.DURATION) == null ? 0 :
-                toInt(msgMap.get(CallLog.Calls.DURATION));
+        final int duration = row.duration == BackupRow.NULL ? 0 : (int) row.duration;
+        final String text = mCallFormatter.format(callType, record.getNumber(), duration);
+        final Date sentDate = toDate(row.date);
+        if (mRawMessages) {
+            final RawMessage.Builder builder = RawMessage.builder();
+            builder.setHeader("Subject", getSubject(DataType.CALLLOG, record));
+            if (outgoing) {
+                builder.setHeader("From", mUserAddress.toEncodedString());
+                builder.setHeader("To", record.getAddress(mAddressStyle).toEncodedString());
+            } else {
+                builder.setHeader("From", record.getAddress(mAddressStyle).toEncodedString());
+                builder.setHeader("To", mUserAddress.toEncodedString());
+            }
+            builder.setTextHeaders();
+            mHeaderGenerator.setHeaders(builder, row, DataType.CALLLOG, address, record, sentDate, callType);
+            return builder.build(text);
+        }
 
-        setBody(msg, new TextBody(mCallFormatter.format(callType, record.getNumber(), duration)));
-        Date sentDate;
-        try {
-            sentDate = new Date(Long.valueOf(msgMap.get(CallLog.Calls.DATE)));
-        } catch (NumberFormatException n) {
-            Log.e(TAG, "error parsing date", n);
-            sentDate = new Date();
+        final Message msg = new MimeMessage();
+        msg.setSubject(getSubject(DataType.CALLLOG, record));
+        if (outgoing) {
+            msg.setFrom(mUserAddress);
+            msg.setRecipient(Message.RecipientType.TO, record.getAddress(mAddressStyle));
+        } else {
+            msg.setFrom(record.getAddress(mAddressStyle));
+            msg.setRecipient(Message.RecipientType.TO, mUserAddress);
         }
-        mHeaderGenerator.setHeaders(msg, msgMap, DataType.CALLLOG, address, record, sentDate, callType);
+
+        setBody(msg, new TextBody(text));
+        mHeaderGenerator.setHeaders(msg, row, DataType.CALLLOG, address, record, sentDate, callType);
         msg.setUsing7bitTransport();
         return msg;
     }
@@ -221,11 +257,12 @@ class MessageGenerator {
         return backup;
     }
 
-    private static int toInt(String s) {
-        try {
-             return Integer.valueOf(s);
-        } catch (NumberFormatException e) {
-            return -1;
+    private static Date toDate(long millis) {
+        if (millis == BackupRow.NULL) {
+            Log.e(TAG, "missing date");
+            return new Date();
+        } else {
+            return new Date(millis);
         }
     }
 }
@@ -2,6 +2,7 @@ package com.zegoggles.smssync.mail;
 
 import android.content.ContentResolver;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
 import android.net.Uri;
 import android.text.TextUtils;
 import android.util.Log;
@@ -17,14 +18,24 @@ import org.jetbrains.annotations.NotNull;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 
 import static com.zegoggles.smssync.App.LOCAL_LOGV;
 import static com.zegoggles.smssync.App.TAG;
 import static com.zegoggles.smssync.Consts.MMS_PART;
 
 class MmsSupport {
+    private static final String PART_ID = "_id";
+    private static final String PART_MESSAGE_ID = "mid";
+    private static final String PART_CONTENT_TYPE = "ct";
+    private static final String PART_CONTENT_LOCATION = "cl";
+    private static final String PART_TEXT = "text";
+    private static final String[] PART_PROJECTION = {
+        PART_ID, PART_MESSAGE_ID, PART_CONTENT_TYPE, PART_CONTENT_LOCATION, PART_TEXT
+    };
 
     private final PersonLookup personLookup;
     private final ContentResolver resolver;
@@ -114,36 +125,106 @@ class MmsSupport {
         return new MmsDetails(inbound, recipients, records, addresses);
     }
 
+    /**
+     * Loads the parts of all given MMS rows with a single query, instead of one query per message,
+     * and attaches them to the rows (see {@link BackupRow#parts}).
+     * Addresses are still queried per message, the provider only exposes them per message.
+     */
+    public void prefetchParts(List<BackupRow> rows) {
+        if (rows.isEmpty()) return;
+
+        final Map<Long, List<Part>> partsById = new HashMap<Long, List<Part>>(rows.size());
+        final StringBuilder ids = new StringBuilder();
+        for (BackupRow row : rows) {
+            if (ids.length() > 0) ids.append(',');
+            ids.append(row.id);
+            partsById.put(row.id, new ArrayList<Part>());
+        }
+
+        final Cursor cursor;
+        try {
+            cursor = resolver.query(Uri.withAppendedPath(Consts.MMS_PROVIDER, MMS_PART),
+                    PART_PROJECTION,
+                    PART_MESSAGE_ID + " IN (" + ids + ")",
+                    null,
+                    PART_MESSAGE_ID + ", " + PART_ID);
+        } catch (SQLiteException e) {
+            // parts will be queried for each message
+            Log.w(TAG, "error prefetching parts", e);
+            return;
+        }
+        if (cursor == null) return;
+        try {
+            final int messageIdIndex = cursor.getColumnIndex(PART_MESSAGE_ID);
+            while (cursor.moveToNext()) {
+                final List<Part> parts = partsById.get(cursor.getLong(messageIdIndex));
+                if (parts != null) {
+                    parts.add(Part.read(cursor));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        for (BackupRow row : rows) {
+            row.parts = partsById.get(row.id);
+        }
+    }
+
     public List<BodyPart> getMMSBodyParts(final Uri uriPart) throws MessagingException {
-        final List<BodyPart> parts = new ArrayList<BodyPart>();
+        final List<Part> parts = new ArrayList<Part>();
         Cursor curPart = resolver.query(uriPart, null, null, null, null);
 
         // _id, mid, seq, ct, name, chset, cd, fn, cid, cl, ctt_s, ctt_t, _data, text
         while (curPart != null && curPart.moveToNext()) {
-            final String id = curPart.getString(curPart.getColumnIndex("_id"));
-            final String contentType = curPart.getString(curPart.getColumnIndex("ct"));
-            final String fileName = curPart.getString(curPart.getColumnIndex("cl"));
-            final String text = curPart.getString(curPart.getColumnIndex("text"));
+            parts.add(Part.read(curPart));
+        }
 
+        if (curPart != null) curPart.close();
+        return getMMSBodyParts(parts);
+    }
+
+    public List<BodyPart> getMMSBodyParts(final List<Part> parts) throws MessagingException {
+        final List<BodyPart> bodyParts = new ArrayList<BodyPart>(parts.size());
+        for (Part part : parts) {
             if (LOCAL_LOGV) {
-                Log.v(TAG, String.format(Locale.ENGLISH, "processing part %s, name=%s (%s)", id,
-                        fileName, contentType));
+                Log.v(TAG, String.format(Locale.ENGLISH, "processing part %s, name=%s (%s)", part.id,
+                        part.fileName, part.contentType));
             }
 
-            if (!TextUtils.isEmpty(contentType) && contentType.startsWith("text/") && !TextUtils.isEmpty(text)) {
+            if (!TextUtils.isEmpty(part.contentType) && part.contentType.startsWith("text/") && !TextUtils.isEmpty(part.text)) {
                 // text
-                parts.add(new MimeBodyPart(new TextBody(text), contentType));
+                bodyParts.add(new MimeBodyPart(new TextBody(part.text), part.contentType));
             } else //noinspection StatementWithEmptyBody
-                if ("application/smil".equalsIgnoreCase(contentType)) {
+                if ("application/smil".equalsIgnoreCase(part.contentType)) {
                     // silently ignore SMIL stuff
                 } else {
                     // attach everything else
-                    final Uri partUri = Uri.withAppendedPath(Consts.MMS_PROVIDER, MMS_PART + "/" + id);
-                    parts.add(Attachment.createPartFromUri(resolver, partUri, fileName, contentType));
+                    final Uri partUri = Uri.withAppendedPath(Consts.MMS_PROVIDER, MMS_PART + "/" + part.id);
+                    bodyParts.add(Attachment.createPartFromUri(resolver, partUri, part.fileName, part.contentType));
                 }
         }
+        return bodyParts;
+    }
 
-        if (curPart != null) curPart.close();
-        return parts;
+    /**
+     * The columns of an MMS part needed for a backup, attachment data is read later.
+     */
+    static class Part {
+        final String id, contentType, fileName, text;
+
+        Part(String id, String contentType, String fileName, String text) {
+            this.id = id;
+            this.contentType = contentType;
+            this.fileName = fileName;
+            this.text = text;
+        }
+
+        static Part read(Cursor cursor) {
+            return new Part(
+                cursor.getString(cursor.getColumnIndex(PART_ID)),
+                cursor.getString(cursor.getColumnIndex(PART_CONTENT_TYPE)),
+                cursor.getString(cursor.getColumnIndex(PART_CONTENT_LOCATION)),
+                cursor.getString(cursor.getColumnIndex(PART_TEXT)));
+        }
     }
 }
@@ -0,0 +1,227 @@
+package com.zegoggles.smssync.mail;
+
+import android.annotation.TargetApi;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.net.Uri;
+import android.os.Build;
+import android.provider.ContactsContract;
+import android.util.Log;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.zegoggles.smssync.App.LOCAL_LOGV;
+import static com.zegoggles.smssync.App.TAG;
+
+/**
+ * Keeps the results of {@link PersonLookup} across backups, so that incremental backups do not have to
+ * query the contacts provider again for the same few addresses.
+ * <p>
+ * Addresses which belong to a contact are cached until the contacts change. Changes are detected with
+ * the last updated / deleted timestamps of the contacts provider (API level 18 and above) and with a
+ * {@link ContentObserver} while the process is running. Older devices cannot detect changes made while
+ * the app was not running, so there the cache is cleared once per process.
+ * Addresses without a contact are cached for {@link #NEGATIVE_TTL_MILLIS}, they might be added to the
+ * contacts later.
+ */
+public class PersonCache {
+    public static final long NEGATIVE_TTL_MILLIS = 24 * 60 * 60 * 1000L;
+
+    static final String DATABASE_NAME = "person_cache.db";
+    private static final int DATABASE_VERSION = 1;
+
+    private static final String TABLE = "people";
+    private static final String COLUMN_ADDRESS = "address";
+    private static final String COLUMN_CONTACT_ID = "contact_id";
+    private static final String COLUMN_NAME = "name";
+    private static final String COLUMN_EMAIL = "email";
+    private static final String COLUMN_NUMBER = "number";
+    private static final String COLUMN_CREATED = "created";
+
+    private static final String METADATA_TABLE = "metadata";
+    private static final String COLUMN_KEY = "key";
+    private static final String COLUMN_VALUE = "value";
+    private static final String KEY_CONTACTS_VERSION = "contacts_version";
+
+    // identifies this process on devices without contacts timestamps
+    private static final long PROCESS_VERSION = -System.currentTimeMillis();
+
+    private static PersonCache instance;
+
+    private final Context context;
+    private final DatabaseHelper helper;
+    private final long negativeTtlMillis;
+    private final AtomicBoolean contactsChanged = new AtomicBoolean();
+
+    /* package, for testing */ PersonCache(Context context, long negativeTtlMillis) {
+        this.context = context;
+        this.helper = new DatabaseHelper(context);
+        this.negativeTtlMillis = negativeTtlMillis;
+    }
+
+    public static synchronized PersonCache get(Context context) {
+        final Context appContext = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+        if (instance == null || instance.context != appContext) {
+            instance = new PersonCache(appContext, NEGATIVE_TTL_MILLIS);
+            instance.observe(appContext.getContentResolver());
+        }
+        return instance;
+    }
+
+    /**
+     * Clears the cache if the contacts have changed since it was last validated.
+     */
+    public void validate(ContentResolver resolver) {
+        final long version = getContactsVersion(resolver);
+        if (contactsChanged.getAndSet(false) || version != getStoredVersion()) {
+            if (LOCAL_LOGV) Log.v(TAG, "contacts changed, clearing person cache");
+            clear();
+            setStoredVersion(version);
+        }
+    }
+
+    /**
+     * @return the cached record, or null if the address is not cached or the entry expired
+     */
+    public @Nullable PersonRecord get(@NotNull String address) {
+        Cursor c = null;
+        try {
+            c = helper.getReadableDatabase().query(TABLE,
+                    new String[] { COLUMN_CONTACT_ID, COLUMN_NAME, COLUMN_EMAIL, COLUMN_NUMBER, COLUMN_CREATED },
+                    COLUMN_ADDRESS + " = ?", new String[] { address }, null, null, null);
+            if (!c.moveToFirst()) return null;
+
+            final long id = c.getLong(0);
+            if (id <= 0 && System.currentTimeMillis() - c.getLong(4) > negativeTtlMillis) {
+                return null;
+            }
+            return new PersonRecord(id, c.getString(1), c.getString(2), c.getString(3));
+        } catch (SQLiteException e) {
+            Log.w(TAG, "error reading person cache", e);
+            return null;
+        } finally {
+            if (c != null) c.close();
+        }
+    }
+
+    public void put(@NotNull String address, @NotNull PersonRecord record) {
+        final ContentValues values = new ContentValues();
+        values.put(COLUMN_ADDRESS, address);
+        values.put(COLUMN_CONTACT_ID, record.getContactId());
+        values.put(COLUMN_NAME, record.getRawName());
+        values.put(COLUMN_EMAIL, record.getRawEmail());
+        values.put(COLUMN_NUMBER, record.getRawNumber());
+        values.put(COLUMN_CREATED, System.currentTimeMillis());
+        try {
+            helper.getWritableDatabase().replace(TABLE, null, values);
+        } catch (SQLiteException e) {
+            Log.w(TAG, "error writing person cache", e);
+        }
+    }
+
+    public void clear() {
+        try {
+            helper.getWritableDatabase().delete(TABLE, null, null);
+        } catch (SQLiteException e) {
+            Log.w(TAG, "error clearing person cache", e);
+        }
+    }
+
+    /* package, for testing */ void onContactsChanged() {
+        contactsChanged.set(true);
+    }
+
+    private void observe(ContentResolver resolver) {
+        // without a handler changes are delivered on a binder thread
+        resolver.registerContentObserver(ContactsContract.AUTHORITY_URI, true, new ContentObserver(null) {
+            @Override public void onChange(boolean selfChange) {
+                onContactsChanged();
+            }
+        });
+    }
+
+    private long getStoredVersion() {
+        Cursor c = null;
+        try {
+            c = helper.getReadableDatabase().query(METADATA_TABLE, new String[] { COLUMN_VALUE },
+                    COLUMN_KEY + " = ?", new String[] { KEY_CONTACTS_VERSION }, null, null, null);
+            return c.moveToFirst() ? c.getLong(0) : 0;
+        } catch (SQLiteException e) {
+            Log.w(TAG, "error reading person cache", e);
+            return 0;
+        } finally {
+            if (c != null) c.close();
+        }
+    }
+
+    private void setStoredVersion(long version) {
+        final ContentValues values = new ContentValues();
+        values.put(COLUMN_KEY, KEY_CONTACTS_VERSION);
+        values.put(COLUMN_VALUE, version);
+        try {
+            helper.getWritableDatabase().replace(METADATA_TABLE, null, values);
+        } catch (SQLiteException e) {
+            Log.w(TAG, "error writing person cache", e);
+        }
+    }
+
+    /**
+     * @return a value which changes whenever contacts are updated or deleted
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private static long getContactsVersion(ContentResolver resolver) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            return PROCESS_VERSION;
+        }
+        return Math.max(
+            getMaxTimestamp(resolver, ContactsContract.Contacts.CONTENT_URI,
+                    ContactsContract.Contacts.CONTACT_LAST_UPDATED_TIMESTAMP),
+            getMaxTimestamp(resolver, ContactsContract.DeletedContacts.CONTENT_URI,
+                    ContactsContract.DeletedContacts.CONTACT_DELETED_TIMESTAMP));
+    }
+
+    private static long getMaxTimestamp(ContentResolver resolver, Uri uri, String column) {
+        Cursor c = null;
+        try {
+            c = resolver.query(uri, new String[] { column }, null, null, column + " DESC LIMIT 1");
+            return c != null && c.moveToFirst() ? c.getLong(0) : 0;
+        } catch (SecurityException e) {
+            Log.w(TAG, "no access to contacts", e);
+            return PROCESS_VERSION;
+        } finally {
+            if (c != null) c.close();
+        }
+    }
+
+    private static class DatabaseHelper extends SQLiteOpenHelper {
+        DatabaseHelper(Context context) {
+            super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + TABLE + " (" +
+                    COLUMN_ADDRESS + " TEXT PRIMARY KEY, " +
+                    COLUMN_CONTACT_ID + " INTEGER NOT NULL, " +
+                    COLUMN_NAME + " TEXT, " +
+                    COLUMN_EMAIL + " TEXT, " +
+                    COLUMN_NUMBER + " TEXT, " +
+                    COLUMN_CREATED + " INTEGER NOT NULL)");
+            db.execSQL("CREATE TABLE " + METADATA_TABLE + " (" +
+                    COLUMN_KEY + " TEXT PRIMARY KEY, " +
+                    COLUMN_VALUE + " INTEGER NOT NULL)");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        }
+    }
+}
@@ -8,11 +8,11 @@ import android.os.Build;
 import android.provider.ContactsContract;
 import android.text.TextUtils;
 import android.util.Log;
+import com.zegoggles.smssync.utils.ConcurrentLruCache;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
-import java.util.LinkedHashMap;
 import java.util.Locale;
-import java.util.Map;
 
 import static com.zegoggles.smssync.App.LOCAL_LOGV;
 import static com.zegoggles.smssync.App.TAG;
@@ -30,53 +30,110 @@ public class PersonLookup {
 
     private static final int MAX_PEOPLE_CACHE_SIZE = 500;
 
-    // simple LRU cache
-    private final Map<String, PersonRecord> mPeopleCache =
-            new LinkedHashMap<String, PersonRecord>(MAX_PEOPLE_CACHE_SIZE + 1, .75F, true) {
-                @Override
-                public boolean removeEldestEntry(Map.Entry<String, PersonRecord> eldest) {
-                    return size() > MAX_PEOPLE_CACHE_SIZE;
-                }
-            };
+    // shared by the conversion threads
+    private final ConcurrentLruCache<String, PersonRecord> mPeopleCache =
+            new ConcurrentLruCache<String, PersonRecord>(MAX_PEOPLE_CACHE_SIZE);
 
     private final ContentResolver mResolver;
+    private final @Nullable PersonCache mPersistentCache;
+    private volatile ContactIndex mIndex;
+    private volatile boolean mPersistentCacheValidated;
 
     public PersonLookup(ContentResolver resolver) {
+        this(resolver, null);
+    }
+
+    /**
+     * @param persistentCache cache to keep lookups across runs, or null
+     */
+    public PersonLookup(ContentResolver resolver, @Nullable PersonCache persistentCache) {
         mResolver = resolver;
+        mPersistentCache = persistentCache;
         Log.d(TAG, String.format(Locale.ENGLISH, "using %s contacts API", NEW_CONTACT_API ? "new" : "old"));
     }
 
-    /* Look up a person */
+    /* Look up a person, safe to call from multiple threads */
     @SuppressWarnings("deprecation")
     public @NotNull PersonRecord lookupPerson(final String address) {
         if (TextUtils.isEmpty(address)) {
             return new PersonRecord(0, null, null, "-1");
-        } else if (!mPeopleCache.containsKey(address)) {
-            Uri personUri = Uri.withAppendedPath(NEW_CONTACT_API ? ECLAIR_CONTENT_FILTER_URI :
-                    android.provider.Contacts.Phones.CONTENT_FILTER_URL, Uri.encode(address));
-
-            Cursor c = mResolver.query(personUri, PHONE_PROJECTION, null, null, null);
-            final PersonRecord record;
-            if (c != null && c.moveToFirst()) {
-                long id = c.getLong(c.getColumnIndex(PHONE_PROJECTION[0]));
-                String number = NEW_CONTACT_API ? address : c.getString(c.getColumnIndex(PHONE_PROJECTION[2]));
-
-                record = new PersonRecord(
-                    id,
-                    c.getString(c.getColumnIndex(PHONE_PROJECTION[1])),
-                    getPrimaryEmail(id, number),
-                    number
-                );
-
-            } else {
-                if (LOCAL_LOGV) Log.v(TAG, "Looked up unknown address: " + address);
-                record = new PersonRecord(0, null, null, address);
+        }
+        final ContactIndex index = mIndex;
+        if (index != null) {
+            final PersonRecord record = index.lookup(address);
+            return record != null ? record : new PersonRecord(0, null, null, address);
+        }
+        PersonRecord record = mPeopleCache.get(address);
+        if (record == null) {
+            record = getPersistent(address);
+        }
+        if (record == null) {
+            // concurrent misses for the same address might both query, the records are equal
+            record = queryPerson(address);
+            mPeopleCache.put(address, record);
+            if (mPersistentCache != null) {
+                mPersistentCache.put(address, record);
+            }
+        }
+        return record;
+    }
+
+    private PersonRecord getPersistent(String address) {
+        if (mPersistentCache == null) return null;
+        if (!mPersistentCacheValidated) {
+            synchronized (this) {
+                if (!mPersistentCacheValidated) {
+                    mPersistentCache.validate(mResolver);
+                    mPersistentCacheValidated = true;
+                }
             }
+        }
+        final PersonRecord record = mPersistentCache.get(address);
+        if (record != null) {
             mPeopleCache.put(address, record);
+        }
+        return record;
+    }
+
+    /**
+     * Reads all contacts into memory, later lookups are served from there without querying the
+     * contacts provider. Only supported with the new contacts API.
+     *
+     * @return the index, or null if not supported
+     */
+    public @Nullable ContactIndex preload() {
+        if (!NEW_CONTACT_API) return null;
+        final ContactIndex index = ContactIndex.build(mResolver);
+        if (LOCAL_LOGV) Log.v(TAG, "preloaded " + index);
+        mIndex = index;
+        return index;
+    }
 
-            if (c != null) c.close();
+    @SuppressWarnings("deprecation")
+    private @NotNull PersonRecord queryPerson(final String address) {
+        Uri personUri = Uri.withAppendedPath(NEW_CONTACT_API ? ECLAIR_CONTENT_FILTER_URI :
+                android.provider.Contacts.Phones.CONTENT_FILTER_URL, Uri.encode(address));
+
+        Cursor c = mResolver.query(personUri, PHONE_PROJECTION, null, null, null);
+        final PersonRecord record;
+        if (c != null && c.moveToFirst()) {
+            long id = c.getLong(c.getColumnIndex(PHONE_PROJECTION[0]));
+            String number = NEW_CONTACT_API ? address : c.getString(c.getColumnIndex(PHONE_PROJECTION[2]));
+
+            record = new PersonRecord(
+                id,
+                c.getString(c.getColumnIndex(PHONE_PROJECTION[1])),
+                getPrimaryEmail(id, number),
+                number
+            );
+
+        } else {
+            if (LOCAL_LOGV) Log.v(TAG, "Looked up unknown address: " + address);
+            record = new PersonRecord(0, null, null, address);
         }
-        return mPeopleCache.get(address);
+
+        if (c != null) c.close();
+        return record;
     }
 
     @TargetApi(Build.VERSION_CODES.ECLAIR)
@@ -128,7 +185,7 @@ public class PersonLookup {
     }
 
     // Returns whether the given e-mail address is a Gmail address or not.
-    private static boolean isGmailAddress(String email) {
+    static boolean isGmailAddress(String email) {
         return email != null &&
                 (email.toLowerCase(Locale.ENGLISH).endsWith("gmail.com") ||
                         email.toLowerCase(Locale.ENGLISH).endsWith("googlemail.com"));
@@ -62,6 +62,19 @@ public class PersonRecord {
         return !TextUtils.isEmpty(name) ? name : getNumber();
     }
 
+    /* values as looked up, without fallbacks, for caching */
+    String getRawName() {
+        return name;
+    }
+
+    String getRawEmail() {
+        return email;
+    }
+
+    String getRawNumber() {
+        return number;
+    }
+
     public String toString() {
         return String.format(Locale.ENGLISH, "[name=%s email=%s id=%d]", getName(), email, _id);
     }
@@ -0,0 +1,213 @@
+package com.zegoggles.smssync.mail;
+
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.internet.MimeHeader;
+import com.fsck.k9.mail.internet.MimeMessage;
+import com.fsck.k9.mail.internet.MimeMessageHelper;
+import com.fsck.k9.mail.internet.TextBody;
+import org.apache.james.mime4j.util.MimeUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * A plain text message serialized straight from a provider row, used for SMS and call log entries
+ * instead of building a {@link MimeMessage} with header, address and body objects which then gets
+ * serialized again for the APPEND.
+ * <p>
+ * The data is the same as {@link MimeMessage#writeTo(OutputStream)} writes for the equivalent message
+ * with a quoted-printable {@link TextBody}, with CRLF line endings, so it can be sent as a literal as is.
+ * Only the headers set through the {@link Builder}, flags and {@link #writeTo(OutputStream)} are available,
+ * the other accessors of {@link MimeMessage} are not populated.
+ */
+class RawMessage extends MimeMessage {
+    private static final String MIME_DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss Z";
+    private static final byte[] TEXT_HEADERS = textHeaders();
+
+    private static final ThreadLocal<Builder> BUILDER = new ThreadLocal<Builder>() {
+        @Override protected Builder initialValue() {
+            return new Builder();
+        }
+    };
+
+    private final byte[] data;
+    /** header names and values, alternating */
+    private final String[] headers;
+
+    private RawMessage(byte[] data, String[] headers) {
+        this.data = data;
+        this.headers = headers;
+    }
+
+    /**
+     * @return the builder of the current thread, reset and ready for a new message
+     */
+    static Builder builder() {
+        final Builder builder = BUILDER.get();
+        builder.reset();
+        return builder;
+    }
+
+    @Override
+    public String[] getHeader(String name) {
+        return Headers.find(headers, name);
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(data);
+    }
+
+    /**
+     * @return the number of bytes written by {@link #writeTo(OutputStream)}, which already has CRLF line endings
+     */
+    int getLength() {
+        return data.length;
+    }
+
+    /**
+     * Writes a message into a buffer which is reused for all messages built on the same thread.
+     * Headers are written in the order they are set, like {@link MimeHeader} does.
+     */
+    static class Builder implements HeaderGenerator.HeaderTarget {
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(2048);
+        private final CrlfOutputStream out = new CrlfOutputStream(buffer);
+        private final List<String> headers = new ArrayList<String>();
+        private final SimpleDateFormat dateFormat = new SimpleDateFormat(MIME_DATE_FORMAT, Locale.US);
+        private byte[] ascii = new byte[256];
+
+        private Builder() {
+        }
+
+        private void reset() {
+            buffer.reset();
+            out.reset();
+            headers.clear();
+        }
+
+        /**
+         * Sets a header, does nothing if <code>value</code> is null.
+         */
+        @Override
+        public void setHeader(String name, String value) throws MessagingException {
+            if (name == null || value == null) return;
+
+            headers.add(name);
+            headers.add(value);
+            try {
+                if (hasToBeEncoded(value)) {
+                    // rare, leave the encoded-word to K9 to get the same result
+                    final MimeHeader header = new MimeHeader();
+                    header.setHeader(name, value);
+                    header.writeTo(out);
+                } else {
+                    writeAscii(name);
+                    writeAscii(": ");
+                    writeAscii(value);
+                    writeAscii("\r\n");
+                }
+            } catch (IOException e) {
+                throw new MessagingException("error writing header", e);
+            }
+        }
+
+        /**
+         * Sets the <code>Date</code> header like {@link MimeMessage#setSentDate(Date, boolean)}, in the default
+         * time zone.
+         */
+        @Override
+        public void setSentDate(Date sentDate) throws MessagingException {
+            dateFormat.setTimeZone(TimeZone.getDefault());
+            setHeader("Date", dateFormat.format(sentDate));
+        }
+
+        /**
+         * Writes the MIME headers of a text body, as they are set by
+         * {@link MimeMessageHelper#setBody} for a quoted-printable {@link TextBody}.
+         */
+        void setTextHeaders() throws MessagingException {
+            try {
+                out.write(TEXT_HEADERS, 0, TEXT_HEADERS.length);
+            } catch (IOException e) {
+                throw new MessagingException("error writing header", e);
+            }
+        }
+
+        /**
+         * Finishes the message with the quoted-printable encoded <code>text</code> as body.
+         */
+        RawMessage build(String text) throws MessagingException {
+            try {
+                writeAscii("\r\n");
+                final TextBody body = new TextBody(text);
+                body.setEncoding(MimeUtil.ENC_QUOTED_PRINTABLE);
+                body.writeTo(out);
+                out.flush();
+            } catch (IOException e) {
+                throw new MessagingException("error writing body", e);
+            }
+            final RawMessage message = new RawMessage(buffer.toByteArray(), headers.toArray(new String[headers.size()]));
+            reset();
+            return message;
+        }
+
+        private void writeAscii(String s) throws IOException {
+            final int length = s.length();
+            if (length > ascii.length) {
+                ascii = new byte[Math.max(length, 2 * ascii.length)];
+            }
+            for (int i = 0; i < length; i++) {
+                ascii[i] = (byte) s.charAt(i);
+            }
+            out.write(ascii, 0, length);
+        }
+    }
+
+    /**
+     * Same check as {@link MimeHeader} uses before writing a header value.
+     */
+    static boolean hasToBeEncoded(@NotNull String text) {
+        for (int i = 0; i < text.length(); i++) {
+            final char c = text.charAt(i);
+            if ((c < 0x20 || 0x7e < c) && c != 0x0a && c != 0x0d && c != 0x09) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Lets K9 write the headers of an empty text message once, so they are always the same as
+     * the ones written for a {@link MimeMessage}.
+     */
+    private static byte[] textHeaders() {
+        try {
+            final MimeMessage prototype = new MimeMessage();
+            // qualified, MimeMessage#setBody(Body) hides a static import here
+            MimeMessageHelper.setBody(prototype, new TextBody(""));
+            prototype.setUsing7bitTransport();
+
+            final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            final CrlfOutputStream out = new CrlfOutputStream(buffer);
+            prototype.writeTo(out);
+            out.flush();
+            final byte[] message = buffer.toByteArray();
+            // drop the empty line separating the headers from the (empty) body
+            final byte[] headers = new byte[message.length - 2];
+            System.arraycopy(message, 0, headers, 0, headers.length);
+            return headers;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } catch (MessagingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
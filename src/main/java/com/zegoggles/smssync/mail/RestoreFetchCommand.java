@@ -0,0 +1,221 @@
+package com.zegoggles.smssync.mail;
+
+import com.fsck.k9.mail.internet.MimeHeader;
+import com.fsck.k9.mail.internet.MimeUtility;
+import org.apache.commons.io.IOUtils;
+import org.apache.james.mime4j.codec.Base64InputStream;
+import org.apache.james.mime4j.codec.QuotedPrintableInputStream;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A <code>UID FETCH</code> of only the parts of backed up SMS and call log entries which are needed to restore
+ * them: the headers written by {@link HeaderGenerator} and, for SMS, the text
+ * (<code>BODY.PEEK[HEADER.FIELDS (...)]</code> and <code>BODY.PEEK[TEXT]</code>).
+ * The responses are parsed straight into {@link FetchedMessage}s.
+ * <p>
+ * K9 reads literals of responses without a callback into US-ASCII strings, which is fine for headers
+ * and quoted-printable, base64 or plain ASCII text. Messages with other text, e.g. raw 8bit or multipart
+ * bodies, are left out and have to be fetched completely.
+ */
+final class RestoreFetchCommand {
+    static final String[] FIELDS = {
+        Headers.DATATYPE,
+        Headers.TYPE,
+        Headers.ADDRESS,
+        Headers.DATE,
+        Headers.DURATION,
+        Headers.STATUS,
+        Headers.PROTOCOL,
+        Headers.SERVICE_CENTER,
+        Headers.READ,
+        MimeHeader.HEADER_CONTENT_TYPE,
+        MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING
+    };
+
+    private static final List<String> IDENTITY_ENCODINGS = Arrays.asList("7bit", "8bit", "binary");
+
+    private final boolean fetchText;
+    private long bytes;
+
+    /**
+     * @param fetchText true to fetch the text as well as the headers, for SMS
+     */
+    RestoreFetchCommand(boolean fetchText) {
+        this.fetchText = fetchText;
+    }
+
+    String getCommand(Collection<String> uids) {
+        final StringBuilder sb = new StringBuilder("UID FETCH ");
+        boolean first = true;
+        for (String uid : uids) {
+            if (!first) sb.append(',');
+            sb.append(uid);
+            first = false;
+        }
+        sb.append(" (UID BODY.PEEK[HEADER.FIELDS (");
+        for (int i = 0; i < FIELDS.length; i++) {
+            if (i > 0) sb.append(' ');
+            sb.append(FIELDS[i]);
+        }
+        sb.append(")]");
+        if (fetchText) {
+            sb.append(" BODY.PEEK[TEXT]");
+        }
+        return sb.append(')').toString();
+    }
+
+    /**
+     * @param responses the untagged responses to the command
+     * @return the messages which could be parsed, by UID
+     */
+    @NotNull Map<String, FetchedMessage> parse(List<? extends List<?>> responses) {
+        final Map<String, FetchedMessage> messages = new HashMap<String, FetchedMessage>();
+        for (List<?> response : responses) {
+            if (response.size() < 3 ||
+                !"FETCH".equalsIgnoreCase(String.valueOf(response.get(1))) ||
+                !(response.get(2) instanceof List)) {
+                continue;
+            }
+            final FetchedMessage message = parseFetch((List<?>) response.get(2));
+            if (message != null) {
+                messages.put(message.getUid(), message);
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * @return the number of bytes of headers and text parsed so far
+     */
+    long getBytes() {
+        return bytes;
+    }
+
+    private @Nullable FetchedMessage parseFetch(List<?> items) {
+        String uid = null, headers = null, text = null;
+        for (int i = 0; i < items.size() - 1; i++) {
+            if (!(items.get(i) instanceof String)) continue;
+
+            final String key = ((String) items.get(i)).toUpperCase(Locale.ENGLISH);
+            if ("UID".equals(key)) {
+                uid = String.valueOf(items.get(++i));
+            } else if (key.startsWith("BODY")) {
+                // K9 parses BODY[TEXT] into the atom BODY followed by a list with the section
+                String section = key.substring(4);
+                if (section.length() == 0 && items.get(i + 1) instanceof List) {
+                    final List<?> sectionList = (List<?>) items.get(++i);
+                    section = sectionList.isEmpty() ? "" : String.valueOf(sectionList.get(0)).toUpperCase(Locale.ENGLISH);
+                }
+                if (i + 1 >= items.size() || !(items.get(i + 1) instanceof String)) continue;
+
+                final String value = (String) items.get(++i);
+                if (section.contains("HEADER.FIELDS")) {
+                    headers = value;
+                } else if (section.contains("TEXT")) {
+                    text = value;
+                }
+            }
+        }
+        if (uid == null || headers == null || (fetchText && text == null)) return null;
+
+        bytes += headers.length() + (text == null ? 0 : text.length());
+        final String[] fields = parseHeaders(headers);
+        String decoded = null;
+        if (fetchText) {
+            decoded = decodeText(text, find(fields, MimeHeader.HEADER_CONTENT_TYPE),
+                    find(fields, MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING));
+            if (decoded == null) return null;
+        }
+        return new FetchedMessage(uid, fields, decoded);
+    }
+
+    /**
+     * @return header names and values, alternating, with values unfolded and encoded-words decoded
+     */
+    static String[] parseHeaders(String block) {
+        final List<String> fields = new ArrayList<String>();
+        StringBuilder field = null;
+        for (String line : block.split("\r?\n")) {
+            if (line.length() == 0) continue;
+
+            if ((line.charAt(0) == ' ' || line.charAt(0) == '\t') && field != null) {
+                field.append(line);
+            } else {
+                addField(fields, field);
+                field = new StringBuilder(line);
+            }
+        }
+        addField(fields, field);
+        return fields.toArray(new String[fields.size()]);
+    }
+
+    private static void addField(List<String> fields, StringBuilder field) {
+        if (field == null) return;
+
+        final int colon = field.indexOf(":");
+        if (colon <= 0) return;
+        fields.add(field.substring(0, colon).trim());
+        fields.add(MimeUtility.unfoldAndDecode(field.substring(colon + 1).trim()));
+    }
+
+    /**
+     * Decodes the text like {@link MimeUtility#decodeBody} followed by reading it in the charset of the
+     * content type, UTF-8 if there is none.
+     * @return the decoded text, or null if it is not plain text in a supported encoding and charset
+     */
+    static @Nullable String decodeText(String text, @Nullable String contentType, @Nullable String encoding) {
+        // non-ASCII bytes have been replaced while reading the literal
+        if (text.indexOf('\uFFFD') >= 0) return null;
+        if (contentType != null && !contentType.toLowerCase(Locale.ENGLISH).startsWith("text/plain")) return null;
+
+        final String charset = getCharset(contentType);
+        if (charset == null) return null;
+
+        try {
+            InputStream in = new ByteArrayInputStream(text.getBytes("US-ASCII"));
+            if ("quoted-printable".equalsIgnoreCase(encoding)) {
+                in = new QuotedPrintableInputStream(in);
+            } else if ("base64".equalsIgnoreCase(encoding)) {
+                in = new Base64InputStream(in);
+            } else if (encoding != null && !IDENTITY_ENCODINGS.contains(encoding.toLowerCase(Locale.ENGLISH))) {
+                return null;
+            }
+            return IOUtils.toString(in, charset);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the charset parameter of the content type, UTF-8 if there is none, or null if it is not
+     * supported
+     */
+    private static @Nullable String getCharset(@Nullable String contentType) {
+        final String charset = contentType == null ? null : MimeUtility.getHeaderParameter(contentType, "charset");
+        if (charset == null) return "UTF-8";
+        try {
+            return Charset.isSupported(charset) ? charset : null;
+        } catch (IllegalCharsetNameException e) {
+            return null;
+        }
+    }
+
+    private static @Nullable String find(String[] fields, String name) {
+        final String[] values = Headers.find(fields, name);
+        return values == null ? null : values[0];
+    }
+}
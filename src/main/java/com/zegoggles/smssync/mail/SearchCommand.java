@@ -0,0 +1,144 @@
+package com.zegoggles.smssync.mail;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Searches for the messages to restore. When the number of messages is limited only the newest ones
+ * are needed, which are selected without fetching the dates of all matching messages:
+ * <ul>
+ *     <li>servers supporting SORT (RFC 5256) return the matching UIDs ordered by date, newest first</li>
+ *     <li>otherwise the matching UIDs are searched for, as compact ranges if the server supports
+ *     ESEARCH (RFC 4731). Backups append messages in chronological order, so the messages with the highest
+ *     UIDs are usually the newest ones: only a few more of these than needed are candidates, whose dates
+ *     get fetched and sorted by the client.</li>
+ * </ul>
+ */
+final class SearchCommand {
+    static final String SORT = "SORT";
+    static final String ESEARCH = "ESEARCH";
+    /** the number of candidates with the highest UIDs per message to select */
+    static final int CANDIDATES_PER_MESSAGE = 2;
+
+    private final String criteria;
+
+    /**
+     * @param criteria search criteria, US-ASCII only
+     */
+    SearchCommand(@NotNull String criteria) {
+        this.criteria = criteria;
+    }
+
+    String getSearchCommand() {
+        return "UID SEARCH " + criteria;
+    }
+
+    String getExtendedSearchCommand() {
+        return "UID SEARCH RETURN (ALL) " + criteria;
+    }
+
+    String getSortCommand() {
+        return "UID SORT (REVERSE DATE) US-ASCII " + criteria;
+    }
+
+    /**
+     * @param max the maximum number of messages to select
+     * @return the number of messages with the highest UIDs to consider
+     */
+    static int getCandidateCount(int max) {
+        return max > Integer.MAX_VALUE / CANDIDATES_PER_MESSAGE ? Integer.MAX_VALUE : max * CANDIDATES_PER_MESSAGE;
+    }
+
+    /**
+     * @return the UIDs of the <code>SORT</code> responses, in the order returned by the server
+     */
+    static @NotNull List<String> parseSort(List<? extends List<?>> responses) {
+        final List<String> uids = new ArrayList<String>();
+        for (List<?> response : responses) {
+            if (!response.isEmpty() && SORT.equalsIgnoreCase(String.valueOf(response.get(0)))) {
+                for (Object uid : response.subList(1, response.size())) {
+                    uids.add(String.valueOf(uid));
+                }
+            }
+        }
+        return uids;
+    }
+
+    /**
+     * @return the UID ranges of the <code>ESEARCH</code> responses as pairs of first and last UID,
+     * without expanding them
+     * @throws NumberFormatException if a response contains an invalid sequence set
+     */
+    static @NotNull long[][] parseExtendedSearch(List<? extends List<?>> responses) {
+        final List<long[]> ranges = new ArrayList<long[]>();
+        for (List<?> response : responses) {
+            if (response.isEmpty() || !ESEARCH.equalsIgnoreCase(String.valueOf(response.get(0)))) continue;
+
+            for (int i = 1; i < response.size() - 1; i++) {
+                if (!"ALL".equalsIgnoreCase(String.valueOf(response.get(i)))) continue;
+
+                for (String range : String.valueOf(response.get(++i)).split(",")) {
+                    final int colon = range.indexOf(':');
+                    final long first = Long.parseLong(colon < 0 ? range : range.substring(0, colon));
+                    final long last = colon < 0 ? first : Long.parseLong(range.substring(colon + 1));
+                    ranges.add(new long[] { Math.min(first, last), Math.max(first, last) });
+                }
+            }
+        }
+        return ranges.toArray(new long[ranges.size()][]);
+    }
+
+    /**
+     * @param ranges UID ranges as returned by {@link #parseExtendedSearch(List)}
+     * @return the number of UIDs in the ranges
+     */
+    static long count(long[][] ranges) {
+        long count = 0;
+        for (long[] range : ranges) {
+            count += range[1] - range[0] + 1;
+        }
+        return count;
+    }
+
+    /**
+     * Walks the ranges down from the highest UID, so that only the UIDs needed are looked at.
+     * @param ranges UID ranges as returned by {@link #parseExtendedSearch(List)}, in any order, possibly overlapping
+     * @return the highest <code>count</code> UIDs, highest first
+     */
+    static @NotNull List<String> highest(long[][] ranges, int count) {
+        final long[][] sorted = ranges.clone();
+        Arrays.sort(sorted, new Comparator<long[]>() {
+            @Override public int compare(long[] lhs, long[] rhs) {
+                return lhs[1] < rhs[1] ? 1 : lhs[1] > rhs[1] ? -1 : 0;
+            }
+        });
+        final List<String> highest = new ArrayList<String>();
+        // all UIDs from the lowest one taken so far up to the last one of the current range have been taken
+        long lowest = Long.MAX_VALUE;
+        for (long[] range : sorted) {
+            for (long uid = Math.min(range[1], lowest - 1); uid >= range[0]; uid--) {
+                if (highest.size() >= count) return highest;
+                highest.add(Long.toString(uid));
+            }
+            lowest = Math.min(lowest, range[0]);
+        }
+        return highest;
+    }
+
+    /**
+     * @param uids sorted UIDs
+     * @return the highest <code>count</code> UIDs, highest first
+     */
+    static @NotNull List<String> highest(long[] uids, int count) {
+        final int size = Math.min(count, uids.length);
+        final List<String> highest = new ArrayList<String>(size);
+        for (int i = uids.length - 1; i >= uids.length - size; i--) {
+            highest.add(Long.toString(uids[i]));
+        }
+        return highest;
+    }
+}
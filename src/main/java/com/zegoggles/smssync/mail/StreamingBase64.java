@@ -0,0 +1,132 @@
+package com.zegoggles.smssync.mail;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Base64 encoding (RFC 2045) of streams. Every line, including the last one, has at most
+ * {@link #LINE_LENGTH} characters and ends with CRLF, so the encoded size only depends on the number
+ * of input bytes (see {@link #encodedSize(long)}).
+ * <p>
+ * Input is read and encoded in chunks of {@link #CHUNK_SIZE} bytes, file streams are read through their
+ * {@link FileChannel}. The buffers are allocated once per thread and reused for all attachments,
+ * nothing is allocated per chunk or line.
+ */
+final class StreamingBase64 {
+    static final int LINE_LENGTH = 76;
+    private static final int LINE_BYTES = LINE_LENGTH / 4 * 3;
+    private static final int BUFFER_LINES = 1024;
+    static final int CHUNK_SIZE = LINE_BYTES * BUFFER_LINES;
+    private static final byte[] ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes();
+
+    private static final ThreadLocal<Buffers> BUFFERS = new ThreadLocal<Buffers>() {
+        @Override protected Buffers initialValue() {
+            return new Buffers();
+        }
+    };
+
+    private StreamingBase64() {
+    }
+
+    /**
+     * @return the number of bytes {@link #encode(InputStream, OutputStream)} writes for <code>bytes</code> input bytes
+     */
+    static long encodedSize(long bytes) {
+        final long chars = (bytes + 2) / 3 * 4;
+        final long lines = (chars + LINE_LENGTH - 1) / LINE_LENGTH;
+        return chars + 2 * lines;
+    }
+
+    /**
+     * Encodes <code>in</code> until the end of the stream, does not close either stream.
+     * @return the number of bytes read
+     */
+    static long encode(InputStream in, OutputStream out) throws IOException {
+        if (in instanceof FileInputStream) {
+            // includes ParcelFileDescriptor.AutoCloseInputStream
+            return encode(((FileInputStream) in).getChannel(), out);
+        }
+        final Buffers buffers = BUFFERS.get();
+        long total = 0;
+        int filled;
+        do {
+            filled = fill(in, buffers.input);
+            total += encodeChunk(buffers, filled, out);
+        } while (filled == CHUNK_SIZE);
+        return total;
+    }
+
+    /**
+     * Encodes <code>channel</code> from its current position until the end, does not close the channel.
+     * @return the number of bytes read
+     */
+    static long encode(ReadableByteChannel channel, OutputStream out) throws IOException {
+        final Buffers buffers = BUFFERS.get();
+        long total = 0;
+        int filled;
+        do {
+            filled = fill(channel, buffers.inputBuffer);
+            total += encodeChunk(buffers, filled, out);
+        } while (filled == CHUNK_SIZE);
+        return total;
+    }
+
+    private static int encodeChunk(Buffers buffers, int filled, OutputStream out) throws IOException {
+        int written = 0;
+        for (int offset = 0; offset < filled; offset += LINE_BYTES) {
+            written = encodeLine(buffers.input, offset, Math.min(LINE_BYTES, filled - offset), buffers.output, written);
+        }
+        out.write(buffers.output, 0, written);
+        return filled;
+    }
+
+    /**
+     * Reads until the buffer is full or the stream ends, so that only the last line can be shorter.
+     */
+    private static int fill(InputStream in, byte[] buffer) throws IOException {
+        int filled = 0;
+        int read;
+        while (filled < buffer.length && (read = in.read(buffer, filled, buffer.length - filled)) != -1) {
+            filled += read;
+        }
+        return filled;
+    }
+
+    private static int fill(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        while (buffer.hasRemaining() && channel.read(buffer) != -1) {
+            // keep reading
+        }
+        return buffer.position();
+    }
+
+    private static int encodeLine(byte[] input, int offset, int length, byte[] output, int position) {
+        final int end = offset + length;
+        for (int i = offset; i < end; i += 3) {
+            final int remaining = end - i;
+            final int b0 = input[i] & 0xff;
+            final int b1 = remaining > 1 ? input[i + 1] & 0xff : 0;
+            final int b2 = remaining > 2 ? input[i + 2] & 0xff : 0;
+
+            output[position++] = ALPHABET[b0 >>> 2];
+            output[position++] = ALPHABET[((b0 & 0x03) << 4) | (b1 >>> 4)];
+            output[position++] = remaining > 1 ? ALPHABET[((b1 & 0x0f) << 2) | (b2 >>> 6)] : (byte) '=';
+            output[position++] = remaining > 2 ? ALPHABET[b2 & 0x3f] : (byte) '=';
+        }
+        output[position++] = '\r';
+        output[position++] = '\n';
+        return position;
+    }
+
+    private static class Buffers {
+        final byte[] input = new byte[CHUNK_SIZE];
+        final ByteBuffer inputBuffer = ByteBuffer.wrap(input);
+        final byte[] output = new byte[(LINE_LENGTH + 2) * BUFFER_LINES];
+    }
+}
@@ -0,0 +1,84 @@
+package com.zegoggles.smssync.mail;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.net.TrafficStats;
+import android.os.Build;
+import android.os.Process;
+import android.text.format.Formatter;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how much data a backup or restore moves: the size of the messages themselves and the
+ * bytes the app sent and received over the network. With IMAP compression the latter is smaller.
+ * The network bytes are only approximate, {@link TrafficStats} counts per uid, so traffic of the whole app
+ * while the stats exist is included, not just the IMAP connection.
+ */
+public class TransferStats {
+    public static final long UNSUPPORTED = -1;
+
+    private final AtomicLong messageBytes = new AtomicLong();
+    private final long networkBytesStart;
+
+    public TransferStats() {
+        networkBytesStart = getUidBytes();
+    }
+
+    public void addMessageBytes(long bytes) {
+        if (bytes > 0) messageBytes.addAndGet(bytes);
+    }
+
+    /**
+     * @return the (uncompressed) size of all messages transferred
+     */
+    public long getMessageBytes() {
+        return messageBytes.get();
+    }
+
+    /**
+     * @return the approximate number of bytes sent and received by the whole app (uid) since the stats
+     * were created, or {@link #UNSUPPORTED} if the device does not keep track of it
+     */
+    public long getNetworkBytes() {
+        final long current = getUidBytes();
+        if (current == UNSUPPORTED || networkBytesStart == UNSUPPORTED) {
+            return UNSUPPORTED;
+        } else {
+            return current - networkBytesStart;
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.FROYO)
+    private static long getUidBytes() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.FROYO) return UNSUPPORTED;
+
+        final int uid = Process.myUid();
+        final long rx = TrafficStats.getUidRxBytes(uid);
+        final long tx = TrafficStats.getUidTxBytes(uid);
+        if (rx == TrafficStats.UNSUPPORTED || tx == TrafficStats.UNSUPPORTED) {
+            return UNSUPPORTED;
+        } else {
+            return rx + tx;
+        }
+    }
+
+    public String formatMessageBytes(Context context) {
+        return Formatter.formatFileSize(context, getMessageBytes());
+    }
+
+    /**
+     * @return {@link #getNetworkBytes()} formatted for the log, <code>?</code> if unsupported
+     */
+    public String formatNetworkBytes(Context context) {
+        final long networkBytes = getNetworkBytes();
+        return networkBytes == UNSUPPORTED ? "?" : Formatter.formatFileSize(context, networkBytes);
+    }
+
+    @Override public String toString() {
+        return "TransferStats{" +
+                "messageBytes=" + getMessageBytes() +
+                ", networkBytes=" + getNetworkBytes() +
+                '}';
+    }
+}
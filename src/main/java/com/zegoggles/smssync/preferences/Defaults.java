@@ -22,5 +22,45 @@ class Defaults {
      */
     public static final int MAX_ITEMS_PER_SYNC = -1;
     public static final int MAX_ITEMS_PER_RESTORE = -1;
+    /**
+     * Default value for {@link Preferences#RESTORE_BATCH_SIZE}.
+     */
+    public static final int RESTORE_BATCH_SIZE = 100;
+    /**
+     * Default value for {@link Preferences#BACKUP_BATCH_SIZE}.
+     */
+    public static final int BACKUP_BATCH_SIZE = 50;
+    /**
+     * Default value for {@link Preferences#BACKUP_BATCH_MAX_KB}.
+     */
+    public static final int BACKUP_BATCH_MAX_KB = 2048;
+    /**
+     * Default value for {@link Preferences#BACKUP_CONVERTER_THREADS}.
+     */
+    public static final int BACKUP_CONVERTER_THREADS = 0;
+    /**
+     * Default value for {@link Preferences#BACKUP_MAX_CONNECTIONS}, one per data type.
+     */
+    public static final int BACKUP_MAX_CONNECTIONS = 3;
+    /**
+     * Default value for {@link Preferences#BACKUP_PAGE_SIZE}.
+     */
+    public static final int BACKUP_PAGE_SIZE = 500;
     public static final boolean MARK_AS_READ_ON_RESTORE = true;
+    /**
+     * Default value for {@link Preferences#IMAP_COMPRESSION}.
+     */
+    public static final boolean IMAP_COMPRESSION = true;
+    /**
+     * Default value for {@link Preferences#CONTACTS_PRELOAD}.
+     */
+    public static final boolean CONTACTS_PRELOAD = false;
+    /**
+     * Default value for {@link Preferences#CONTACTS_CACHE}.
+     */
+    public static final boolean CONTACTS_CACHE = true;
+    /**
+     * Default value for {@link Preferences#IMAP_IDLE_SECONDS}.
+     */
+    public static final int IMAP_IDLE_SECONDS = 5 * 60;
 }
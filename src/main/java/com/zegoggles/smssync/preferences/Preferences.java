@@ -32,12 +32,21 @@ import java.util.Locale;
 import static com.zegoggles.smssync.App.TAG;
 import static com.zegoggles.smssync.preferences.Preferences.Keys.APP_LOG;
 import static com.zegoggles.smssync.preferences.Preferences.Keys.APP_LOG_DEBUG;
+import static com.zegoggles.smssync.preferences.Preferences.Keys.BACKUP_BATCH_MAX_KB;
+import static com.zegoggles.smssync.preferences.Preferences.Keys.BACKUP_BATCH_SIZE;
 import static com.zegoggles.smssync.preferences.Preferences.Keys.BACKUP_CONTACT_GROUP;
+import static com.zegoggles.smssync.preferences.Preferences.Keys.BACKUP_CONVERTER_THREADS;
+import static com.zegoggles.smssync.preferences.Preferences.Keys.BACKUP_MAX_CONNECTIONS;
+import static com.zegoggles.smssync.preferences.Preferences.Keys.BACKUP_PAGE_SIZE;
 import static com.zegoggles.smssync.preferences.Preferences.Keys.CALLLOG_SYNC_CALENDAR;
 import static com.zegoggles.smssync.preferences.Preferences.Keys.CALLLOG_SYNC_CALENDAR_ENABLED;
 import static com.zegoggles.smssync.preferences.Preferences.Keys.CONFIRM_ACTION;
+import static com.zegoggles.smssync.preferences.Preferences.Keys.CONTACTS_CACHE;
+import static com.zegoggles.smssync.preferences.Preferences.Keys.CONTACTS_PRELOAD;
 import static com.zegoggles.smssync.preferences.Preferences.Keys.ENABLE_AUTO_BACKUP;
 import static com.zegoggles.smssync.preferences.Preferences.Keys.FIRST_USE;
+import static com.zegoggles.smssync.preferences.Preferences.Keys.IMAP_COMPRESSION;
+import static com.zegoggles.smssync.preferences.Preferences.Keys.IMAP_IDLE_SECONDS;
 import static com.zegoggles.smssync.preferences.Preferences.Keys.INCOMING_TIMEOUT_SECONDS;
 import static com.zegoggles.smssync.preferences.Preferences.Keys.LAST_VERSION_CODE;
 import static com.zegoggles.smssync.preferences.Preferences.Keys.MAIL_SUBJECT_PREFIX;
@@ -49,6 +58,7 @@ import static com.zegoggles.smssync.preferences.Preferences.Keys.MAX_ITEMS_PER_S
 import static com.zegoggles.smssync.preferences.Preferences.Keys.NOTIFICATIONS;
 import static com.zegoggles.smssync.preferences.Preferences.Keys.REFERENCE_UID;
 import static com.zegoggles.smssync.preferences.Preferences.Keys.REGULAR_TIMEOUT_SECONDS;
+import static com.zegoggles.smssync.preferences.Preferences.Keys.RESTORE_BATCH_SIZE;
 import static com.zegoggles.smssync.preferences.Preferences.Keys.RESTORE_STARRED_ONLY;
 import static com.zegoggles.smssync.preferences.Preferences.Keys.SMS_DEFAULT_PACKAGE;
 import static com.zegoggles.smssync.preferences.Preferences.Keys.SMS_DEFAULT_PACKAGE_CHANGE_SEEN;
@@ -70,6 +80,16 @@ public class Preferences {
         REGULAR_TIMEOUT_SECONDS ("auto_backup_schedule"),
         MAX_ITEMS_PER_SYNC("max_items_per_sync"),
         MAX_ITEMS_PER_RESTORE ("max_items_per_restore"),
+        RESTORE_BATCH_SIZE("restore_batch_size"),
+        BACKUP_BATCH_SIZE("backup_batch_size"),
+        BACKUP_BATCH_MAX_KB("backup_batch_max_kb"),
+        BACKUP_CONVERTER_THREADS("backup_converter_threads"),
+        BACKUP_MAX_CONNECTIONS("backup_max_connections"),
+        BACKUP_PAGE_SIZE("backup_page_size"),
+        IMAP_COMPRESSION("imap_compression"),
+        IMAP_IDLE_SECONDS("imap_idle_seconds"),
+        CONTACTS_PRELOAD("contacts_preload"),
+        CONTACTS_CACHE("contacts_cache"),
         CALLLOG_SYNC_CALENDAR ("backup_calllog_sync_calendar"),
         CALLLOG_SYNC_CALENDAR_ENABLED ("backup_calllog_sync_calendar_enabled"),
         BACKUP_CONTACT_GROUP("backup_contact_group"),
@@ -151,6 +171,77 @@ public class Preferences {
         return getStringAsInt(MAX_ITEMS_PER_RESTORE, Defaults.MAX_ITEMS_PER_RESTORE);
     }
 
+    /**
+     * @return the maximum number of restored messages inserted into the provider with one batch
+     */
+    public int getRestoreBatchSize() {
+        return getStringAsInt(RESTORE_BATCH_SIZE, Defaults.RESTORE_BATCH_SIZE);
+    }
+
+    /**
+     * @return the maximum number of messages sent to the server with one APPEND batch
+     */
+    public int getBackupBatchSize() {
+        return getStringAsInt(BACKUP_BATCH_SIZE, Defaults.BACKUP_BATCH_SIZE);
+    }
+
+    /**
+     * @return the approximate maximum size of one APPEND batch, in bytes
+     */
+    public long getBackupBatchMaxBytes() {
+        return getStringAsInt(BACKUP_BATCH_MAX_KB, Defaults.BACKUP_BATCH_MAX_KB) * 1024L;
+    }
+
+    /**
+     * @return the number of threads converting messages during backup, 0 to size it to the number of cores
+     */
+    public int getBackupConverterThreads() {
+        return getStringAsInt(BACKUP_CONVERTER_THREADS, Defaults.BACKUP_CONVERTER_THREADS);
+    }
+
+    /**
+     * @return the maximum number of IMAP connections used to upload different data types concurrently
+     */
+    public int getBackupMaxConnections() {
+        return getStringAsInt(BACKUP_MAX_CONNECTIONS, Defaults.BACKUP_MAX_CONNECTIONS);
+    }
+
+    /**
+     * @return the number of rows read from the content providers at a time during backup, always positive
+     */
+    public int getBackupPageSize() {
+        final int pageSize = getStringAsInt(BACKUP_PAGE_SIZE, Defaults.BACKUP_PAGE_SIZE);
+        return pageSize > 0 ? pageSize : Defaults.BACKUP_PAGE_SIZE;
+    }
+
+    /**
+     * @return whether to compress IMAP connections if the server supports it
+     */
+    public boolean isImapCompressionEnabled() {
+        return preferences.getBoolean(IMAP_COMPRESSION.key, Defaults.IMAP_COMPRESSION);
+    }
+
+    /**
+     * @return how long an idle IMAP connection is kept open for the next backup, in ms, 0 to close it right away
+     */
+    public long getImapIdleMillis() {
+        return Math.max(0, getStringAsInt(IMAP_IDLE_SECONDS, Defaults.IMAP_IDLE_SECONDS)) * 1000L;
+    }
+
+    /**
+     * @return whether to read all contacts into memory before a backup or restore instead of looking them up one by one
+     */
+    public boolean isContactsPreloadEnabled() {
+        return preferences.getBoolean(CONTACTS_PRELOAD.key, Defaults.CONTACTS_PRELOAD);
+    }
+
+    /**
+     * @return whether to keep contact lookups across backups
+     */
+    public boolean isContactsCacheEnabled() {
+        return preferences.getBoolean(CONTACTS_CACHE.key, Defaults.CONTACTS_CACHE);
+    }
+
     public boolean isWifiOnly() {
         return preferences.getBoolean(WIFI_ONLY.key, false);
     }
@@ -205,8 +296,9 @@ public class Preferences {
     }
 
     public boolean isFirstBackup() {
+        final SyncStateStore syncState = SyncStateStore.get(context);
         for (DataType type : DataType.values()) {
-            if (preferences.contains(type.maxSyncedPreference)) {
+            if (syncState.contains(type)) {
                 return false;
             }
         }
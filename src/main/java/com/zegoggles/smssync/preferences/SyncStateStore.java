@@ -0,0 +1,268 @@
+package com.zegoggles.smssync.preferences;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.util.Log;
+import com.zegoggles.smssync.mail.DataType;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import static com.zegoggles.smssync.App.LOCAL_LOGV;
+import static com.zegoggles.smssync.App.TAG;
+
+/**
+ * Keeps track of the per-type sync watermarks (max synced dates).
+ * <p>
+ * Watermarks used to be committed to the default shared preferences after every message, which
+ * rewrites the whole preferences file each time. They are now kept in a small database, and
+ * updates made during a backup are grouped into atomic {@link Checkpoint}s.
+ * The preferences are still updated once a checkpoint is closed or with {@link #mirror()}, so they
+ * can be used for the Android backup agent and to migrate existing installs. Watermarks which cannot
+ * be written to the database are written to the preferences right away.
+ */
+public class SyncStateStore {
+    public static final int CHECKPOINT_MESSAGES = 500;
+    public static final long CHECKPOINT_INTERVAL_MILLIS = 15 * 1000;
+
+    static final String DATABASE_NAME = "sync_state.db";
+    private static final int DATABASE_VERSION = 1;
+
+    private static final String TABLE = "watermarks";
+    private static final String COLUMN_TYPE = "type";
+    private static final String COLUMN_MAX_SYNCED_DATE = "max_synced_date";
+
+    private static SyncStateStore instance;
+
+    private final Context context;
+    private final SQLiteOpenHelper helper;
+    private final Map<DataType, Long> watermarks = new EnumMap<DataType, Long>(DataType.class);
+    private boolean loaded;
+
+    SyncStateStore(Context context) {
+        this(context, new DatabaseHelper(context));
+    }
+
+    SyncStateStore(Context context, SQLiteOpenHelper helper) {
+        this.context = context;
+        this.helper = helper;
+    }
+
+    public static synchronized SyncStateStore get(Context context) {
+        final Context appContext = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+        if (instance == null || instance.context != appContext) {
+            instance = new SyncStateStore(appContext);
+        }
+        return instance;
+    }
+
+    /**
+     * @return the stored watermark for the type, as stored (MMS dates are in seconds)
+     */
+    public synchronized long getMaxSyncedDate(DataType type) {
+        load();
+        final Long date = watermarks.get(type);
+        if (date != null) {
+            return date;
+        } else {
+            // not migrated yet, use the value from the preferences
+            return prefs().getLong(type.maxSyncedPreference, DataType.Defaults.MAX_SYNCED_DATE);
+        }
+    }
+
+    public synchronized boolean contains(DataType type) {
+        load();
+        return watermarks.containsKey(type) || prefs().contains(type.maxSyncedPreference);
+    }
+
+    /**
+     * Stores a single watermark in the database immediately, the preferences are only updated
+     * if that fails.
+     */
+    public synchronized boolean setMaxSyncedDate(DataType type, long max) {
+        Map<DataType, Long> update = new EnumMap<DataType, Long>(DataType.class);
+        update.put(type, max);
+        if (store(update)) {
+            return true;
+        } else {
+            mirror(update);
+            return false;
+        }
+    }
+
+    /**
+     * Updates the preferences with all stored watermarks.
+     */
+    public synchronized boolean mirror() {
+        load();
+        return mirror(watermarks);
+    }
+
+    public synchronized void clear() {
+        try {
+            helper.getWritableDatabase().delete(TABLE, null, null);
+        } catch (SQLiteException e) {
+            Log.w(TAG, "error clearing sync state", e);
+        }
+        watermarks.clear();
+        SharedPreferences.Editor editor = prefs().edit();
+        for (DataType type : DataType.values()) {
+            editor.remove(type.maxSyncedPreference);
+        }
+        editor.commit();
+    }
+
+    /**
+     * Starts a new checkpoint. Watermarks passed to the checkpoint are written atomically after
+     * <code>maxMessages</code> messages or <code>maxDelayMillis</code>, whichever comes first.
+     */
+    public Checkpoint beginCheckpoint(int maxMessages, long maxDelayMillis) {
+        return new Checkpoint(maxMessages, maxDelayMillis);
+    }
+
+    public Checkpoint beginCheckpoint() {
+        return beginCheckpoint(CHECKPOINT_MESSAGES, CHECKPOINT_INTERVAL_MILLIS);
+    }
+
+    private boolean store(Map<DataType, Long> update) {
+        if (update.isEmpty()) return true;
+        load();
+        try {
+            final SQLiteDatabase db = helper.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                for (Map.Entry<DataType, Long> entry : update.entrySet()) {
+                    ContentValues values = new ContentValues();
+                    values.put(COLUMN_TYPE, entry.getKey().name());
+                    values.put(COLUMN_MAX_SYNCED_DATE, entry.getValue());
+                    db.replace(TABLE, null, values);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            watermarks.putAll(update);
+            return true;
+        } catch (SQLiteException e) {
+            Log.e(TAG, "error writing sync state", e);
+            return false;
+        }
+    }
+
+    private boolean mirror(Map<DataType, Long> update) {
+        if (update.isEmpty()) return true;
+        SharedPreferences.Editor editor = prefs().edit();
+        for (Map.Entry<DataType, Long> entry : update.entrySet()) {
+            editor.putLong(entry.getKey().maxSyncedPreference, entry.getValue());
+        }
+        return editor.commit();
+    }
+
+    private void load() {
+        if (loaded) return;
+        Cursor c = null;
+        try {
+            c = helper.getReadableDatabase().query(TABLE,
+                    new String[]{COLUMN_TYPE, COLUMN_MAX_SYNCED_DATE}, null, null, null, null, null);
+            while (c.moveToNext()) {
+                try {
+                    watermarks.put(DataType.valueOf(c.getString(0)), c.getLong(1));
+                } catch (IllegalArgumentException e) {
+                    Log.w(TAG, "unknown type " + c.getString(0));
+                }
+            }
+            loaded = true;
+        } catch (SQLiteException e) {
+            Log.e(TAG, "error reading sync state", e);
+        } finally {
+            if (c != null) c.close();
+        }
+        if (LOCAL_LOGV) Log.v(TAG, "loaded sync state: " + watermarks);
+    }
+
+    private SharedPreferences prefs() {
+        return PreferenceManager.getDefaultSharedPreferences(context);
+    }
+
+    /**
+     * Groups watermark updates, only the last update per type is written.
+     * Only pass in watermarks of messages which have been accepted by the server.
+     */
+    public class Checkpoint {
+        private final int maxMessages;
+        private final long maxDelayMillis;
+        private final Map<DataType, Long> pending = new EnumMap<DataType, Long>(DataType.class);
+        private final Map<DataType, Long> committed = new EnumMap<DataType, Long>(DataType.class);
+        private int pendingMessages;
+        private long lastCommit;
+
+        Checkpoint(int maxMessages, long maxDelayMillis) {
+            this.maxMessages = maxMessages;
+            this.maxDelayMillis = maxDelayMillis;
+            this.lastCommit = SystemClock.elapsedRealtime();
+        }
+
+        public synchronized void update(@NotNull DataType type, long maxSyncedDate, int messages) {
+            pending.put(type, maxSyncedDate);
+            pendingMessages += messages;
+
+            if (pendingMessages >= maxMessages ||
+                SystemClock.elapsedRealtime() - lastCommit >= maxDelayMillis) {
+                commit();
+            }
+        }
+
+        /**
+         * Writes all pending watermarks in one transaction.
+         */
+        public synchronized void commit() {
+            if (!pending.isEmpty()) {
+                if (LOCAL_LOGV) Log.v(TAG, "checkpoint " + pending + " (" + pendingMessages + " messages)");
+                synchronized (SyncStateStore.this) {
+                    if (!store(pending)) return;
+                }
+                committed.putAll(pending);
+                pending.clear();
+                pendingMessages = 0;
+            }
+            lastCommit = SystemClock.elapsedRealtime();
+        }
+
+        /**
+         * Commits pending watermarks and updates the preferences with the final state, including
+         * watermarks which could not be committed.
+         */
+        public synchronized void close() {
+            commit();
+            committed.putAll(pending);
+            synchronized (SyncStateStore.this) {
+                mirror(committed);
+            }
+        }
+    }
+
+    private static class DatabaseHelper extends SQLiteOpenHelper {
+        DatabaseHelper(Context context) {
+            super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + TABLE + " (" +
+                    COLUMN_TYPE + " TEXT PRIMARY KEY, " +
+                    COLUMN_MAX_SYNCED_DATE + " INTEGER NOT NULL)");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.zegoggles.smssync.service;
+
+import android.util.Log;
+import com.fsck.k9.mail.MessagingException;
+import com.zegoggles.smssync.mail.BackupImapStore;
+import com.zegoggles.smssync.mail.BackupRow;
+import com.zegoggles.smssync.mail.ConversionResult;
+import com.zegoggles.smssync.mail.DataType;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+
+import static com.zegoggles.smssync.App.LOCAL_LOGV;
+import static com.zegoggles.smssync.App.TAG;
+
+/**
+ * Collects converted messages per {@link DataType} and sends them to the server with a single
+ * {@link BackupImapStore.BackupFolder#appendMessages(java.util.List)} call once a batch is full.
+ * Types are batched independently, so they can be added and sent from different threads.
+ */
+class BackupBatcher {
+    // rough size of the headers we generate for every message
+    static final int HEADER_OVERHEAD = 1024;
+
+    interface Listener {
+        /**
+         * Called after a batch has been accepted by the server.
+         */
+        void onBatchAppended(@NotNull ConversionResult batch) throws MessagingException;
+    }
+
+    private final BackupImapStore store;
+    private final int maxMessages;
+    private final long maxBytes;
+    private final Listener listener;
+
+    private final Map<DataType, Batch> batches = new EnumMap<DataType, Batch>(DataType.class);
+
+    BackupBatcher(@NotNull BackupImapStore store, int maxMessages, long maxBytes, @NotNull Listener listener) {
+        this.store = store;
+        this.maxMessages = Math.max(1, maxMessages);
+        this.maxBytes = maxBytes > 0 ? maxBytes : Long.MAX_VALUE;
+        this.listener = listener;
+        // the map is never modified afterwards, so types can be batched concurrently
+        for (DataType type : DataType.values()) {
+            batches.put(type, new Batch(type));
+        }
+    }
+
+    /**
+     * Adds a conversion result to the batch of its type, flushing the batch if it is full.
+     * @return the number of messages sent to the server
+     */
+    public int add(@NotNull ConversionResult result) throws MessagingException {
+        if (result.isEmpty()) return 0;
+
+        final Batch batch = batches.get(result.type);
+        synchronized (batch) {
+            batch.messages.addAll(result);
+            for (BackupRow row : result.getRows()) {
+                batch.size += estimateSize(result.type, row);
+            }
+
+            if (batch.messages.size() >= maxMessages || batch.size >= maxBytes) {
+                return flush(result.type);
+            } else {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Sends all pending batches to the server.
+     * @return the number of messages sent to the server
+     */
+    public int flush() throws MessagingException {
+        int flushed = 0;
+        for (DataType type : DataType.values()) {
+            flushed += flush(type);
+        }
+        return flushed;
+    }
+
+    /**
+     * Sends the pending batch of <code>type</code> to the server.
+     * @return the number of messages sent to the server
+     */
+    public int flush(DataType type) throws MessagingException {
+        final Batch batch = batches.get(type);
+        synchronized (batch) {
+            final ConversionResult messages = batch.reset();
+            if (messages.isEmpty()) return 0;
+
+            if (LOCAL_LOGV) {
+                Log.v(TAG, String.format(Locale.ENGLISH, "sending %d %s message(s) to server.", messages.size(), type));
+            }
+            store.getFolder(type).appendMessages(messages.getMessages());
+            listener.onBatchAppended(messages);
+            return messages.size();
+        }
+    }
+
+    /**
+     * Drops all pending messages without sending them.
+     */
+    public void clear() {
+        for (Batch batch : batches.values()) {
+            synchronized (batch) {
+                batch.reset();
+            }
+        }
+    }
+
+    private static class Batch {
+        final DataType type;
+        ConversionResult messages;
+        long size;
+
+        Batch(DataType type) {
+            this.type = type;
+            reset();
+        }
+
+        ConversionResult reset() {
+            final ConversionResult current = messages;
+            messages = new ConversionResult(type);
+            size = 0;
+            return current;
+        }
+    }
+
+    /**
+     * Cheap estimate of the size of the message generated for the row, without serializing it.
+     */
+    static long estimateSize(DataType type, BackupRow row) {
+        long size = HEADER_OVERHEAD;
+        switch (type) {
+            case SMS:
+                if (row.body != null) {
+                    // quoted-printable encoding can triple multi-byte characters
+                    size += row.body.length() * 3;
+                }
+                break;
+            case MMS:
+                if (row.size > 0) {
+                    // attachments are base64 encoded
+                    size += row.size * 4 / 3;
+                }
+                break;
+        }
+        return size;
+    }
+}
@@ -1,7 +1,9 @@
 package com.zegoggles.smssync.service;
 
+import android.content.Context;
 import android.database.Cursor;
 import android.util.Log;
+import com.zegoggles.smssync.mail.BackupRow;
 import com.zegoggles.smssync.mail.DataType;
 
 import java.util.ArrayList;
@@ -10,6 +12,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Set;
 
 import static com.zegoggles.smssync.App.TAG;
 import static com.zegoggles.smssync.service.BackupItemsFetcher.emptyCursor;
@@ -23,12 +26,23 @@ public class BackupCursors implements Iterator<BackupCursors.CursorAndType> {
     public static class CursorAndType {
         final DataType type;
         final Cursor cursor;
+        private BackupRow.Reader reader;
 
         public CursorAndType(DataType type, Cursor cursor) {
             this.type = type;
             this.cursor = cursor;
         }
 
+        /**
+         * @return the row at the current position, column indices are only looked up for the first row
+         */
+        public BackupRow readRow() {
+            if (reader == null) {
+                reader = new BackupRow.Reader(type, cursor);
+            }
+            return reader.read();
+        }
+
         public boolean hasNext() {
             return cursor.getCount() > 0 && !cursor.isLast();
         }
@@ -89,6 +103,37 @@ public class BackupCursors implements Iterator<BackupCursors.CursorAndType> {
         throw new UnsupportedOperationException();
     }
 
+    Set<DataType> getTypes() {
+        return cursorMap.keySet();
+    }
+
+    /**
+     * Splits the cursors into at most <code>parts</code> independent iterators, distributing
+     * the target folders round robin. Types backed up to the same folder (e.g. SMS and MMS) stay in one
+     * part, in their original order, so that a folder is only appended to by one connection at a time.
+     * Types without items are left out.
+     */
+    List<BackupCursors> split(int parts, Context context) {
+        final List<BackupCursors> split = new ArrayList<BackupCursors>();
+        final Map<String, BackupCursors> folders = new HashMap<String, BackupCursors>();
+        for (CursorAndType ct : cursorAndTypes) {
+            if (ct.cursor.getCount() == 0) continue;
+
+            final String folder = ct.type.getFolder(context);
+            BackupCursors part = folders.get(folder);
+            if (part == null) {
+                final int index = folders.size() % Math.max(1, parts);
+                if (index == split.size()) {
+                    split.add(new BackupCursors());
+                }
+                part = split.get(index);
+                folders.put(folder, part);
+            }
+            part.add(ct.type, ct.cursor);
+        }
+        return split;
+    }
+
     public void close() {
         for (CursorAndType ct : cursorAndTypes) {
             try {
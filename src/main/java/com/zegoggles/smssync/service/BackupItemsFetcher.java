@@ -8,6 +8,7 @@ import android.database.sqlite.SQLiteException;
 import android.util.Log;
 import com.zegoggles.smssync.contacts.ContactGroupIds;
 import com.zegoggles.smssync.mail.DataType;
+import com.zegoggles.smssync.preferences.Preferences;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -18,23 +19,72 @@ public class BackupItemsFetcher {
     private final Context context;
     private final ContentResolver resolver;
     private final BackupQueryBuilder queryBuilder;
+    private final int pageSize;
+    private final PagedCursor.PageLoader pageLoader = new PagedCursor.PageLoader() {
+        @Override public @NotNull Cursor load(@NotNull BackupQueryBuilder.Query query) {
+            return performQuery(query);
+        }
+    };
 
     public BackupItemsFetcher(@NotNull Context context,
                               @NotNull ContentResolver resolver,
-                              @NotNull BackupQueryBuilder queryBuilder) {
+                              @NotNull BackupQueryBuilder queryBuilder,
+                              int pageSize) {
         if (resolver == null) throw new IllegalArgumentException("resolver cannot be null");
         if (queryBuilder == null) throw new IllegalArgumentException("queryBuilder cannot be null");
 
         this.queryBuilder = queryBuilder;
         this.context = context;
         this.resolver = resolver;
+        this.pageSize = pageSize > 0 ? pageSize : new Preferences(context).getBackupPageSize();
+    }
+
+    public BackupItemsFetcher(@NotNull Context context,
+                              @NotNull ContentResolver resolver,
+                              @NotNull BackupQueryBuilder queryBuilder) {
+        this(context, resolver, queryBuilder, new Preferences(context).getBackupPageSize());
     }
 
+    /**
+     * Returns the items to back up, ordered by date. Large results are read page by page
+     * (see {@link PagedCursor}), so that only one page at a time has to fit into memory.
+     * If the provider rejects the selection restricting the items to a contact group, all items are
+     * returned instead and {@link com.zegoggles.smssync.mail.MessageGenerator} filters them.
+     */
     public
     @NotNull
     Cursor getItemsForDataType(DataType dataType, ContactGroupIds group, int max) {
         if (LOCAL_LOGV) Log.v(TAG, "getItemsForDataType(type=" + dataType + ", max=" + max + ")");
-        return performQuery(queryBuilder.buildQueryForDataType(dataType, group, max));
+        if (group != null) {
+            try {
+                return getItems(queryBuilder.buildQueryForDataType(dataType, group, max), max);
+            } catch (SQLiteException e) {
+                Log.w(TAG, "group selection not supported for " + dataType + ", filtering items instead", e);
+            }
+        }
+        try {
+            return getItems(queryBuilder.buildQueryForDataType(dataType, null, max), max);
+        } catch (SQLiteException e) {
+            Log.w(TAG, "error querying DB", e);
+            return emptyCursor();
+        }
+    }
+
+    /**
+     * @throws SQLiteException if the provider rejects the query
+     */
+    private @NotNull Cursor getItems(@Nullable BackupQueryBuilder.Query query, int max) {
+        if (query == null || (max > 0 && max <= pageSize)) {
+            return query(query);
+        }
+
+        final Cursor firstPage = query(query.page(pageSize, 0, -1));
+        if (firstPage.getCount() < pageSize) {
+            return firstPage;
+        }
+        final int count = getCount(query);
+        if (LOCAL_LOGV) Log.v(TAG, "paging through " + count + " items of " + query.uri);
+        return new PagedCursor(pageLoader, query, firstPage, count, pageSize);
     }
 
     public long getMostRecentTimestamp(DataType dataType) {
@@ -54,9 +104,32 @@ public class BackupItemsFetcher {
         }
     }
 
+    private int getCount(BackupQueryBuilder.Query query) {
+        final Cursor cursor = performQuery(query.count());
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
     private
     @NotNull
     Cursor performQuery(@Nullable BackupQueryBuilder.Query query) {
+        try {
+            return query(query);
+        } catch (SQLiteException e) {
+            Log.w(TAG, "error querying DB", e);
+            return emptyCursor();
+        }
+    }
+
+    /**
+     * @throws SQLiteException if the provider rejects the query
+     */
+    private
+    @NotNull
+    Cursor query(@Nullable BackupQueryBuilder.Query query) {
         if (query == null) return emptyCursor();
         try {
             final Cursor cursor = resolver.query(
@@ -67,9 +140,6 @@ public class BackupItemsFetcher {
                     query.sortOrder
             );
             return cursor == null ? emptyCursor() : cursor;
-        } catch (SQLiteException e) {
-            Log.w(TAG, "error querying DB", e);
-            return emptyCursor();
         } catch (NullPointerException e) {
             Log.w(TAG, "error querying DB", e);
             return emptyCursor();
@@ -0,0 +1,366 @@
+package com.zegoggles.smssync.service;
+
+import android.content.Context;
+import android.util.Log;
+import com.fsck.k9.mail.MessagingException;
+import com.zegoggles.smssync.mail.BackupRow;
+import com.zegoggles.smssync.mail.ConversionResult;
+import com.zegoggles.smssync.mail.DataType;
+import com.zegoggles.smssync.mail.MessageConverter;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.zegoggles.smssync.App.LOCAL_LOGV;
+import static com.zegoggles.smssync.App.TAG;
+
+/**
+ * Runs a backup in three stages, so that message conversion overlaps with the network upload:
+ * <ol>
+ *     <li>reader threads read rows from the content providers</li>
+ *     <li>a pool of converter threads turns rows into messages</li>
+ *     <li>uploader threads hand messages to the {@link BackupBatcher}, which appends them to the server</li>
+ * </ol>
+ * Folders are spread over up to <code>uploaders</code> independent lanes, each with its own reader
+ * and uploader, so that e.g. SMS and call log are sent concurrently to their folders, each folder
+ * using its own connection. Data types sharing a folder are backed up one after the other in the same lane.
+ * Within a lane pending conversions are queued in the order the rows were read and the uploader waits
+ * for them in that order, so messages reach each folder in their original order regardless of the number
+ * of converter threads. The queues are bounded: a slow connection throttles conversion and reading.
+ * Cancellation and failures stop all stages, messages not yet accepted by the server are dropped.
+ * Watermarks are only advanced by the batcher's listener, after a batch has been accepted.
+ */
+class BackupPipeline {
+    static final int QUEUE_SIZE = 16;
+    static final int MAX_CONVERTER_THREADS = 4;
+    /** the number of MMS rows whose parts are loaded with one query */
+    static final int MMS_PREFETCH_SIZE = 25;
+    private static final long POLL_MILLIS = 100;
+
+    private static final Future<ConversionResult> END_OF_RESULTS = new FutureTask<ConversionResult>(
+        new Callable<ConversionResult>() {
+            @Override public ConversionResult call() {
+                return null;
+            }
+        });
+
+    interface Progress {
+        boolean isCancelled();
+
+        /**
+         * Called on a reading thread after a row has been queued for conversion.
+         * @param skipped the number of rows converted so far which did not produce a message
+         */
+        void onRowRead(@NotNull DataType type, int skipped);
+    }
+
+    private final Context context;
+    private final MessageConverter converter;
+    private final BackupBatcher batcher;
+    private final Progress progress;
+    private final int converterThreads;
+    private final int uploaders;
+    private final int queueSize;
+    private final AtomicInteger skipped = new AtomicInteger();
+
+    private volatile boolean stopped;
+    private volatile Exception failure;
+
+    BackupPipeline(@NotNull Context context,
+                   @NotNull MessageConverter converter,
+                   @NotNull BackupBatcher batcher,
+                   @NotNull Progress progress,
+                   int converterThreads,
+                   int uploaders,
+                   int queueSize) {
+        this.context = context;
+        this.converter = converter;
+        this.batcher = batcher;
+        this.progress = progress;
+        this.converterThreads = Math.max(1, converterThreads);
+        this.uploaders = Math.max(1, uploaders);
+        this.queueSize = queueSize;
+    }
+
+    BackupPipeline(@NotNull Context context,
+                   @NotNull MessageConverter converter,
+                   @NotNull BackupBatcher batcher,
+                   @NotNull Progress progress,
+                   int converterThreads,
+                   int uploaders) {
+        this(context, converter, batcher, progress, converterThreads, uploaders, QUEUE_SIZE);
+    }
+
+    /**
+     * @param configured the configured number of converter threads, 0 or less to use the number of cores
+     * @return the number of converter threads to use
+     */
+    static int converterThreads(int configured) {
+        if (configured > 0) {
+            return configured;
+        } else {
+            // leave one core for reading and uploading
+            return Math.max(1, Math.min(MAX_CONVERTER_THREADS, Runtime.getRuntime().availableProcessors() - 1));
+        }
+    }
+
+    /**
+     * @return the number of rows which did not produce a message
+     */
+    public int getSkipped() {
+        return skipped.get();
+    }
+
+    /**
+     * Runs all stages until the cursors are exhausted, the backup gets cancelled or a stage fails.
+     * Returns after all uploaders have finished, conversions still running get interrupted.
+     */
+    public void run(@NotNull BackupCursors cursors) throws MessagingException {
+        final ExecutorService converterPool = Executors.newFixedThreadPool(converterThreads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override public Thread newThread(@NotNull Runnable runnable) {
+                return new Thread(runnable, "BackupConverter-" + count.incrementAndGet());
+            }
+        });
+        final List<Lane> lanes = new ArrayList<Lane>();
+        for (BackupCursors laneCursors : cursors.split(uploaders, context)) {
+            lanes.add(new Lane(lanes.size() + 1, laneCursors, converterPool));
+        }
+        if (LOCAL_LOGV) Log.v(TAG, "backing up with " + lanes.size() + " uploader(s)");
+
+        try {
+            for (Lane lane : lanes) {
+                lane.start();
+            }
+        } finally {
+            for (Lane lane : lanes) {
+                lane.join();
+            }
+            converterPool.shutdownNow();
+            // anything left over has not been sent
+            batcher.clear();
+        }
+
+        if (failure instanceof MessagingException) {
+            throw (MessagingException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure != null) {
+            throw new MessagingException("backup failed", failure);
+        }
+    }
+
+    /**
+     * Reads, converts and uploads the messages of some data types, independently of other lanes.
+     */
+    private class Lane {
+        private final BackupCursors cursors;
+        private final ExecutorService converterPool;
+        private final BlockingQueue<Future<ConversionResult>> results;
+        private final Thread readerThread, uploaderThread;
+
+        Lane(int id, BackupCursors cursors, ExecutorService converterPool) {
+            this.cursors = cursors;
+            this.converterPool = converterPool;
+            this.results = new ArrayBlockingQueue<Future<ConversionResult>>(queueSize);
+            this.readerThread = new Thread("BackupReader-" + id) {
+                @Override public void run() {
+                    read();
+                }
+            };
+            this.uploaderThread = new Thread("BackupUploader-" + id) {
+                @Override public void run() {
+                    upload();
+                }
+            };
+        }
+
+        void start() {
+            uploaderThread.start();
+            readerThread.start();
+        }
+
+        void join() {
+            BackupPipeline.this.join(readerThread);
+            BackupPipeline.this.join(uploaderThread);
+        }
+
+        private void read() {
+            boolean completed = false;
+            try {
+                completed = readRows();
+            } catch (RuntimeException e) {
+                fail(e);
+            } finally {
+                if (!completed || !put(results, END_OF_RESULTS)) {
+                    stopped = true;
+                }
+            }
+        }
+
+        private boolean readRows() {
+            final List<BackupRow> mmsRows = new ArrayList<BackupRow>(MMS_PREFETCH_SIZE);
+            while (cursors.hasNext()) {
+                if (isStopped()) return false;
+
+                final BackupCursors.CursorAndType cursor = cursors.next();
+                if (LOCAL_LOGV) Log.v(TAG, "backing up: " + cursor);
+
+                final BackupRow row = cursor.readRow();
+                if (cursor.type == DataType.MMS) {
+                    // collect rows to load their parts in one go
+                    mmsRows.add(row);
+                    if (mmsRows.size() == MMS_PREFETCH_SIZE && !submitMms(mmsRows)) {
+                        return false;
+                    }
+                } else if (!submitMms(mmsRows) || !submit(row, cursor.type)) {
+                    return false;
+                }
+            }
+            return submitMms(mmsRows) && !isStopped();
+        }
+
+        private boolean submitMms(List<BackupRow> rows) {
+            if (rows.isEmpty()) return true;
+
+            final List<BackupRow> batch = new ArrayList<BackupRow>(rows);
+            rows.clear();
+            converter.prefetchMms(batch);
+            for (BackupRow row : batch) {
+                if (isStopped() || !submit(row, DataType.MMS)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean submit(final BackupRow row, final DataType type) {
+            final Future<ConversionResult> result = converterPool.submit(new Callable<ConversionResult>() {
+                @Override public ConversionResult call() throws MessagingException {
+                    return converter.convertMessages(row, type);
+                }
+            });
+            if (!put(results, result)) {
+                return false;
+            }
+            progress.onRowRead(type, skipped.get());
+            return true;
+        }
+
+        private void upload() {
+            try {
+                Future<ConversionResult> future;
+                while ((future = take(results)) != null) {
+                    if (future == END_OF_RESULTS) {
+                        // other lanes are still busy with their own types
+                        for (DataType type : cursors.getTypes()) {
+                            batcher.flush(type);
+                        }
+                        return;
+                    }
+                    final ConversionResult result = get(future);
+                    if (isStopped()) {
+                        return;
+                    } else if (result == null || result.isEmpty()) {
+                        Log.w(TAG, "no messages converted");
+                        skipped.incrementAndGet();
+                    } else {
+                        batcher.add(result);
+                    }
+                }
+            } catch (ExecutionException e) {
+                fail(e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+            } catch (Exception e) {
+                fail(e);
+            }
+        }
+    }
+
+    private synchronized void fail(Exception e) {
+        Log.w(TAG, "backup stage failed", e);
+        if (failure == null) {
+            failure = e;
+        }
+        stopped = true;
+    }
+
+    private boolean isStopped() {
+        return stopped || progress.isCancelled();
+    }
+
+    private boolean put(BlockingQueue<Future<ConversionResult>> results, Future<ConversionResult> result) {
+        try {
+            while (!results.offer(result, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (isStopped()) return false;
+            }
+            return true;
+        } catch (InterruptedException e) {
+            stopped = true;
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    @Nullable private Future<ConversionResult> take(BlockingQueue<Future<ConversionResult>> results) {
+        try {
+            Future<ConversionResult> result;
+            while ((result = results.poll(POLL_MILLIS, TimeUnit.MILLISECONDS)) == null) {
+                if (isStopped()) return null;
+            }
+            return isStopped() ? null : result;
+        } catch (InterruptedException e) {
+            stopped = true;
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Waits for a conversion to finish, returns early if the pipeline got stopped while waiting.
+     */
+    @Nullable private ConversionResult get(Future<ConversionResult> future) throws ExecutionException {
+        try {
+            while (true) {
+                try {
+                    return future.get(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    if (isStopped()) return null;
+                }
+            }
+        } catch (InterruptedException e) {
+            stopped = true;
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    private void join(Thread thread) {
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                stopped = true;
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package com.zegoggles.smssync.service;
 
 import android.content.Context;
+import android.database.DatabaseUtils;
 import android.net.Uri;
 import android.provider.CallLog;
 import android.text.TextUtils;
@@ -12,14 +13,18 @@ import com.zegoggles.smssync.contacts.ContactGroupIds;
 import com.zegoggles.smssync.mail.DataType;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Locale;
-import java.util.Set;
 
 import static com.zegoggles.smssync.App.LOCAL_LOGV;
 import static com.zegoggles.smssync.App.TAG;
 import static com.zegoggles.smssync.mail.DataType.*;
 
 class BackupQueryBuilder {
+    // keeps the selection for MMS and call log at a reasonable length
+    static final int MAX_SELECTION_NUMBERS = 500;
+
     private final Context context;
 
     // only query for needed fields
@@ -32,6 +37,31 @@ class BackupQueryBuilder {
         CallLog.Calls.TYPE
     };
 
+    // the columns read by BackupRow.Reader
+    private static final String[] SMS_PROJECTION = {
+        SmsConsts.ID,
+        SmsConsts.ADDRESS,
+        SmsConsts.BODY,
+        SmsConsts.DATE,
+        SmsConsts.TYPE,
+        SmsConsts.THREAD_ID,
+        SmsConsts.READ,
+        SmsConsts.STATUS,
+        SmsConsts.PROTOCOL,
+        SmsConsts.SERVICE_CENTER
+    };
+
+    // addresses and parts are fetched separately, see MmsSupport
+    private static final String[] MMS_PROJECTION = {
+        MmsConsts.ID,
+        MmsConsts.DATE,
+        MmsConsts.TYPE,
+        MmsConsts.MESSAGE_BOX,
+        MmsConsts.THREAD_ID,
+        MmsConsts.READ,
+        MmsConsts.SIZE
+    };
+
     public BackupQueryBuilder(Context context) {
         this.context = context;
     }
@@ -55,13 +85,48 @@ class BackupQueryBuilder {
             this(uri, projection, selection, selectionArgs,
                     max > 0 ? SmsConsts.DATE + " LIMIT "+max : SmsConsts.DATE);
         }
+
+        /**
+         * @return a query selecting only the ids of the matching rows, to count them cheaply
+         */
+        Query count() {
+            return new Query(uri, new String[] { SmsConsts.ID }, selection, selectionArgs, sortOrder);
+        }
+
+        /**
+         * Keyset pagination: returns the query for the next <code>pageSize</code> rows ordered by date,
+         * following the row with the given date and id. Ties on the date are broken by id.
+         * @param afterId the id of the last row of the previous page, or -1 for the first page
+         */
+        Query page(int pageSize, long afterDate, long afterId) {
+            final String pageOrder = String.format(Locale.ENGLISH, "%s, %s LIMIT %d", SmsConsts.DATE, SmsConsts.ID, pageSize);
+            if (afterId < 0) {
+                return new Query(uri, projection, selection, selectionArgs, pageOrder);
+            }
+            final String keySelection = String.format(Locale.ENGLISH, "(%s > ? OR (%s = ? AND %s > ?))",
+                    SmsConsts.DATE, SmsConsts.DATE, SmsConsts.ID);
+
+            final int argCount = selectionArgs == null ? 0 : selectionArgs.length;
+            final String[] pageArgs = new String[argCount + 3];
+            if (argCount > 0) {
+                System.arraycopy(selectionArgs, 0, pageArgs, 0, argCount);
+            }
+            pageArgs[argCount]     = String.valueOf(afterDate);
+            pageArgs[argCount + 1] = String.valueOf(afterDate);
+            pageArgs[argCount + 2] = String.valueOf(afterId);
+
+            return new Query(uri, projection,
+                    TextUtils.isEmpty(selection) ? keySelection : "(" + selection + ") AND " + keySelection,
+                    pageArgs,
+                    pageOrder);
+        }
     }
 
     public @Nullable Query buildQueryForDataType(DataType type, @Nullable ContactGroupIds groupIds, int max) {
         switch (type) {
             case SMS:     return getQueryForSMS(groupIds, max);
             case MMS:     return getQueryForMMS(groupIds, max);
-            case CALLLOG: return getQueryForCallLog(max);
+            case CALLLOG: return getQueryForCallLog(groupIds, max);
             default:      return null;
         }
     }
@@ -96,7 +161,7 @@ class BackupQueryBuilder {
 
     private Query getQueryForSMS(@Nullable ContactGroupIds groupIds, int max) {
         return new Query(Consts.SMS_PROVIDER,
-            null,
+            SMS_PROJECTION,
             String.format(Locale.ENGLISH,
                 "%s > ? AND %s <> ? %s",
                     SmsConsts.DATE,
@@ -117,7 +182,7 @@ class BackupQueryBuilder {
         }
         return new Query(
             Consts.MMS_PROVIDER,
-            null,
+            MMS_PROJECTION,
             String.format(Locale.ENGLISH, "%s > ? AND %s <> ? %s",
                     SmsConsts.DATE,
                     MmsConsts.TYPE,
@@ -129,30 +194,82 @@ class BackupQueryBuilder {
             max);
     }
 
-    private Query getQueryForCallLog(int max) {
+    private Query getQueryForCallLog(@Nullable ContactGroupIds group, int max) {
         return new Query(
             Consts.CALLLOG_PROVIDER,
             CALLLOG_PROJECTION,
-            String.format(Locale.ENGLISH, "%s > ?", CallLog.Calls.DATE),
+            String.format(Locale.ENGLISH, "%s > ? %s",
+                    CallLog.Calls.DATE,
+                    groupSelection(CALLLOG, group)).trim(),
             new String[] {
                 String.valueOf(CALLLOG.getMaxSyncedDate(context))
             },
             max);
     }
 
+    /**
+     * Restricts the query to the contacts of the group, so that other rows are not even fetched.
+     * The selection matches at least all rows {@link com.zegoggles.smssync.mail.MessageGenerator}
+     * includes, which still checks each row.
+     * <ul>
+     *     <li>SMS: sent messages or messages from the raw contacts of the group</li>
+     *     <li>MMS: messages with an address (sender or recipient) matching a number of the group</li>
+     *     <li>Call log: calls with a number matching a number of the group</li>
+     * </ul>
+     * Numbers are compared with <code>PHONE_NUMBERS_EQUAL</code>, which Android registers on all its
+     * databases. Groups with more than {@link #MAX_SELECTION_NUMBERS} numbers are not filtered for MMS
+     * and call log.
+     */
     private String groupSelection(DataType type, @Nullable ContactGroupIds group) {
-        /* Only MMS selection is supported at the moment */
-        if (type != SMS || group == null) {
+        if (group == null) {
             return "";
         }
+        switch (type) {
+            case SMS:
+                final long[] rawIds = group.getRawIds();
+                if (LOCAL_LOGV) Log.v(TAG, "only selecting contacts matching " + Arrays.toString(rawIds));
+                return String.format(Locale.ENGLISH, " AND (%s = %d OR %s IN (%s))",
+                    SmsConsts.TYPE,
+                    SmsConsts.MESSAGE_TYPE_SENT,
+                    SmsConsts.PERSON,
+                    join(rawIds));
+            case MMS:
+                if (group.getNumbers().size() > MAX_SELECTION_NUMBERS) return "";
+                return String.format(Locale.ENGLISH, " AND %s IN (SELECT %s FROM %s WHERE %s)",
+                    MmsConsts.ID,
+                    MmsConsts.ADDR_MSG_ID,
+                    MmsConsts.ADDR_TABLE,
+                    numbersSelection(MmsConsts.ADDR_ADDRESS, group.getNumbers()));
+            case CALLLOG:
+                if (group.getNumbers().size() > MAX_SELECTION_NUMBERS) return "";
+                return String.format(Locale.ENGLISH, " AND (%s)",
+                    numbersSelection(CallLog.Calls.NUMBER, group.getNumbers()));
+            default:
+                return "";
+        }
+    }
 
-        final Set<Long> ids = group.getRawIds();
+    private static String numbersSelection(String column, Collection<String> numbers) {
+        if (numbers.isEmpty()) {
+            // no number can match
+            return "0";
+        }
+        final StringBuilder selection = new StringBuilder();
+        for (String number : numbers) {
+            if (selection.length() > 0) selection.append(" OR ");
+            selection.append("PHONE_NUMBERS_EQUAL(").append(column).append(", ");
+            DatabaseUtils.appendEscapedSQLString(selection, number);
+            selection.append(')');
+        }
+        return selection.toString();
+    }
 
-        if (LOCAL_LOGV) Log.v(TAG, "only selecting contacts matching " + ids);
-        return String.format(Locale.ENGLISH, " AND (%s = %d OR %s IN (%s))",
-            SmsConsts.TYPE,
-            SmsConsts.MESSAGE_TYPE_SENT,
-            SmsConsts.PERSON,
-            TextUtils.join(",", ids.toArray(new Long[ids.size()])));
+    private static String join(long[] values) {
+        final StringBuilder joined = new StringBuilder();
+        for (long value : values) {
+            if (joined.length() > 0) joined.append(',');
+            joined.append(value);
+        }
+        return joined.toString();
     }
 }
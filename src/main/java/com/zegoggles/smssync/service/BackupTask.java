@@ -4,7 +4,6 @@ import android.content.Context;
 import android.os.AsyncTask;
 import android.util.Log;
 import com.fsck.k9.mail.AuthenticationFailedException;
-import com.fsck.k9.mail.Message;
 import com.fsck.k9.mail.MessagingException;
 import com.fsck.k9.mail.store.XOAuth2AuthenticationFailedException;
 import com.squareup.otto.Subscribe;
@@ -18,20 +17,23 @@ import com.zegoggles.smssync.contacts.ContactAccessor;
 import com.zegoggles.smssync.contacts.ContactGroupIds;
 import com.zegoggles.smssync.mail.BackupImapStore;
 import com.zegoggles.smssync.mail.CallFormatter;
+import com.zegoggles.smssync.mail.ContactIndex;
 import com.zegoggles.smssync.mail.ConversionResult;
 import com.zegoggles.smssync.mail.DataType;
 import com.zegoggles.smssync.mail.MessageConverter;
+import com.zegoggles.smssync.mail.PersonCache;
 import com.zegoggles.smssync.mail.PersonLookup;
+import com.zegoggles.smssync.mail.TransferStats;
 import com.zegoggles.smssync.preferences.AuthPreferences;
 import com.zegoggles.smssync.preferences.Preferences;
+import com.zegoggles.smssync.preferences.SyncStateStore;
 import com.zegoggles.smssync.service.state.BackupState;
 import com.zegoggles.smssync.service.state.SmsSyncState;
 import org.jetbrains.annotations.NotNull;
 
-import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import static com.zegoggles.smssync.App.LOCAL_LOGV;
 import static com.zegoggles.smssync.App.TAG;
 import static com.zegoggles.smssync.mail.DataType.CALLLOG;
 import static com.zegoggles.smssync.mail.DataType.Defaults;
@@ -63,9 +65,11 @@ class BackupTask extends AsyncTask<BackupConfig, BackupState, BackupState> {
 
         this.fetcher = new BackupItemsFetcher(context,
                 context.getContentResolver(),
-                new BackupQueryBuilder(context));
+                new BackupQueryBuilder(context),
+                preferences.getBackupPageSize());
 
-        PersonLookup personLookup = new PersonLookup(service.getContentResolver());
+        PersonLookup personLookup = new PersonLookup(service.getContentResolver(),
+                preferences.isContactsCacheEnabled() ? PersonCache.get(context) : null);
 
         this.converter = new MessageConverter(context, preferences, authPreferences.getUserEmail(), personLookup, ContactAccessor.Get.instance());
         this.contactAccessor = ContactAccessor.Get.instance();
@@ -115,7 +119,7 @@ class BackupTask extends AsyncTask<BackupConfig, BackupState, BackupState> {
         if (params == null || params.length == 0) throw new IllegalArgumentException("No config passed");
         final BackupConfig config = params[0];
         if (config.skip) {
-            return skip(config.typesToBackup);
+            return skip(config);
         } else {
             return acquireLocksAndBackup(config);
         }
@@ -132,6 +136,7 @@ class BackupTask extends AsyncTask<BackupConfig, BackupState, BackupState> {
 
     private BackupState fetchAndBackupItems(BackupConfig config) {
         BackupCursors cursors = null;
+        boolean reuseStore = false;
         try {
             final ContactGroupIds groupIds = contactAccessor.getGroupContactIds(service.getContentResolver(), config.groupToBackup);
 
@@ -143,16 +148,23 @@ class BackupTask extends AsyncTask<BackupConfig, BackupState, BackupState> {
                 if (config.debug) {
                     appLog(R.string.app_log_backup_messages_with_config, config);
                 }
+                preloadContacts();
 
-                return backupCursors(cursors, config.imapStore, config.backupType, itemsToSync);
+                final BackupState state = backupCursors(cursors, config.imapStore, config.backupType, itemsToSync);
+                // keep the connection open for the next backup, unless it failed
+                reuseStore = true;
+                return state;
             } else {
                 appLog(R.string.app_log_skip_backup_no_items);
+                reuseStore = true;
 
                 if (preferences.isFirstBackup()) {
                     // If this is the first backup we need to write something to MAX_SYNCED_DATE
                     // such that we know that we've performed a backup before.
-                    SMS.setMaxSyncedDate(service, Defaults.MAX_SYNCED_DATE);
-                    MMS.setMaxSyncedDate(service, Defaults.MAX_SYNCED_DATE);
+                    final SyncStateStore.Checkpoint checkpoint = SyncStateStore.get(service).beginCheckpoint();
+                    checkpoint.update(SMS, Defaults.MAX_SYNCED_DATE, 0);
+                    checkpoint.update(MMS, Defaults.MAX_SYNCED_DATE, 0);
+                    checkpoint.close();
                 }
                 Log.i(TAG, "Nothing to do.");
                 return transition(FINISHED_BACKUP, null);
@@ -167,6 +179,7 @@ class BackupTask extends AsyncTask<BackupConfig, BackupState, BackupState> {
             if (cursors != null) {
                 cursors.close();
             }
+            service.releaseBackupImapStore(config.imapStore, reuseStore);
         }
     }
 
@@ -194,19 +207,39 @@ class BackupTask extends AsyncTask<BackupConfig, BackupState, BackupState> {
         return transition(ERROR, e);
     }
 
-    private BackupState skip(Iterable<DataType> types) {
-        appLog(R.string.app_log_skip_backup_skip_messages);
-        for (DataType type : types) {
-            type.setMaxSyncedDate(service, fetcher.getMostRecentTimestamp(type));
+    private BackupState skip(BackupConfig config) {
+        try {
+            appLog(R.string.app_log_skip_backup_skip_messages);
+            final SyncStateStore.Checkpoint checkpoint = SyncStateStore.get(service).beginCheckpoint();
+            for (DataType type : config.typesToBackup) {
+                checkpoint.update(type, fetcher.getMostRecentTimestamp(type), 0);
+            }
+            checkpoint.close();
+            Log.i(TAG, "All messages skipped.");
+            return new BackupState(FINISHED_BACKUP, 0, 0, BackupType.MANUAL, null, null);
+        } finally {
+            // the store has not been used
+            service.releaseBackupImapStore(config.imapStore, true);
         }
-        Log.i(TAG, "All messages skipped.");
-        return new BackupState(FINISHED_BACKUP, 0, 0, BackupType.MANUAL, null, null);
     }
 
     private void appLog(int id, Object... args) {
         service.appLog(id, args);
     }
 
+    private void logTransferStats(TransferStats stats) {
+        final Context context = service.getApplicationContext();
+        appLog(R.string.app_log_transfer_stats, stats.formatMessageBytes(context), stats.formatNetworkBytes(context));
+    }
+
+    private void preloadContacts() {
+        final ContactIndex index = converter.preloadContacts();
+        if (index != null) {
+            appLog(R.string.app_log_contacts_preloaded, index.getContactCount(), index.getNumberCount(),
+                    index.getBuildMillis(), index.formatEstimatedBytes(service.getApplicationContext()));
+        }
+    }
+
     private void appLogDebug(String message, Object... args) {
         service.appLogDebug(message, args);
     }
@@ -241,49 +274,48 @@ class BackupTask extends AsyncTask<BackupConfig, BackupState, BackupState> {
         App.bus.post(state);
     }
 
-    private BackupState backupCursors(BackupCursors cursors, BackupImapStore store, BackupType backupType, int itemsToSync)
+    private BackupState backupCursors(BackupCursors cursors, BackupImapStore store, final BackupType backupType, final int itemsToSync)
             throws MessagingException {
         Log.i(TAG, String.format(Locale.ENGLISH, "Starting backup (%d messages)", itemsToSync));
         publish(LOGIN);
         store.checkSettings();
 
-        try {
-            publish(CALC);
-            int backedUpItems = 0;
-            while (!isCancelled() && cursors.hasNext()) {
-                BackupCursors.CursorAndType cursor = cursors.next();
-                if (LOCAL_LOGV) Log.v(TAG, "backing up: " + cursor);
-
-                ConversionResult result = converter.convertMessages(cursor.cursor, cursor.type);
-                if (!result.isEmpty()) {
-                    List<Message> messages = result.getMessages();
-
-                    if (LOCAL_LOGV) {
-                        Log.v(TAG, String.format(Locale.ENGLISH, "sending %d %s message(s) to server.",
-                                messages.size(), cursor.type));
-                    }
-
-                    store.getFolder(cursor.type).appendMessages(messages);
-
-                    if (cursor.type == CALLLOG && calendarSyncer != null) {
-                        calendarSyncer.syncCalendar(result);
+        final AtomicInteger backedUpItems = new AtomicInteger();
+        final SyncStateStore.Checkpoint checkpoint = SyncStateStore.get(service).beginCheckpoint();
+        final BackupBatcher batcher = new BackupBatcher(store,
+                preferences.getBackupBatchSize(),
+                preferences.getBackupBatchMaxBytes(),
+                new BackupBatcher.Listener() {
+                    @Override
+                    public void onBatchAppended(@NotNull ConversionResult batch) {
+                        if (batch.type == CALLLOG && calendarSyncer != null) {
+                            calendarSyncer.syncCalendar(batch);
+                        }
+                        checkpoint.update(batch.type, batch.getMaxDate(), batch.size());
+                        backedUpItems.addAndGet(batch.size());
                     }
-                    cursor.type.setMaxSyncedDate(service, result.getMaxDate());
-                    backedUpItems += messages.size();
-                } else {
-                    Log.w(TAG, "no messages converted");
-                    itemsToSync -= 1;
-                }
+                });
+        final BackupPipeline pipeline = new BackupPipeline(service.getApplicationContext(), converter, batcher, new BackupPipeline.Progress() {
+            @Override public boolean isCancelled() {
+                return BackupTask.this.isCancelled();
+            }
 
-                publishProgress(new BackupState(BACKUP, backedUpItems, itemsToSync, backupType, cursor.type, null));
+            @Override public void onRowRead(@NotNull DataType type, int skipped) {
+                publishProgress(new BackupState(BACKUP, backedUpItems.get(), itemsToSync - skipped, backupType, type, null));
             }
+        }, BackupPipeline.converterThreads(preferences.getBackupConverterThreads()),
+           preferences.getBackupMaxConnections());
+        try {
+            publish(CALC);
+            pipeline.run(cursors);
+            logTransferStats(store.getTransferStats());
 
             return new BackupState(FINISHED_BACKUP,
-                    backedUpItems,
-                    itemsToSync,
+                    backedUpItems.get(),
+                    itemsToSync - pipeline.getSkipped(),
                     backupType, null, null);
         } finally {
-            store.closeFolders();
+            checkpoint.close();
         }
     }
 
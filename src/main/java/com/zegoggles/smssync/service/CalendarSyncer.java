@@ -1,8 +1,8 @@
 package com.zegoggles.smssync.service;
 
-import android.provider.CallLog;
 import android.util.Log;
 import com.zegoggles.smssync.calendar.CalendarAccessor;
+import com.zegoggles.smssync.mail.BackupRow;
 import com.zegoggles.smssync.mail.CallFormatter;
 import com.zegoggles.smssync.mail.ConversionResult;
 import com.zegoggles.smssync.mail.DataType;
@@ -10,7 +10,6 @@ import com.zegoggles.smssync.mail.PersonLookup;
 import com.zegoggles.smssync.mail.PersonRecord;
 
 import java.util.Date;
-import java.util.Map;
 
 import static com.zegoggles.smssync.App.TAG;
 
@@ -35,24 +34,23 @@ class CalendarSyncer {
         enableSync();
 
         if (result.type != DataType.CALLLOG) return;
-        for (Map<String, String> m : result.getMapList()) {
-            try {
-                final int duration = Integer.parseInt(m.get(CallLog.Calls.DURATION));
-                final int callType = Integer.parseInt(m.get(CallLog.Calls.TYPE));
-                final String number = m.get(CallLog.Calls.NUMBER);
-                final Date then = new Date(Long.valueOf(m.get(CallLog.Calls.DATE)));
-                final PersonRecord record = personLookup.lookupPerson(number);
-
-                // insert into calendar
-                calendarAccessor.addEntry(
-                        calendarId,
-                        then,
-                        duration,
-                        callFormatter.callTypeString(callType, record.getName()),
-                        callFormatter.formatForCalendar(callType, record.getNumber(), duration));
-            } catch (NumberFormatException e) {
-                Log.w(TAG, "error", e);
+        for (BackupRow row : result.getRows()) {
+            if (row.duration == BackupRow.NULL || row.type == BackupRow.NULL || row.date == BackupRow.NULL) {
+                Log.w(TAG, "incomplete call log entry: " + row);
+                continue;
             }
+            final int duration = (int) row.duration;
+            final int callType = row.type;
+            final Date then = new Date(row.date);
+            final PersonRecord record = personLookup.lookupPerson(row.address);
+
+            // insert into calendar
+            calendarAccessor.addEntry(
+                    calendarId,
+                    then,
+                    duration,
+                    callFormatter.callTypeString(callType, record.getName()),
+                    callFormatter.formatForCalendar(callType, record.getNumber(), duration));
         }
     }
 
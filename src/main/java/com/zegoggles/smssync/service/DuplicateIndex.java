@@ -0,0 +1,181 @@
+package com.zegoggles.smssync.service;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.CallLog;
+import android.util.Log;
+import com.zegoggles.smssync.Consts;
+import com.zegoggles.smssync.SmsConsts;
+
+import static com.zegoggles.smssync.App.TAG;
+
+/**
+ * Fingerprints of the rows of a provider, used during restore to skip messages which exist already
+ * without querying the provider for each of them. Rows are identified by a few numeric columns (dates, types)
+ * and one text column (the address), hashed into a 64 bit fingerprint and kept in an open addressing
+ * table of primitive longs, so a check is a memory probe.
+ * <p>
+ * Distinct rows only collide with a probability of about <code>n<sup>2</sup> / 2<sup>65</sup></code>,
+ * which is negligible for the size of a message store.
+ */
+class DuplicateIndex {
+    private static final long EMPTY = 0;
+    private static final long NULL_VALUE = 0x5bd1e9955bd1e995L;
+
+    private final Uri provider;
+    private final String[] numericColumns;
+    private final String textColumn;
+
+    private long[] table = new long[64];
+    private int size;
+    private boolean loaded;
+
+    DuplicateIndex(Uri provider, String[] numericColumns, String textColumn) {
+        this.provider = provider;
+        this.numericColumns = numericColumns;
+        this.textColumn = textColumn;
+    }
+
+    /**
+     * SMS are identified by date, type and address, like the check done before the index existed.
+     */
+    static DuplicateIndex sms() {
+        return new DuplicateIndex(Consts.SMS_PROVIDER,
+                new String[] { SmsConsts.DATE, SmsConsts.TYPE },
+                SmsConsts.ADDRESS);
+    }
+
+    /**
+     * Call log entries are identified by date, duration, type and number.
+     */
+    static DuplicateIndex callLog() {
+        return new DuplicateIndex(Consts.CALLLOG_PROVIDER,
+                new String[] { CallLog.Calls.DATE, CallLog.Calls.DURATION, CallLog.Calls.TYPE },
+                CallLog.Calls.NUMBER);
+    }
+
+    /**
+     * Adds all rows of the provider, reading them with a single query.
+     * @return true if the rows could be read, otherwise the index only contains the rows added later
+     */
+    boolean load(ContentResolver resolver) {
+        final String[] projection = new String[numericColumns.length + 1];
+        System.arraycopy(numericColumns, 0, projection, 0, numericColumns.length);
+        projection[numericColumns.length] = textColumn;
+
+        final long start = System.currentTimeMillis();
+        final Cursor cursor = resolver.query(provider, projection, null, null, null);
+        if (cursor == null) return false;
+        try {
+            ensureCapacity(cursor.getCount());
+            while (cursor.moveToNext()) {
+                long fingerprint = 0;
+                for (int i = 0; i < numericColumns.length; i++) {
+                    fingerprint = mix(fingerprint, cursor.isNull(i) ? NULL_VALUE : cursor.getLong(i));
+                }
+                insert(finish(fingerprint, cursor.getString(numericColumns.length)));
+            }
+        } finally {
+            cursor.close();
+        }
+        loaded = true;
+        Log.d(TAG, "indexed " + size + " rows of " + provider + " in " + (System.currentTimeMillis() - start) + "ms");
+        return true;
+    }
+
+    /**
+     * @return true if the index contains all rows of the provider
+     */
+    boolean isLoaded() {
+        return loaded;
+    }
+
+    boolean contains(ContentValues values) {
+        final long fingerprint = fingerprint(values);
+        final int mask = table.length - 1;
+        for (int i = slot(fingerprint, mask); table[i] != EMPTY; i = (i + 1) & mask) {
+            if (table[i] == fingerprint) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Adds a row, to detect duplicates of rows which are about to be inserted.
+     * @return false if the index already contained the row
+     */
+    boolean add(ContentValues values) {
+        ensureCapacity(size + 1);
+        return insert(fingerprint(values));
+    }
+
+    int size() {
+        return size;
+    }
+
+    private long fingerprint(ContentValues values) {
+        long fingerprint = 0;
+        for (String column : numericColumns) {
+            final Long value = values.getAsLong(column);
+            fingerprint = mix(fingerprint, value == null ? NULL_VALUE : value);
+        }
+        return finish(fingerprint, values.getAsString(textColumn));
+    }
+
+    private boolean insert(long fingerprint) {
+        final int mask = table.length - 1;
+        int i = slot(fingerprint, mask);
+        for (; table[i] != EMPTY; i = (i + 1) & mask) {
+            if (table[i] == fingerprint) return false;
+        }
+        table[i] = fingerprint;
+        size++;
+        return true;
+    }
+
+    /**
+     * Keeps the table at most half full.
+     */
+    private void ensureCapacity(int count) {
+        if (count * 2 <= table.length) return;
+
+        int capacity = table.length;
+        while (count * 2 > capacity) capacity *= 2;
+
+        final long[] old = table;
+        table = new long[capacity];
+        size = 0;
+        for (long fingerprint : old) {
+            if (fingerprint != EMPTY) insert(fingerprint);
+        }
+    }
+
+    private static int slot(long fingerprint, int mask) {
+        return (int) (fingerprint ^ (fingerprint >>> 32)) & mask;
+    }
+
+    private static long mix(long hash, long value) {
+        return (hash ^ value) * 0x9e3779b97f4a7c15L + 0x632be59bd9b4e019L;
+    }
+
+    /**
+     * Adds a 64 bit FNV-1a hash of <code>text</code> and scrambles the result (MurmurHash3 finalizer).
+     */
+    private static long finish(long hash, String text) {
+        long textHash = NULL_VALUE;
+        if (text != null) {
+            textHash = 0xcbf29ce484222325L;
+            for (int i = 0; i < text.length(); i++) {
+                textHash = (textHash ^ text.charAt(i)) * 0x100000001b3L;
+            }
+        }
+        long h = mix(hash, textHash);
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h == EMPTY ? 1 : h;
+    }
+}
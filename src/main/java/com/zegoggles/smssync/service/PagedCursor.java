@@ -0,0 +1,235 @@
+package com.zegoggles.smssync.service;
+
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.util.Log;
+import com.zegoggles.smssync.SmsConsts;
+import org.jetbrains.annotations.NotNull;
+
+import static com.zegoggles.smssync.App.LOCAL_LOGV;
+import static com.zegoggles.smssync.App.TAG;
+
+/**
+ * A forward-only cursor over the results of a query, which are read one page at a time using
+ * keyset pagination (see {@link BackupQueryBuilder.Query#page(int, long, long)}).
+ * Only one page is held in memory, it gets closed before the next one is read.
+ * The number of rows is fixed when the cursor is created, rows added later are not returned.
+ * <p>
+ * It keeps its own position and moves the current page like {@link android.database.AbstractCursor} does,
+ * whose move methods are final and are replaced by Robolectric without calling <code>onMove</code>.
+ */
+class PagedCursor extends CursorWrapper {
+    interface PageLoader {
+        @NotNull Cursor load(@NotNull BackupQueryBuilder.Query query);
+    }
+
+    private final PageLoader loader;
+    private final BackupQueryBuilder.Query query;
+    private final int count;
+    private final int pageSize;
+    private final String[] columnNames;
+
+    private Cursor page;
+    private int pageStart;
+    private int position = -1;
+
+    /**
+     * @param firstPage the result of <code>query.page(pageSize, 0, -1)</code>
+     * @param count the total number of rows to return
+     */
+    PagedCursor(@NotNull PageLoader loader,
+                @NotNull BackupQueryBuilder.Query query,
+                @NotNull Cursor firstPage,
+                int count,
+                int pageSize) {
+        super(firstPage);
+        this.loader = loader;
+        this.query = query;
+        this.page = firstPage;
+        this.count = count;
+        this.pageSize = pageSize;
+        this.columnNames = firstPage.getColumnNames();
+    }
+
+    @Override
+    public boolean moveToPosition(int newPosition) {
+        if (newPosition >= count) {
+            position = count;
+            return false;
+        } else if (newPosition < 0) {
+            position = -1;
+            return false;
+        } else if (newPosition == position) {
+            return true;
+        }
+        final boolean moved = movePage(newPosition);
+        position = moved ? newPosition : -1;
+        return moved;
+    }
+
+    @Override
+    public boolean move(int offset) {
+        return moveToPosition(position + offset);
+    }
+
+    @Override
+    public boolean moveToFirst() {
+        return moveToPosition(0);
+    }
+
+    @Override
+    public boolean moveToLast() {
+        return moveToPosition(count - 1);
+    }
+
+    @Override
+    public boolean moveToNext() {
+        return moveToPosition(position + 1);
+    }
+
+    @Override
+    public boolean moveToPrevious() {
+        return moveToPosition(position - 1);
+    }
+
+    @Override
+    public int getPosition() {
+        return position;
+    }
+
+    @Override
+    public boolean isFirst() {
+        return position == 0 && count != 0;
+    }
+
+    @Override
+    public boolean isLast() {
+        return position == count - 1 && count != 0;
+    }
+
+    @Override
+    public boolean isBeforeFirst() {
+        return count == 0 || position == -1;
+    }
+
+    @Override
+    public boolean isAfterLast() {
+        return count == 0 || position == count;
+    }
+
+    private boolean movePage(int newPosition) {
+        if (newPosition < pageStart) {
+            // moving backwards, start over
+            page.close();
+            page = loader.load(query.page(pageSize, 0, -1));
+            pageStart = 0;
+        }
+        while (newPosition >= pageStart + page.getCount()) {
+            if (page.getCount() == 0) {
+                Log.w(TAG, "rows removed while paging, expected " + count);
+                return false;
+            }
+            page.moveToLast();
+            final long lastDate = page.getLong(page.getColumnIndexOrThrow(SmsConsts.DATE));
+            final long lastId = page.getLong(page.getColumnIndexOrThrow(SmsConsts.ID));
+
+            pageStart += page.getCount();
+            page.close();
+            if (LOCAL_LOGV) Log.v(TAG, "loading page at " + pageStart + " (date=" + lastDate + ", id=" + lastId + ")");
+            page = loader.load(query.page(pageSize, lastDate, lastId));
+        }
+        return page.moveToPosition(newPosition - pageStart);
+    }
+
+    @Override
+    public int getCount() {
+        return count;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return columnNames;
+    }
+
+    @Override
+    public int getColumnCount() {
+        return columnNames.length;
+    }
+
+    @Override
+    public int getColumnIndex(String columnName) {
+        return page.getColumnIndex(columnName);
+    }
+
+    @Override
+    public int getColumnIndexOrThrow(String columnName) {
+        return page.getColumnIndexOrThrow(columnName);
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return columnNames[column];
+    }
+
+    @Override
+    public String getString(int column) {
+        return page.getString(column);
+    }
+
+    @Override
+    public void copyStringToBuffer(int column, CharArrayBuffer buffer) {
+        page.copyStringToBuffer(column, buffer);
+    }
+
+    @Override
+    public short getShort(int column) {
+        return page.getShort(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        return page.getInt(column);
+    }
+
+    @Override
+    public long getLong(int column) {
+        return page.getLong(column);
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return page.getFloat(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        return page.getDouble(column);
+    }
+
+    @Override
+    public byte[] getBlob(int column) {
+        return page.getBlob(column);
+    }
+
+    @Override
+    public int getType(int column) {
+        return page.getType(column);
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return page.isNull(column);
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        page.close();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return page.isClosed();
+    }
+}
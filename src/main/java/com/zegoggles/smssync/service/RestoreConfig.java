@@ -9,6 +9,7 @@ public class RestoreConfig {
     final boolean restoreOnlyStarred;
     final int maxRestore;
     final int currentRestoredItem;
+    final int batchSize;
     final BackupImapStore imapStore;
 
     public RestoreConfig(BackupImapStore imapStore,
@@ -17,7 +18,8 @@ public class RestoreConfig {
                          boolean restoreCallLog,
                          boolean restoreOnlyStarred,
                          int maxRestore,
-                         int currentRestoredItem) {
+                         int currentRestoredItem,
+                         int batchSize) {
 
         this.tries = tries;
         this.imapStore = imapStore;
@@ -26,6 +28,7 @@ public class RestoreConfig {
         this.restoreOnlyStarred = restoreOnlyStarred;
         this.maxRestore = maxRestore;
         this.currentRestoredItem = currentRestoredItem;
+        this.batchSize = batchSize;
     }
 
     public RestoreConfig retryWithStore(int currentItem, BackupImapStore backupImapStore) {
@@ -36,7 +39,8 @@ public class RestoreConfig {
                 restoreCallLog,
                 restoreOnlyStarred,
                 maxRestore,
-                currentItem
+                currentItem,
+                batchSize
         );
     }
 
@@ -48,6 +52,7 @@ public class RestoreConfig {
                 ", restoreOnlyStarred=" + restoreOnlyStarred +
                 ", maxRestore=" + maxRestore +
                 ", currentRestoredItem=" + currentRestoredItem +
+                ", batchSize=" + batchSize +
                 ", imapStore=" + imapStore +
                 '}';
     }
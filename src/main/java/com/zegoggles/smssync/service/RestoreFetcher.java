@@ -0,0 +1,222 @@
+package com.zegoggles.smssync.service;
+
+import android.util.Log;
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.MessagingException;
+import com.zegoggles.smssync.mail.BackupImapStore;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static com.zegoggles.smssync.App.LOCAL_LOGV;
+import static com.zegoggles.smssync.App.TAG;
+
+/**
+ * Downloads the bodies of the messages to restore on a background thread, so that the next messages
+ * are transferred while the current ones are converted and written to the providers.
+ * <p>
+ * Messages are fetched in windows of consecutive messages of the same folder, with one <code>UID FETCH</code>
+ * command per window instead of one per message (see {@link BackupImapStore.BackupFolder#fetchForRestore}). The fetching thread stays at most a few windows ahead, so
+ * memory is bounded by the window size, not by the number of messages. An IMAP connection only runs one
+ * command at a time, so the windows of a folder are requested one after the other.
+ * <p>
+ * Messages which have to be fetched completely keep their bodies in temporary files
+ * (see {@link SmsRestoreService#getCachedBodies()}). Every window comes with the files which existed once it had
+ * been fetched: after the window has been imported these can be deleted without touching the bodies of windows
+ * fetched later.
+ */
+class RestoreFetcher {
+    static final int WINDOW_SIZE = 50;
+    static final int WINDOWS_AHEAD = 2;
+    /** how long to wait for a command in progress when stopping */
+    static final long STOP_TIMEOUT_MILLIS = 5000;
+    private static final long POLL_MILLIS = 100;
+
+    private static final Window END_OF_WINDOWS = new Window(-1, Collections.<Message>emptyList(), null, false);
+
+    private final List<Message> messages;
+    private final SmsRestoreService service;
+    private final int windowSize;
+    private final BlockingQueue<Window> windows;
+    private final Thread thread;
+
+    private volatile boolean stopped;
+    private volatile RuntimeException failure;
+
+    /**
+     * @param messages the messages to fetch, entries are set to null once their window has been released
+     */
+    RestoreFetcher(@NotNull List<Message> messages, @NotNull SmsRestoreService service,
+                   int windowSize, int windowsAhead) {
+        this.messages = messages;
+        this.service = service;
+        this.windowSize = Math.max(1, windowSize);
+        this.windows = new ArrayBlockingQueue<Window>(Math.max(1, windowsAhead));
+        this.thread = new Thread("RestoreFetcher") {
+            @Override public void run() {
+                fetch();
+            }
+        };
+    }
+
+    RestoreFetcher(@NotNull List<Message> messages, @NotNull SmsRestoreService service) {
+        this(messages, service, WINDOW_SIZE, WINDOWS_AHEAD);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Waits for the next window.
+     * @return the window, or null if all messages have been fetched or the fetcher has been stopped
+     * @throws RuntimeException if fetching failed unexpectedly
+     */
+    @Nullable Window next() {
+        final Window window = take();
+        if (window != END_OF_WINDOWS) {
+            return window;
+        } else if (failure != null) {
+            throw failure;
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Drops the references to the messages of a window which has been imported.
+     */
+    void release(@NotNull Window window) {
+        for (int i = window.position; i < window.position + window.messages.size(); i++) {
+            messages.set(i, null); // help gc
+        }
+    }
+
+    /**
+     * Stops fetching and waits for a command in progress to finish, at most {@link #STOP_TIMEOUT_MILLIS}.
+     * @return true if fetching has finished, false if the connection of the folder is still in use
+     */
+    boolean stop() {
+        halt();
+        try {
+            thread.join(STOP_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return !thread.isAlive();
+    }
+
+    /**
+     * Does not interrupt the fetching thread, the command in progress has to finish so that the connection
+     * can be used again. The thread notices within {@link #POLL_MILLIS} that it has been stopped.
+     */
+    private void halt() {
+        stopped = true;
+        windows.clear();
+    }
+
+    private void fetch() {
+        try {
+            int position = 0;
+            while (position < messages.size() && !stopped) {
+                final List<Message> window = takeWindow(position);
+
+                final List<Message> fetched = fetch(window);
+                final Window next = fetched != null ?
+                        new Window(position, fetched, service.getCachedBodies(), true) :
+                        new Window(position, window, null, false);
+                if (!put(next)) {
+                    return;
+                }
+                position += window.size();
+            }
+        } catch (RuntimeException e) {
+            Log.w(TAG, "fetching failed", e);
+            failure = e;
+        } finally {
+            put(END_OF_WINDOWS);
+        }
+    }
+
+    /**
+     * Takes up to {@link #windowSize} messages of the same folder, starting at <code>position</code>.
+     */
+    private List<Message> takeWindow(int position) {
+        final List<Message> window = new ArrayList<Message>(windowSize);
+        final int end = Math.min(messages.size(), position + windowSize);
+        for (int i = position; i < end; i++) {
+            final Message message = messages.get(i);
+            if (!window.isEmpty() && message.getFolder() != window.get(0).getFolder()) {
+                break;
+            }
+            window.add(message);
+        }
+        return window;
+    }
+
+    /**
+     * @return the fetched messages, or null if fetching failed
+     */
+    private @Nullable List<Message> fetch(List<Message> window) {
+        if (LOCAL_LOGV) Log.v(TAG, "fetching " + window.size() + " message(s)");
+        try {
+            return ((BackupImapStore.BackupFolder) window.get(0).getFolder()).fetchForRestore(window);
+        } catch (MessagingException e) {
+            Log.e(TAG, "error", e);
+            return null;
+        }
+    }
+
+    private boolean put(Window window) {
+        try {
+            while (!windows.offer(window, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (stopped) return false;
+            }
+            return !stopped;
+        } catch (InterruptedException e) {
+            stopped = true;
+            return false;
+        }
+    }
+
+    private Window take() {
+        try {
+            Window window;
+            while ((window = windows.poll(POLL_MILLIS, TimeUnit.MILLISECONDS)) == null) {
+                if (stopped || !thread.isAlive() && windows.isEmpty()) return END_OF_WINDOWS;
+            }
+            return stopped ? END_OF_WINDOWS : window;
+        } catch (InterruptedException e) {
+            halt();
+            Thread.currentThread().interrupt();
+            return END_OF_WINDOWS;
+        }
+    }
+
+    /**
+     * Messages fetched with one command.
+     */
+    static class Window {
+        /** the position of the first message in the list passed to the fetcher */
+        final int position;
+        final List<Message> messages;
+        /** the temporary files which existed after the messages had been fetched, might be null */
+        final File[] cachedBodies;
+        /** false if the bodies could not be fetched */
+        final boolean fetched;
+
+        Window(int position, List<Message> messages, File[] cachedBodies, boolean fetched) {
+            this.position = position;
+            this.messages = messages;
+            this.cachedBodies = cachedBodies;
+            this.fetched = fetched;
+        }
+    }
+}
@@ -1,33 +1,40 @@
 package com.zegoggles.smssync.service;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.RemoteException;
 import android.provider.CallLog;
 import android.util.Log;
 import com.fsck.k9.mail.AuthenticationFailedException;
-import com.fsck.k9.mail.FetchProfile;
 import com.fsck.k9.mail.Message;
 import com.fsck.k9.mail.MessagingException;
 import com.fsck.k9.mail.store.XOAuth2AuthenticationFailedException;
 import com.squareup.otto.Subscribe;
 import com.zegoggles.smssync.App;
 import com.zegoggles.smssync.Consts;
+import com.zegoggles.smssync.R;
 import com.zegoggles.smssync.SmsConsts;
 import com.zegoggles.smssync.auth.TokenRefreshException;
 import com.zegoggles.smssync.auth.TokenRefresher;
 import com.zegoggles.smssync.mail.BackupImapStore;
+import com.zegoggles.smssync.mail.ContactIndex;
 import com.zegoggles.smssync.mail.DataType;
 import com.zegoggles.smssync.mail.MessageConverter;
+import com.zegoggles.smssync.mail.TransferStats;
+import com.zegoggles.smssync.preferences.SyncStateStore;
 import com.zegoggles.smssync.service.state.RestoreState;
 import com.zegoggles.smssync.service.state.SmsSyncState;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -48,6 +55,8 @@ class RestoreTask extends AsyncTask<RestoreConfig, RestoreState, RestoreState> {
     private Set<String> smsIds = new HashSet<String>();
     private Set<String> callLogIds = new HashSet<String>();
     private Set<String> uids = new HashSet<String>();
+    private Batch smsBatch, callLogBatch;
+    private DuplicateIndex smsIndex, callLogIndex;
 
     private final SmsRestoreService service;
     private final ContentResolver resolver;
@@ -80,6 +89,10 @@ class RestoreTask extends AsyncTask<RestoreConfig, RestoreState, RestoreState> {
         if (!config.restoreSms && !config.restoreCallLog) {
             return new RestoreState(FINISHED_RESTORE, 0, 0, 0, 0, null, null);
         } else {
+            smsBatch = new Batch(SMS, Consts.SMS_PROVIDER, config.batchSize);
+            callLogBatch = new Batch(CALLLOG, Consts.CALLLOG_PROVIDER, config.batchSize);
+            smsIndex = DuplicateIndex.sms();
+            callLogIndex = DuplicateIndex.callLog();
             try {
                 service.acquireLocks();
                 return restore(config);
@@ -111,16 +124,37 @@ class RestoreTask extends AsyncTask<RestoreConfig, RestoreState, RestoreState> {
             final int itemsToRestoreCount = config.maxRestore <= 0 ? msgs.size() : Math.min(msgs.size(), config.maxRestore);
 
             if (itemsToRestoreCount > 0) {
-                for (; currentRestoredItem < itemsToRestoreCount && !isCancelled(); currentRestoredItem++) {
-                    DataType dataType = importMessage(msgs.get(currentRestoredItem));
-
-                    msgs.set(currentRestoredItem, null); // help gc
-                    publishProgress(new RestoreState(RESTORE, currentRestoredItem, itemsToRestoreCount, 0, 0, dataType, null));
-                    if (currentRestoredItem % 50 == 0) {
-                        //clear cache periodically otherwise SD card fills up
-                        service.clearCache();
+                if (config.restoreCallLog) {
+                    preloadContacts();
+                }
+                loadIndexes(config);
+                final RestoreFetcher fetcher = new RestoreFetcher(
+                        msgs.subList(currentRestoredItem, itemsToRestoreCount), service);
+                fetcher.start();
+                try {
+                    RestoreFetcher.Window window;
+                    while (!isCancelled() && (window = fetcher.next()) != null) {
+                        for (Message message : window.messages) {
+                            if (isCancelled()) break;
+
+                            uids.add(message.getUid());
+                            DataType dataType = window.fetched ? importMessage(message) : null;
+                            publishProgress(new RestoreState(RESTORE, currentRestoredItem, itemsToRestoreCount, 0, 0, dataType, null));
+                            currentRestoredItem++;
+                        }
+                        // otherwise SD card fills up, the bodies of later windows are kept
+                        service.deleteCachedBodies(window.cachedBodies);
+                        if (!isCancelled()) fetcher.release(window);
+                    }
+                } finally {
+                    if (!fetcher.stop()) {
+                        Log.w(TAG, "fetching did not stop, dropping connections");
+                        // a connection still in use must not be handed back to the store for reuse
+                        imapStore.disconnect();
                     }
                 }
+                flush(smsBatch);
+                flush(callLogBatch);
                 if (!isCancelled()) {
                     publishProgress(UPDATING_THREADS);
                     updateAllThreads();
@@ -129,6 +163,11 @@ class RestoreTask extends AsyncTask<RestoreConfig, RestoreState, RestoreState> {
                 Log.d(TAG, "nothing to restore");
             }
 
+            final TransferStats stats = imapStore.getTransferStats();
+            service.appLog(R.string.app_log_transfer_stats,
+                    stats.formatMessageBytes(service.getApplicationContext()),
+                    stats.formatNetworkBytes(service.getApplicationContext()));
+
             final int restoredCount = smsIds.size() + callLogIds.size();
             return new RestoreState(isCancelled() ? CANCELED_RESTORE : FINISHED_RESTORE,
                     currentRestoredItem,
@@ -146,6 +185,11 @@ class RestoreTask extends AsyncTask<RestoreConfig, RestoreState, RestoreState> {
             // usually memory problems (Couldn't init cursor window)
             return transition(ERROR, e);
         } finally {
+            // keep what has been imported so far
+            flush(smsBatch);
+            flush(callLogBatch);
+            // the watermarks have been stored with each batch, the preferences are updated once
+            SyncStateStore.get(service).mirror();
             imapStore.closeFolders();
         }
     }
@@ -173,6 +217,26 @@ class RestoreTask extends AsyncTask<RestoreConfig, RestoreState, RestoreState> {
         return transition(ERROR, e);
     }
 
+    /**
+     * Reads the existing rows once, so that duplicates can be detected without a query per message.
+     */
+    private void loadIndexes(RestoreConfig config) {
+        if (config.restoreSms && !smsIndex.isLoaded() && !smsIndex.load(resolver)) {
+            Log.w(TAG, "could not index sms, checking single messages");
+        }
+        if (config.restoreCallLog && !callLogIndex.isLoaded() && !callLogIndex.load(resolver)) {
+            Log.w(TAG, "could not index call log, checking single entries");
+        }
+    }
+
+    private void preloadContacts() {
+        final ContactIndex index = converter.preloadContacts();
+        if (index != null) {
+            service.appLog(R.string.app_log_contacts_preloaded, index.getContactCount(), index.getNumberCount(),
+                    index.getBuildMillis(), index.formatEstimatedBytes(service.getApplicationContext()));
+        }
+    }
+
     private void publishProgress(SmsSyncState smsSyncState) {
         publishProgress(smsSyncState, null);
     }
@@ -213,15 +277,12 @@ class RestoreTask extends AsyncTask<RestoreConfig, RestoreState, RestoreState> {
         App.bus.post(changed);
     }
 
+    /**
+     * Imports a message which has been fetched already.
+     */
     private DataType importMessage(Message message) {
-        uids.add(message.getUid());
-
-        FetchProfile fp = new FetchProfile();
-        fp.add(FetchProfile.Item.BODY);
         DataType dataType = null;
         try {
-            if (LOCAL_LOGV) Log.v(TAG, "fetching message uid " + message.getUid());
-            message.getFolder().fetch(Arrays.asList(message), fp, null);
             dataType = converter.getDataType(message);
             //only restore sms+call log for now
             switch (dataType) {
@@ -252,19 +313,11 @@ class RestoreTask extends AsyncTask<RestoreConfig, RestoreState, RestoreState> {
         final Integer type = values.getAsInteger(SmsConsts.TYPE);
 
         // only restore inbox messages and sent messages - otherwise sms might get sent on restore
-        if (type != null && (type == SmsConsts.MESSAGE_TYPE_INBOX || type == SmsConsts.MESSAGE_TYPE_SENT) && !smsExists(values)) {
-
-            final Uri uri = resolver.insert(Consts.SMS_PROVIDER, values);
-            if (uri != null) {
-                smsIds.add(uri.getLastPathSegment());
-                Long timestamp = values.getAsLong(SmsConsts.DATE);
-
-                if (timestamp != null && SMS.getMaxSyncedDate(service) < timestamp) {
-                    SMS.setMaxSyncedDate(service, timestamp);
-                }
+        if (type != null && (type == SmsConsts.MESSAGE_TYPE_INBOX || type == SmsConsts.MESSAGE_TYPE_SENT) &&
+                isNewSms(values)) {
 
-                if (LOCAL_LOGV) Log.v(TAG, "inserted " + uri);
-            }
+            smsBatch.add(values);
+            if (smsBatch.isFull()) flush(smsBatch);
         } else {
             if (LOCAL_LOGV) Log.d(TAG, "ignoring sms");
         }
@@ -273,15 +326,85 @@ class RestoreTask extends AsyncTask<RestoreConfig, RestoreState, RestoreState> {
     private void importCallLog(final Message message) throws MessagingException, IOException {
         if (LOCAL_LOGV) Log.v(TAG, "importCallLog(" + message + ")");
         final ContentValues values = converter.messageToContentValues(message);
-        if (!callLogExists(values)) {
-            final Uri uri = resolver.insert(Consts.CALLLOG_PROVIDER, values);
-            if (uri != null) callLogIds.add(uri.getLastPathSegment());
+        if (isNewCallLog(values)) {
+            callLogBatch.add(values);
+            if (callLogBatch.isFull()) flush(callLogBatch);
         } else {
             if (LOCAL_LOGV) Log.d(TAG, "ignoring call log");
         }
     }
 
-    private boolean callLogExists(ContentValues values) {
+    /**
+     * Inserts the pending rows of <code>batch</code> with a single {@link ContentResolver#applyBatch} call.
+     * If the batch fails, the rows which have not been inserted yet are inserted one by one, rows which are
+     * found in the provider have been inserted by the part of the batch applied before the failure.
+     * The maximum synced date is updated once per batch.
+     */
+    private void flush(Batch batch) {
+        if (batch == null || batch.isEmpty()) return;
+
+        ContentProviderResult[] results = null;
+        try {
+            results = resolver.applyBatch(batch.provider.getAuthority(), batch.getOperations());
+        } catch (RemoteException e) {
+            Log.w(TAG, "batch insert failed, inserting single rows", e);
+        } catch (OperationApplicationException e) {
+            Log.w(TAG, "batch insert failed, inserting single rows", e);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "batch insert failed, inserting single rows", e);
+        }
+
+        long maxDate = -1;
+        for (int i = 0; i < batch.rows.size(); i++) {
+            final ContentValues values = batch.rows.get(i);
+            final Uri uri = results != null && i < results.length ? results[i].uri : insert(batch, values);
+            if (uri == null) continue;
+
+            if (LOCAL_LOGV) Log.v(TAG, "inserted " + uri);
+            if (batch.dataType == SMS) {
+                smsIds.add(uri.getLastPathSegment());
+                final Long timestamp = values.getAsLong(SmsConsts.DATE);
+                if (timestamp != null && timestamp > maxDate) {
+                    maxDate = timestamp;
+                }
+            } else {
+                callLogIds.add(uri.getLastPathSegment());
+            }
+        }
+        if (maxDate > SMS.getMaxSyncedDate(service)) {
+            SMS.setMaxSyncedDate(service, maxDate);
+        }
+        batch.clear();
+    }
+
+    private Uri insert(Batch batch, ContentValues values) {
+        // parts of the failed batch might have been applied already, rows found now have been restored by it
+        final Uri existing = batch.dataType == SMS ? findSms(values) : findCallLog(values);
+        if (existing != null) return existing;
+        try {
+            return resolver.insert(batch.provider, values);
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "error", e);
+            return null;
+        }
+    }
+
+    /**
+     * @return true if the message is neither in the provider nor has been restored already, which
+     * also catches duplicates within the backup
+     */
+    private boolean isNewSms(ContentValues values) {
+        return smsIndex.add(values) && (smsIndex.isLoaded() || findSms(values) == null);
+    }
+
+    private boolean isNewCallLog(ContentValues values) {
+        return callLogIndex.add(values) && (callLogIndex.isLoaded() || findCallLog(values) == null);
+    }
+
+    /**
+     * @return the uri of the call log entry matching <code>values</code>, null if there is none
+     */
+    private Uri findCallLog(ContentValues values) {
         Cursor c = resolver.query(Consts.CALLLOG_PROVIDER,
             new String[] { "_id" },
             "date = ? AND number = ? AND duration = ? AND type = ?",
@@ -293,15 +416,13 @@ class RestoreTask extends AsyncTask<RestoreConfig, RestoreState, RestoreState> {
             },
             null
         );
-        boolean exists = false;
-        if (c != null) {
-            exists = c.getCount() > 0;
-            c.close();
-        }
-        return exists;
+        return getFirstUri(Consts.CALLLOG_PROVIDER, c);
     }
 
-    private boolean smsExists(ContentValues values) {
+    /**
+     * @return the uri of the message matching <code>values</code>, null if there is none
+     */
+    private Uri findSms(ContentValues values) {
         // just assume equality on date+address+type
         Cursor c = resolver.query(Consts.SMS_PROVIDER,
             new String[] {"_id" },
@@ -313,13 +434,18 @@ class RestoreTask extends AsyncTask<RestoreConfig, RestoreState, RestoreState> {
             },
             null
         );
+        return getFirstUri(Consts.SMS_PROVIDER, c);
+    }
 
-        boolean exists = false;
+    private static Uri getFirstUri(Uri provider, Cursor c) {
+        Uri uri = null;
         if (c != null) {
-            exists = c.getCount() > 0;
+            if (c.moveToFirst()) {
+                uri = ContentUris.withAppendedId(provider, c.getLong(0));
+            }
             c.close();
         }
-        return exists;
+        return uri;
     }
 
     private void updateAllThreads() {
@@ -334,4 +460,44 @@ class RestoreTask extends AsyncTask<RestoreConfig, RestoreState, RestoreState> {
     protected Set<String> getSmsIds() {
         return smsIds;
     }
+
+    /**
+     * Rows of one data type waiting to be inserted.
+     */
+    private static class Batch {
+        final DataType dataType;
+        final Uri provider;
+        final int maxSize;
+        final List<ContentValues> rows = new ArrayList<ContentValues>();
+
+        Batch(DataType dataType, Uri provider, int maxSize) {
+            this.dataType = dataType;
+            this.provider = provider;
+            this.maxSize = Math.max(1, maxSize);
+        }
+
+        void add(ContentValues values) {
+            rows.add(values);
+        }
+
+        boolean isFull() {
+            return rows.size() >= maxSize;
+        }
+
+        boolean isEmpty() {
+            return rows.isEmpty();
+        }
+
+        ArrayList<ContentProviderOperation> getOperations() {
+            final ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>(rows.size());
+            for (ContentValues values : rows) {
+                operations.add(ContentProviderOperation.newInsert(provider).withValues(values).build());
+            }
+            return operations;
+        }
+
+        void clear() {
+            rows.clear();
+        }
+    }
 }
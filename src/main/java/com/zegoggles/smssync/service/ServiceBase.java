@@ -101,11 +101,15 @@ public abstract class ServiceBase extends Service {
     }
 
     protected BackupImapStore getBackupImapStore() throws MessagingException {
+        return new BackupImapStore(getApplicationContext(), getStoreUri());
+    }
+
+    protected String getStoreUri() throws MessagingException {
         final String uri = getAuthPreferences().getStoreUri();
         if (!BackupImapStore.isValidUri(uri)) {
             throw new MessagingException("No valid IMAP URI: "+uri);
         }
-        return new BackupImapStore(getApplicationContext(), uri);
+        return uri;
     }
 
     protected AuthPreferences getAuthPreferences() {
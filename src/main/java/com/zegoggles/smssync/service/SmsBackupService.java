@@ -30,6 +30,7 @@ import com.zegoggles.smssync.R;
 import com.zegoggles.smssync.auth.OAuth2Client;
 import com.zegoggles.smssync.mail.BackupImapStore;
 import com.zegoggles.smssync.mail.DataType;
+import com.zegoggles.smssync.mail.ImapConnectionManager;
 import com.zegoggles.smssync.service.exception.BackupDisabledException;
 import com.zegoggles.smssync.service.exception.ConnectivityException;
 import com.zegoggles.smssync.service.exception.NoConnectionException;
@@ -176,6 +177,21 @@ public class SmsBackupService extends ServiceBase {
         return new BackupTask(this);
     }
 
+    /**
+     * Backups reuse the store of the previous backup while its connections are still open.
+     */
+    @Override
+    protected BackupImapStore getBackupImapStore() throws MessagingException {
+        return ImapConnectionManager.get().acquire(getApplicationContext(), getStoreUri());
+    }
+
+    /**
+     * Keeps the store open for the next backup, or closes it if it should not be reused.
+     */
+    protected void releaseBackupImapStore(BackupImapStore store, boolean reuse) {
+        ImapConnectionManager.get().release(store, reuse, getPreferences().getImapIdleMillis());
+    }
+
     private void moveToState(BackupState state) {
         backupStateChanged(state);
         App.bus.post(state);
@@ -16,6 +16,7 @@ import com.zegoggles.smssync.auth.OAuth2Client;
 import com.zegoggles.smssync.auth.TokenRefresher;
 import com.zegoggles.smssync.contacts.ContactAccessor;
 import com.zegoggles.smssync.mail.MessageConverter;
+import com.zegoggles.smssync.mail.PersonCache;
 import com.zegoggles.smssync.mail.PersonLookup;
 import com.zegoggles.smssync.preferences.AuthPreferences;
 import com.zegoggles.smssync.service.exception.SmsProviderNotWritableException;
@@ -84,7 +85,8 @@ public class SmsRestoreService extends ServiceBase {
             MessageConverter converter = new MessageConverter(service,
                     getPreferences(),
                     getAuthPreferences().getUserEmail(),
-                    new PersonLookup(getContentResolver()),
+                    new PersonLookup(getContentResolver(),
+                            getPreferences().isContactsCacheEnabled() ? PersonCache.get(this) : null),
                     ContactAccessor.Get.instance()
             );
 
@@ -95,7 +97,8 @@ public class SmsRestoreService extends ServiceBase {
                 restoreCallLog,
                 getPreferences().isRestoreStarredOnly(),
                 getPreferences().getMaxItemsPerRestore(),
-                0
+                0,
+                getPreferences().getRestoreBatchSize()
             );
 
             final AuthPreferences authPreferences = new AuthPreferences(this);
@@ -125,13 +128,29 @@ public class SmsRestoreService extends ServiceBase {
         if (tmp == null) return; // not sure why this would return null
 
         Log.d(TAG, "clearing cache in " + tmp);
-        for (File f : tmp.listFiles(new FilenameFilter() {
+        deleteCachedBodies(getCachedBodies());
+    }
+
+    /**
+     * @return the temporary files holding message bodies fetched during restore, or null if there is no cache
+     */
+    @Nullable public File[] getCachedBodies() {
+        File tmp = getCacheDir();
+        if (tmp == null) return null;
+
+        return tmp.listFiles(new FilenameFilter() {
             public boolean accept(File dir, String name) {
                 return name.startsWith("body");
             }
-        })) {
+        });
+    }
+
+    public synchronized void deleteCachedBodies(@Nullable File[] files) {
+        if (files == null) return;
+
+        for (File f : files) {
             if (LOCAL_LOGV) Log.v(TAG, "deleting " + f);
-            if (!f.delete()) Log.w(TAG, "error deleting " + f);
+            if (f.exists() && !f.delete()) Log.w(TAG, "error deleting " + f);
         }
     }
 
@@ -0,0 +1,90 @@
+package com.zegoggles.smssync.utils;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A size bounded LRU cache which can be shared between threads.
+ * <p>
+ * Keys are spread over a number of independently locked segments, each one a small
+ * access-ordered {@link LinkedHashMap}, so threads looking up different keys rarely contend.
+ * Eviction is per segment, which approximates a global LRU.
+ */
+public class ConcurrentLruCache<K, V> {
+    private static final int DEFAULT_SEGMENTS = 8;
+
+    private final Segment<K, V>[] segments;
+
+    public ConcurrentLruCache(int maxSize) {
+        this(maxSize, DEFAULT_SEGMENTS);
+    }
+
+    @SuppressWarnings("unchecked")
+    public ConcurrentLruCache(int maxSize, int segmentCount) {
+        if (maxSize <= 0) throw new IllegalArgumentException("maxSize <= 0");
+        segmentCount = Math.max(1, Math.min(segmentCount, maxSize));
+
+        segments = new Segment[segmentCount];
+        final int segmentSize = (maxSize + segmentCount - 1) / segmentCount;
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment<K, V>(segmentSize);
+        }
+    }
+
+    public @Nullable V get(K key) {
+        final Segment<K, V> segment = segmentFor(key);
+        synchronized (segment) {
+            return segment.get(key);
+        }
+    }
+
+    public void put(K key, V value) {
+        final Segment<K, V> segment = segmentFor(key);
+        synchronized (segment) {
+            segment.put(key, value);
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    public void clear() {
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    private Segment<K, V> segmentFor(K key) {
+        int hash = key == null ? 0 : key.hashCode();
+        // spread the bits, see java.util.HashMap
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        hash ^= (hash >>> 7) ^ (hash >>> 4);
+        return segments[(hash & 0x7fffffff) % segments.length];
+    }
+
+    @SuppressWarnings("serial")
+    private static class Segment<K, V> extends LinkedHashMap<K, V> {
+        private final int maxSize;
+
+        Segment(int maxSize) {
+            super(maxSize + 1, .75F, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+            return size() > maxSize;
+        }
+    }
+}
@@ -5,8 +5,6 @@ import android.util.Log;
 
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.util.LinkedHashMap;
-import java.util.Map;
 
 import static com.zegoggles.smssync.App.LOCAL_LOGV;
 import static com.zegoggles.smssync.App.TAG;
@@ -14,34 +12,33 @@ import static com.zegoggles.smssync.App.TAG;
 public class ThreadHelper {
 
     private Class<?> telephonyThreads;
-    private Method getOrCreateThreadId;
-    private boolean threadsAvailable = true;
+    private volatile Method getOrCreateThreadId;
+    private volatile boolean threadsAvailable = true;
 
     private static final int MAX_THREAD_CACHE_SIZE = 500;
 
-    @SuppressWarnings("serial")
-    private Map<String, Long> mThreadIdCache =
-            new LinkedHashMap<String, Long>(MAX_THREAD_CACHE_SIZE + 1, .75F, true) {
-                @Override
-                public boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
-                    return size() > MAX_THREAD_CACHE_SIZE;
-                }
-            };
+    private final ConcurrentLruCache<String, Long> mThreadIdCache =
+            new ConcurrentLruCache<String, Long>(MAX_THREAD_CACHE_SIZE);
 
     public Long getThreadId(final Context context, final String recipient) {
         if (recipient == null || !threadsAvailable) return null;
 
-        if (mThreadIdCache.containsKey(recipient)) {
-            return mThreadIdCache.get(recipient);
+        final Long cached = mThreadIdCache.get(recipient);
+        if (cached != null) {
+            return cached;
         } else if (getOrCreateThreadId == null) {
-            try {
-                telephonyThreads = Class.forName("android.provider.Telephony$Threads");
-                getOrCreateThreadId = telephonyThreads.getMethod("getOrCreateThreadId",
-                        Context.class, String.class);
-            } catch (NoSuchMethodException e) {
-                return noThreadsAvailable(e);
-            } catch (ClassNotFoundException e) {
-                return noThreadsAvailable(e);
+            synchronized (this) {
+                if (getOrCreateThreadId == null) {
+                    try {
+                        telephonyThreads = Class.forName("android.provider.Telephony$Threads");
+                        getOrCreateThreadId = telephonyThreads.getMethod("getOrCreateThreadId",
+                                Context.class, String.class);
+                    } catch (NoSuchMethodException e) {
+                        return noThreadsAvailable(e);
+                    } catch (ClassNotFoundException e) {
+                        return noThreadsAvailable(e);
+                    }
+                }
             }
         }
 
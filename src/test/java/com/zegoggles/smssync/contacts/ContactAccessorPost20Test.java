@@ -105,9 +105,21 @@ public class ContactAccessorPost20Test {
                 any(String.class))
         ).thenReturn(cursor);
 
+        MatrixCursor numbers = new MatrixCursor(new String[] { ContactsContract.CommonDataKinds.Phone.NUMBER });
+        numbers.addRow(new Object[] { "+44 7700 900123" });
+
+        when(resolver.query(
+                eq(ContactsContract.Data.CONTENT_URI),
+                any(String[].class),
+                eq(ContactsContract.Data.MIMETYPE + " = ? AND " + ContactsContract.Data.CONTACT_ID + " IN (123)"),
+                eq(new String[] { ContactsContract.CommonDataKinds.Phone.CONTENT_ITEM_TYPE }),
+                any(String.class))
+        ).thenReturn(numbers);
+
         ContactGroupIds ids = accessor.getGroupContactIds(resolver, new ContactGroup(1));
 
-        assertThat(ids.getIds().contains(123L));
-        assertThat(ids.getRawIds().contains(256L));
+        assertThat(ids.getIds()).isEqualTo(new long[] { 123L });
+        assertThat(ids.getRawIds()).isEqualTo(new long[] { 256L });
+        assertThat(ids.getNumbers()).containsExactly("+44 7700 900123");
     }
 }
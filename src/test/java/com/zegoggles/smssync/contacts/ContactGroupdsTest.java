@@ -16,11 +16,38 @@ public class ContactGroupdsTest {
         assertThat(ids.getIds()).isEmpty();
         assertThat(ids.getRawIds()).isEmpty();
 
-        ids.add(1, 4);
         ids.add(3, 4);
+        ids.add(1, 4);
+
+        assertThat(ids.getIds()).isEqualTo(new long[] { 1L, 3L });
+        assertThat(ids.getRawIds()).isEqualTo(new long[] { 4L });
+    }
+
+    @Test
+    public void shouldKeepIdsSorted() throws Exception {
+        ContactGroupIds ids = new ContactGroupIds();
+        for (int i = 100; i > 0; i--) {
+            ids.add(i, i * 2);
+            ids.add(i, i * 2);
+        }
+        long[] sorted = ids.getIds();
+        assertThat(sorted.length).isEqualTo(100);
+        for (int i = 0; i < sorted.length; i++) {
+            assertThat(sorted[i]).isEqualTo(i + 1);
+        }
+        assertThat(ids.contains(new PersonRecord(50, null, null, null))).isTrue();
+        assertThat(ids.contains(new PersonRecord(101, null, null, null))).isFalse();
+    }
+
+    @Test
+    public void shouldAddNumbers() throws Exception {
+        ContactGroupIds ids = new ContactGroupIds();
+        ids.addNumber("123");
+        ids.addNumber("123");
+        ids.addNumber("");
+        ids.addNumber(null);
 
-        assertThat(ids.getIds()).containsExactly(1L, 3L);
-        assertThat(ids.getRawIds()).containsExactly(4L);
+        assertThat(ids.getNumbers()).containsExactly("123");
     }
 
     @Test
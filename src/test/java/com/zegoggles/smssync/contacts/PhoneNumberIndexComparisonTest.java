@@ -0,0 +1,90 @@
+package com.zegoggles.smssync.contacts;
+
+import android.telephony.PhoneNumberUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static com.zegoggles.smssync.contacts.PhoneNumberIndex.NOT_FOUND;
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/**
+ * Compares {@link PhoneNumberIndex} with a scan over all numbers using {@link PhoneNumberUtils#compare},
+ * which is what a <code>PHONE_NUMBERS_EQUAL</code> query per message does in the contacts provider.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PhoneNumberIndexComparisonTest {
+    private static final int CONTACTS = 1000;
+
+    private List<String> numbers;
+    private List<String> queries;
+
+    @Before public void before() {
+        Random random = new Random(42);
+        numbers = new ArrayList<String>();
+        queries = new ArrayList<String>();
+        for (int i = 0; i < CONTACTS; i++) {
+            final String uk = "7700 " + (100000 + random.nextInt(900000));
+            final String us = "650 555 " + (1000 + random.nextInt(9000));
+            numbers.add(random.nextBoolean() ? "+44 " + uk : "0" + uk);
+            numbers.add(random.nextBoolean() ? "+1 " + us : us.replace(' ', '-'));
+
+            queries.add("+44" + uk.replace(" ", ""));
+            queries.add("0" + uk);
+            queries.add("0044 " + uk);
+            queries.add("+44 (0)" + uk);
+            queries.add("+49 " + uk);
+            queries.add("+1 " + us);
+            queries.add("1" + us.replace(" ", ""));
+            queries.add("011 1 " + us);
+            queries.add("11 " + us);
+            queries.add("+1 " + us.substring(0, us.length() - 1) + (us.endsWith("0") ? "1" : "0"));
+        }
+        queries.add("112");
+        queries.add("+112");
+    }
+
+    @Test public void shouldMatchLikePhoneNumberUtilsInLessTime() throws Exception {
+        long indexTime = System.nanoTime();
+        final PhoneNumberIndex index = buildIndex();
+        final long[] indexed = new long[queries.size()];
+        for (int i = 0; i < queries.size(); i++) {
+            indexed[i] = index.lookup(queries.get(i));
+        }
+        indexTime = System.nanoTime() - indexTime;
+
+        long scanTime = System.nanoTime();
+        final long[] scanned = new long[queries.size()];
+        for (int i = 0; i < queries.size(); i++) {
+            scanned[i] = scan(queries.get(i));
+        }
+        scanTime = System.nanoTime() - scanTime;
+
+        for (int i = 0; i < queries.size(); i++) {
+            assertThat(indexed[i]).as(queries.get(i)).isEqualTo(scanned[i]);
+        }
+        assertThat(indexTime).isLessThan(scanTime);
+    }
+
+    private PhoneNumberIndex buildIndex() {
+        PhoneNumberIndex.Builder builder = new PhoneNumberIndex.Builder();
+        for (int i = 0; i < numbers.size(); i++) {
+            builder.add(numbers.get(i), i);
+        }
+        return builder.build();
+    }
+
+    private long scan(String number) {
+        for (int i = 0; i < numbers.size(); i++) {
+            if (PhoneNumberUtils.compare(number, numbers.get(i))) {
+                return i;
+            }
+        }
+        return NOT_FOUND;
+    }
+}
@@ -0,0 +1,84 @@
+package com.zegoggles.smssync.contacts;
+
+import org.junit.Test;
+
+import static com.zegoggles.smssync.contacts.PhoneNumberIndex.NOT_FOUND;
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class PhoneNumberIndexTest {
+
+    @Test public void shouldMatchEqualNumbers() throws Exception {
+        assertMatch("+49 176 12345678", "+4917612345678");
+        assertMatch("555-0100", "5550100");
+        assertMatch("112", "112");
+    }
+
+    @Test public void shouldMatchNumbersWithTrunkPrefixAndCountryCode() throws Exception {
+        assertMatch("07700 900123", "+44 7700 900123");
+        assertMatch("07700 900123", "0044 7700 900123");
+        assertMatch("(0)176 12345678", "+49 176 12345678");
+    }
+
+    @Test public void shouldMatchNumbersWithInternationalPrefixes() throws Exception {
+        assertMatch("+1 650 555 1234", "011 1 650 555 1234");
+        assertMatch("+1 650 555 1234", "650 555 1234");
+        assertMatch("+1 650 555 1234", "00 1 650 555 1234");
+    }
+
+    @Test public void shouldNotMatchDifferentNumbers() throws Exception {
+        assertNoMatch("+44 7700 900123", "+44 7700 900124");
+        assertNoMatch("+44 7700 900123", "+1 7700 900123");
+        assertNoMatch("+44 7700 900123", "1 7700 900123");
+        assertNoMatch("112", "0112");
+        assertNoMatch("12345", "2345");
+        assertNoMatch("+1 650 555 1234", "11 650 555 1234");
+        assertNoMatch("+112", "112");
+    }
+
+    @Test public void shouldReturnFirstMatchingId() throws Exception {
+        PhoneNumberIndex index = new PhoneNumberIndex.Builder()
+                .add("+44 7700 900123", 1)
+                .add("07700 900123", 2)
+                .add("+1 650 900 0123", 3)
+                .build();
+
+        assertThat(index.size()).isEqualTo(3);
+        assertThat(index.lookup("07700900123")).isEqualTo(1);
+        assertThat(index.lookup("6509000123")).isEqualTo(3);
+        assertThat(index.lookup("0123")).isEqualTo(NOT_FOUND);
+    }
+
+    @Test public void shouldIgnoreNumbersWithoutDigits() throws Exception {
+        PhoneNumberIndex index = new PhoneNumberIndex.Builder()
+                .add("Google", 1)
+                .add(null, 2)
+                .build();
+
+        assertThat(index.size()).isEqualTo(0);
+        assertThat(index.lookup("Google")).isEqualTo(NOT_FOUND);
+        assertThat(index.lookup("")).isEqualTo(NOT_FOUND);
+    }
+
+    @Test public void shouldGrowBeyondInitialCapacity() throws Exception {
+        PhoneNumberIndex.Builder builder = new PhoneNumberIndex.Builder();
+        for (int i = 0; i < 1000; i++) {
+            builder.add(String.valueOf(5550000 + i), i);
+        }
+        PhoneNumberIndex index = builder.build();
+
+        assertThat(index.size()).isEqualTo(1000);
+        for (int i = 0; i < 1000; i++) {
+            assertThat(index.lookup("+1 650 " + (5550000 + i))).isEqualTo(i);
+        }
+    }
+
+    private static void assertMatch(String a, String b) {
+        assertThat(PhoneNumberIndex.matches(PhoneNumberIndex.pack(a), PhoneNumberIndex.pack(b))).isTrue();
+        assertThat(PhoneNumberIndex.matches(PhoneNumberIndex.pack(b), PhoneNumberIndex.pack(a))).isTrue();
+    }
+
+    private static void assertNoMatch(String a, String b) {
+        assertThat(PhoneNumberIndex.matches(PhoneNumberIndex.pack(a), PhoneNumberIndex.pack(b))).isFalse();
+        assertThat(PhoneNumberIndex.matches(PhoneNumberIndex.pack(b), PhoneNumberIndex.pack(a))).isFalse();
+    }
+}
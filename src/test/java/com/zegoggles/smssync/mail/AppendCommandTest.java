@@ -0,0 +1,155 @@
+package com.zegoggles.smssync.mail;
+
+import com.fsck.k9.mail.Flag;
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.internet.MimeMessage;
+import com.fsck.k9.mail.internet.MimeMessageHelper;
+import com.fsck.k9.mail.internet.MimeMultipart;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class AppendCommandTest {
+
+    @Test public void shouldBuildCommand() throws Exception {
+        AppendCommand command = new AppendCommand("SMS", Arrays.asList(message(true), message(false)));
+
+        assertThat(command.size()).isEqualTo(2);
+        assertThat(command.getCommand()).matches("APPEND \"SMS\" \\(\\\\Seen\\) \\{\\d+\\}");
+    }
+
+    @Test public void shouldAnnounceNextMessageAfterLiteral() throws Exception {
+        AppendCommand command = new AppendCommand("SMS", Arrays.asList(message(true), message(false)));
+
+        String first = continuation(command, 0);
+        assertThat(first).startsWith("Subject: test");
+        assertThat(first).matches("(?s).* \\(\\) \\{\\d+\\}\r\n");
+
+        String last = continuation(command, 1);
+        assertThat(last).startsWith("Subject: test");
+        assertThat(last).endsWith("\r\n");
+        assertThat(last).doesNotMatch("(?s).*\\{\\d+\\}\r\n");
+    }
+
+    @Test public void shouldAnnounceExactLiteralSize() throws Exception {
+        AppendCommand command = new AppendCommand("SMS", Collections.singletonList(message(false)));
+
+        int size = Integer.parseInt(command.getCommand().replaceAll(".*\\{(\\d+)\\}", "$1"));
+        assertThat(continuation(command, 0).length()).isEqualTo(size + AppendCommand.CRLF.length);
+    }
+
+    @Test public void shouldAnnounceExactLiteralSizeWithAttachment() throws Exception {
+        File file = attachment(100000);
+        AppendCommand command = new AppendCommand("SMS", Collections.singletonList(messageWithAttachment(file)));
+
+        int size = Integer.parseInt(command.getCommand().replaceAll(".*\\{(\\d+)\\}", "$1"));
+        String literal = continuation(command, 0);
+        assertThat(literal.length()).isEqualTo(size + AppendCommand.CRLF.length);
+        assertThat(command.getLiteralBytes()).isEqualTo(size);
+        assertThat(literal).contains("Content-Transfer-Encoding: base64");
+    }
+
+    @Test(expected = IOException.class)
+    public void shouldFailIfAttachmentChangedAfterSizing() throws Exception {
+        File file = attachment(1000);
+        AppendCommand command = new AppendCommand("SMS", Collections.singletonList(messageWithAttachment(file)));
+
+        FileOutputStream out = new FileOutputStream(file, true);
+        out.write(new byte[100]);
+        out.close();
+
+        continuation(command, 0);
+    }
+
+    @Test public void shouldUseNonSynchronizingLiterals() throws Exception {
+        AppendCommand command = new AppendCommand("SMS", Arrays.asList(message(true), message(false)), Long.MAX_VALUE);
+
+        assertThat(command.getCommand()).matches("APPEND \"SMS\" \\(\\\\Seen\\) \\{\\d+\\+\\}");
+        assertThat(command.isSynchronizing(0)).isFalse();
+        assertThat(continuation(command, 0)).matches("(?s).* \\(\\) \\{\\d+\\+\\}\r\n");
+    }
+
+    @Test public void shouldUseSynchronizingLiteralsAboveLimit() throws Exception {
+        AppendCommand command = new AppendCommand("SMS", Arrays.asList(message(true), message(false)), 1);
+
+        assertThat(command.getCommand()).matches("APPEND \"SMS\" \\(\\\\Seen\\) \\{\\d+\\}");
+        assertThat(command.isSynchronizing(0)).isTrue();
+        assertThat(command.isSynchronizing(1)).isTrue();
+    }
+
+    @Test public void shouldAnnounceExactLiteralSizeOfRawMessage() throws Exception {
+        RawMessage.Builder builder = RawMessage.builder();
+        builder.setHeader("Subject", "test");
+        builder.setTextHeaders();
+        Message message = builder.build("some text\nwith lines");
+        AppendCommand command = new AppendCommand("SMS", Collections.singletonList(message));
+
+        int size = Integer.parseInt(command.getCommand().replaceAll(".*\\{(\\d+)\\}", "$1"));
+        String literal = continuation(command, 0);
+        assertThat(literal).startsWith("Subject: test\r\n");
+        assertThat(literal.length()).isEqualTo(size + AppendCommand.CRLF.length);
+    }
+
+    @Test public void shouldGetMaxNonSynchronizingSize() throws Exception {
+        assertThat(AppendCommand.getMaxNonSynchronizingSize(true, false)).isEqualTo(Long.MAX_VALUE);
+        assertThat(AppendCommand.getMaxNonSynchronizingSize(true, true)).isEqualTo(Long.MAX_VALUE);
+        assertThat(AppendCommand.getMaxNonSynchronizingSize(false, true)).isEqualTo(4096);
+        assertThat(AppendCommand.getMaxNonSynchronizingSize(false, false)).isEqualTo(0);
+    }
+
+    @Test public void shouldQuoteMailbox() throws Exception {
+        assertThat(AppendCommand.quote("SMS")).isEqualTo("\"SMS\"");
+        assertThat(AppendCommand.quote("a\"b\\c")).isEqualTo("\"a\\\"b\\\\c\"");
+    }
+
+    @Test public void shouldOnlyQuotePrintableAscii() throws Exception {
+        assertThat(AppendCommand.canQuote("[Gmail]/SMS")).isTrue();
+        assertThat(AppendCommand.canQuote("Nachrichten über")).isFalse();
+        assertThat(AppendCommand.canQuote("A&B")).isFalse();
+    }
+
+    private static String continuation(AppendCommand command, int index) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        command.writeContinuation(index, out);
+        return out.toString("US-ASCII");
+    }
+
+    private static File attachment(int size) throws IOException {
+        File file = File.createTempFile("attachment", ".bin");
+        file.deleteOnExit();
+        byte[] data = new byte[size];
+        new Random(42).nextBytes(data);
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(data);
+        out.close();
+        return file;
+    }
+
+    private Message messageWithAttachment(File file) throws Exception {
+        MimeMessage message = new MimeMessage();
+        message.setHeader("Subject", "test");
+        MimeMultipart body = new MimeMultipart();
+        body.addBodyPart(Attachment.createTextPart("some text\nwith lines"));
+        body.addBodyPart(Attachment.createPartFromFile(file, "video/mp4"));
+        MimeMessageHelper.setBody(message, body);
+        return message;
+    }
+
+    private Message message(boolean seen) throws Exception {
+        MimeMessage message = new MimeMessage();
+        message.setHeader("Subject", "test");
+        message.setFlag(Flag.SEEN, seen);
+        return message;
+    }
+}
@@ -5,9 +5,6 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
 
-import java.util.HashMap;
-import java.util.Map;
-
 import static org.fest.assertions.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
@@ -23,8 +20,8 @@ public class ConversionResultTest {
     @Test public void shouldAddMessage() throws Exception {
         ConversionResult result = new ConversionResult(DataType.SMS);
         Message message = mock(Message.class);
-        Map<String, String> map = new HashMap<String, String>();
-        result.add(message, map);
+        BackupRow row = new BackupRow();
+        result.add(message, row);
         assertThat(result.isEmpty()).isFalse();
         assertThat(result.getMaxDate()).isEqualTo(-1);
     }
@@ -33,8 +30,8 @@ public class ConversionResultTest {
         ConversionResult result = new ConversionResult(DataType.SMS);
         Message message = mock(Message.class);
         when(message.getHeader(Headers.DATE)).thenReturn(new String[] { "12345" });
-        Map<String, String> map = new HashMap<String, String>();
-        result.add(message, map);
+        BackupRow row = new BackupRow();
+        result.add(message, row);
         assertThat(result.isEmpty()).isFalse();
         assertThat(result.getMaxDate()).isEqualTo(12345);
     }
@@ -43,8 +40,8 @@ public class ConversionResultTest {
         ConversionResult result = new ConversionResult(DataType.SMS);
         Message message = mock(Message.class);
         when(message.getHeader(Headers.DATE)).thenReturn(new String[] { "foo" });
-        Map<String, String> map = new HashMap<String, String>();
-        result.add(message, map);
+        BackupRow row = new BackupRow();
+        result.add(message, row);
         assertThat(result.isEmpty()).isFalse();
         assertThat(result.getMaxDate()).isEqualTo(-1);
     }
@@ -54,14 +51,14 @@ public class ConversionResultTest {
         Message message = mock(Message.class);
         when(message.getHeader(Headers.DATE)).thenReturn(new String[] { "12345" });
 
-        Map<String, String> map = new HashMap<String, String>();
-        result.add(message, map);
+        BackupRow row = new BackupRow();
+        result.add(message, row);
         assertThat(result.isEmpty()).isFalse();
         assertThat(result.getMaxDate()).isEqualTo(12345);
 
         Message newerMessage = mock(Message.class);
         when(newerMessage.getHeader(Headers.DATE)).thenReturn(new String[]{"123456789"});
-        result.add(newerMessage, map);
+        result.add(newerMessage, row);
         assertThat(result.getMaxDate()).isEqualTo(123456789);
     }
 }
@@ -0,0 +1,71 @@
+package com.zegoggles.smssync.mail;
+
+import com.fsck.k9.mail.filter.EOLConvertingOutputStream;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class CrlfOutputStreamTest {
+
+    @Test public void shouldConvertBareLineFeeds() throws Exception {
+        assertThat(convert("a\nb\r\nc\n")).isEqualTo("a\r\nb\r\nc\r\n");
+    }
+
+    @Test public void shouldKeepCarriageReturnAcrossWrites() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CrlfOutputStream crlf = new CrlfOutputStream(out);
+        crlf.write("a\r".getBytes());
+        crlf.write('\n');
+        crlf.write("\n".getBytes());
+        crlf.flush();
+
+        assertThat(out.toString()).isEqualTo("a\r\n\r\n");
+    }
+
+    @Test public void shouldConvertBareCarriageReturns() throws Exception {
+        assertThat(convert("a\rb\r\rc\r\nd")).isEqualTo("a\r\nb\r\n\r\nc\r\nd");
+    }
+
+    @Test public void shouldConvertBareCarriageReturnsWrittenByteByByte() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CrlfOutputStream crlf = new CrlfOutputStream(out);
+        for (byte b : "a\rb\nc\r\n".getBytes()) {
+            crlf.write(b);
+        }
+        crlf.flush();
+
+        assertThat(out.toString()).isEqualTo("a\r\nb\r\nc\r\n");
+    }
+
+    @Test public void shouldCompleteTrailingCarriageReturnOnFlush() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CrlfOutputStream crlf = new CrlfOutputStream(out);
+        crlf.write("a\r".getBytes());
+        crlf.flush();
+        assertThat(out.toString()).isEqualTo("a\r\n");
+
+        crlf.write("\nb".getBytes());
+        crlf.flush();
+        assertThat(out.toString()).isEqualTo("a\r\nb");
+    }
+
+    @Test public void shouldConvertLikeEOLConvertingOutputStream() throws Exception {
+        final String s = "\ra\n\rb\r\r\nc\n\n\u00e4\r";
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        EOLConvertingOutputStream eol = new EOLConvertingOutputStream(expected);
+        eol.write(s.getBytes("UTF-8"));
+        eol.flush();
+
+        assertThat(convert(s)).isEqualTo(expected.toString("UTF-8"));
+    }
+
+    private static String convert(String s) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CrlfOutputStream crlf = new CrlfOutputStream(out);
+        crlf.write(s.getBytes("UTF-8"));
+        crlf.flush();
+        return out.toString("UTF-8");
+    }
+}
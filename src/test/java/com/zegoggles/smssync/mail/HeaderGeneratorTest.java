@@ -1,18 +1,22 @@
 package com.zegoggles.smssync.mail;
 
-import android.provider.CallLog;
 import com.fsck.k9.mail.Message;
 import com.fsck.k9.mail.internet.MimeMessage;
-import com.zegoggles.smssync.MmsConsts;
-import com.zegoggles.smssync.SmsConsts;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
 
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.security.MessageDigest;
+import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.GregorianCalendar;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
 
 import static com.zegoggles.smssync.mail.Headers.get;
 import static org.fest.assertions.api.Assertions.assertThat;
@@ -29,12 +33,12 @@ public class HeaderGeneratorTest {
 
     @Test public void testShouldGenerateStandardHeaders() throws Exception {
         Message message = new MimeMessage();
-        Map<String, String> map = new HashMap<String, String>();
+        BackupRow row = new BackupRow();
         Date sent = new Date();
 
         PersonRecord person = new PersonRecord(0, null, null, null);
 
-        generator.setHeaders(message, map, DataType.SMS, "1234", person, sent, 0);
+        generator.setHeaders(message, row, DataType.SMS, "1234", person, sent, 0);
 
         assertThat(get(message, Headers.ADDRESS)).isEqualTo("1234");
         assertThat(get(message, Headers.DATATYPE)).isEqualTo("SMS");
@@ -50,27 +54,27 @@ public class HeaderGeneratorTest {
 
     @Test public void testShouldGenerateSMSHeaders() throws Exception {
         Message message = new MimeMessage();
-        Map<String, String> map = new HashMap<String, String>();
+        BackupRow row = new BackupRow();
         Date sent = new Date();
 
         PersonRecord person = new PersonRecord(0, null, null, null);
 
-        map.put(SmsConsts.ID, "someId");
-        map.put(SmsConsts.TYPE, "type");
-        map.put(SmsConsts.DATE, "date");
-        map.put(SmsConsts.THREAD_ID, "tid");
-        map.put(SmsConsts.READ, "read");
-        map.put(SmsConsts.STATUS, "status");
-        map.put(SmsConsts.PROTOCOL, "protocol");
-        map.put(SmsConsts.SERVICE_CENTER, "svc");
-
-        generator.setHeaders(message, map, DataType.SMS, "1234", person, sent, 0);
-
-        assertThat(get(message, Headers.ID)).isEqualTo("someId");
-        assertThat(get(message, Headers.TYPE)).isEqualTo("type");
-        assertThat(get(message, Headers.DATE)).isEqualTo("date");
-        assertThat(get(message, Headers.THREAD_ID)).isEqualTo("tid");
-        assertThat(get(message, Headers.READ)).isEqualTo("read");
+        row.id = 123;
+        row.type = 1;
+        row.date = 1000L;
+        row.threadId = 5;
+        row.read = 0;
+        row.status = "status";
+        row.protocol = "protocol";
+        row.serviceCenter = "svc";
+
+        generator.setHeaders(message, row, DataType.SMS, "1234", person, sent, 0);
+
+        assertThat(get(message, Headers.ID)).isEqualTo("123");
+        assertThat(get(message, Headers.TYPE)).isEqualTo("1");
+        assertThat(get(message, Headers.DATE)).isEqualTo("1000");
+        assertThat(get(message, Headers.THREAD_ID)).isEqualTo("5");
+        assertThat(get(message, Headers.READ)).isEqualTo("0");
         assertThat(get(message, Headers.STATUS)).isEqualTo("status");
         assertThat(get(message, Headers.PROTOCOL)).isEqualTo("protocol");
         assertThat(get(message, Headers.SERVICE_CENTER)).isEqualTo("svc");
@@ -78,52 +82,192 @@ public class HeaderGeneratorTest {
 
     @Test public void testShouldGenerateCallLogHeaders() throws Exception {
         Message message = new MimeMessage();
-        Map<String, String> map = new HashMap<String, String>();
+        BackupRow row = new BackupRow();
         Date sent = new Date();
 
         PersonRecord person = new PersonRecord(0, null, null, null);
 
-        map.put(CallLog.Calls._ID, "id");
-        map.put(CallLog.Calls.TYPE, "type");
-        map.put(CallLog.Calls.DURATION, "duration");
-        map.put(CallLog.Calls.DATE, "date");
+        row.id = 123;
+        row.type = 2;
+        row.duration = 60;
+        row.date = 1000L;
 
-        generator.setHeaders(message, map, DataType.CALLLOG, "1234", person, sent, 0);
+        generator.setHeaders(message, row, DataType.CALLLOG, "1234", person, sent, 0);
 
-        assertThat(get(message, Headers.ID)).isEqualTo("id");
-        assertThat(get(message, Headers.TYPE)).isEqualTo("type");
-        assertThat(get(message, Headers.DURATION)).isEqualTo("duration");
-        assertThat(get(message, Headers.DATE)).isEqualTo("date");
+        assertThat(get(message, Headers.ID)).isEqualTo("123");
+        assertThat(get(message, Headers.TYPE)).isEqualTo("2");
+        assertThat(get(message, Headers.DURATION)).isEqualTo("60");
+        assertThat(get(message, Headers.DATE)).isEqualTo("1000");
     }
 
     @Test public void testShouldGenerateMMSHeaders() throws Exception {
         Message message = new MimeMessage();
-        Map<String, String> map = new HashMap<String, String>();
+        BackupRow row = new BackupRow();
         Date sent = new Date();
 
         PersonRecord person = new PersonRecord(0, null, null, null);
 
-        map.put(MmsConsts.ID, "id");
-        map.put(MmsConsts.TYPE, "type");
-        map.put(MmsConsts.THREAD_ID, "tid");
-        map.put(MmsConsts.DATE, "date");
-        map.put(MmsConsts.READ, "read");
+        row.id = 123;
+        row.type = 128;
+        row.threadId = 5;
+        row.date = 1000L;
+        row.read = 1;
+
+        generator.setHeaders(message, row, DataType.MMS, "1234", person, sent, 0);
+
+        assertThat(get(message, Headers.ID)).isEqualTo("123");
+        assertThat(get(message, Headers.TYPE)).isEqualTo("128");
+        assertThat(get(message, Headers.THREAD_ID)).isEqualTo("5");
+        assertThat(get(message, Headers.READ)).isEqualTo("1");
+        assertThat(get(message, Headers.DATE)).isEqualTo("1000");
+    }
+
+    @Test public void testShouldOmitHeadersForNullColumns() throws Exception {
+        Message message = new MimeMessage();
+        BackupRow row = new BackupRow();
+        row.id = 123;
+        PersonRecord person = new PersonRecord(0, null, null, null);
 
-        generator.setHeaders(message, map, DataType.MMS, "1234", person, sent, 0);
+        generator.setHeaders(message, row, DataType.SMS, "1234", person, new Date(), 0);
 
-        assertThat(get(message, Headers.ID)).isEqualTo("id");
-        assertThat(get(message, Headers.TYPE)).isEqualTo("type");
-        assertThat(get(message, Headers.THREAD_ID)).isEqualTo("tid");
-        assertThat(get(message, Headers.READ)).isEqualTo("read");
-        assertThat(get(message, Headers.DATE)).isEqualTo("date");
+        assertThat(get(message, Headers.ID)).isEqualTo("123");
+        assertThat(get(message, Headers.THREAD_ID)).isNull();
+        assertThat(get(message, Headers.STATUS)).isNull();
     }
 
     @Test public void testShouldSetHeadersWithNullAddress() throws Exception {
         Message message = new MimeMessage();
-        Map<String, String> map = new HashMap<String, String>();
+        BackupRow row = new BackupRow();
         Date sent = new Date();
         PersonRecord person = new PersonRecord(0, null, null, null);
 
-        generator.setHeaders(message, map, DataType.SMS, null, person, sent, 0);
+        generator.setHeaders(message, row, DataType.SMS, null, person, sent, 0);
+    }
+
+    @Test public void shouldGenerateReferences() throws Exception {
+        Message message = new MimeMessage();
+        PersonRecord person = new PersonRecord(23, null, null, null);
+
+        generator.setHeaders(message, new BackupRow(), DataType.SMS, "1234", person, new Date(), 0);
+
+        assertThat(get(message, Headers.REFERENCES)).isEqualTo("<ref.23@sms-backup-plus.local>");
+    }
+
+    @Test public void shouldFormatBackupTimeLikeSimpleDateFormat() throws Exception {
+        SimpleDateFormat format = new SimpleDateFormat("d MMM y HH:mm:ss 'GMT'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+
+        long[] dates = { 0, 1, -1, 951782400000L /* 29 Feb 2000 */, 4107542399999L /* 2100 */,
+                -12219292800000L /* 15 Oct 1582 */, System.currentTimeMillis() };
+        for (long date : dates) {
+            assertThat(HeaderGenerator.toGMTString(date)).isEqualTo(format.format(new Date(date)));
+        }
+        Random random = new Random(42);
+        for (int i = 0; i < 10000; i++) {
+            long date = -12219292800000L + (long) (random.nextDouble() * 20000000000000L);
+            assertThat(HeaderGenerator.toGMTString(date)).isEqualTo(format.format(new Date(date)));
+        }
+    }
+
+    @Test public void shouldCreateSameMessageIdAsFormattedDigest() throws Exception {
+        Date[] dates = { new Date(0), new Date(-1000), new Date(1234567890123L), new Date(Long.MAX_VALUE) };
+        String[] addresses = { null, "", "1234", "+44 (0)20 12345", "\u00fcml\u00e4ut", "foo@example.com" };
+        int[] types = { 0, 1, 128, -1, Integer.MIN_VALUE };
+
+        for (Date date : dates) {
+            for (String address : addresses) {
+                for (int type : types) {
+                    assertThat(HeaderGenerator.createMessageId(date, address, type))
+                            .isEqualTo(formattedMessageId(date, address, type));
+                }
+            }
+        }
+    }
+
+    @Test public void shouldAllocateLessThanFormattingHeaders() throws Exception {
+        final BackupRow row = new BackupRow();
+        row.id = 123;
+        row.date = 1000L;
+        final PersonRecord person = new PersonRecord(23, null, null, null);
+        final Date sent = new Date(1234567890123L);
+        final HeaderGenerator.HeaderTarget target = new HeaderGenerator.HeaderTarget() {
+            @Override public void setHeader(String name, String value) {
+            }
+            @Override public void setSentDate(Date sentDate) {
+            }
+        };
+
+        final long generated = allocatedPerCall(new Callable<Void>() {
+            @Override public Void call() throws Exception {
+                generator.setHeaders(target, row, DataType.SMS, "1234", person, sent, 1);
+                return null;
+            }
+        });
+        // only the headers which used to be formatted, the generator sets all of them
+        final long formatted = allocatedPerCall(new Callable<Void>() {
+            @Override public Void call() throws Exception {
+                target.setHeader(Headers.REFERENCES,
+                        String.format("<%s.%s@sms-backup-plus.local>", "ref", person.getId()));
+                target.setHeader(Headers.MESSAGE_ID, formattedMessageId(sent, "1234", 1));
+                target.setHeader(Headers.BACKUP_TIME, formattedGMTString(new Date()));
+                return null;
+            }
+        });
+        assertThat(generated).isLessThan(formatted / 2);
+    }
+
+    /**
+     * @return the heap used by one call of <code>callable</code>, averaged over a run without garbage collection
+     */
+    private static long allocatedPerCall(Callable<Void> callable) throws Exception {
+        final int calls = 500;
+        for (int i = 0; i < calls; i++) {
+            callable.call();
+        }
+        final Runtime runtime = Runtime.getRuntime();
+        for (int attempt = 0; attempt < 20; attempt++) {
+            System.gc();
+            final long collections = collectionCount();
+            final long before = runtime.totalMemory() - runtime.freeMemory();
+            for (int i = 0; i < calls; i++) {
+                callable.call();
+            }
+            final long after = runtime.totalMemory() - runtime.freeMemory();
+            if (collectionCount() == collections) {
+                return (after - before) / calls;
+            }
+        }
+        throw new AssertionError("garbage collected during every run");
+    }
+
+    private static long collectionCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += bean.getCollectionCount();
+        }
+        return count;
+    }
+
+    private static String formattedGMTString(Date date) {
+        SimpleDateFormat sdf = new SimpleDateFormat("d MMM y HH:mm:ss 'GMT'", Locale.US);
+        TimeZone gmtZone = TimeZone.getTimeZone("GMT");
+        sdf.setTimeZone(gmtZone);
+        GregorianCalendar gc = new GregorianCalendar(gmtZone);
+        gc.setTimeInMillis(date.getTime());
+        return sdf.format(date);
+    }
+
+    private static String formattedMessageId(Date sent, String address, int type) throws Exception {
+        final MessageDigest digest = MessageDigest.getInstance("MD5");
+        digest.update(Long.toString(sent.getTime()).getBytes("UTF-8"));
+        if (address != null) {
+            digest.update(address.getBytes("UTF-8"));
+        }
+        digest.update(Integer.toString(type).getBytes("UTF-8"));
+        final StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest()) {
+            sb.append(String.format(Locale.ENGLISH, "%02x", b));
+        }
+        return String.format(Locale.ENGLISH, "<%s@sms-backup-plus.local>", sb.toString());
     }
 }
@@ -83,6 +83,25 @@ public class MessageConverterTest {
     }
 
 
+    @Test public void testMessageToContentValuesWithFetchedSMS() throws Exception {
+        final FetchedMessage message = new FetchedMessage("1", new String[] {
+                Headers.DATATYPE, "SMS",
+                Headers.ADDRESS, "+121332",
+                Headers.TYPE, "2",
+                Headers.DATE, "1420759456762",
+                Headers.STATUS, "-1",
+                Headers.READ, "1"
+        }, "DasßAsß");
+
+        assertThat(messageConverter.messageToContentValues(message))
+                .isEqualTo(messageConverter.messageToContentValues(createSMSMessage()));
+    }
+
+    @Test(expected = MessagingException.class)
+    public void testMessageToContentValuesWithFetchedSMSWithoutText() throws Exception {
+        messageConverter.messageToContentValues(new FetchedMessage("1", new String[] { Headers.DATATYPE, "SMS" }, null));
+    }
+
     @Test public void testMessageToContentValuesWithCalllog() throws Exception {
         PersonRecord record = new PersonRecord(1, "The name", "email@foo.com", "+1234");
         when(personLookup.lookupPerson("+12121")).thenReturn(record);
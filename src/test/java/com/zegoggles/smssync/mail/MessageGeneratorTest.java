@@ -4,10 +4,13 @@ import android.net.Uri;
 import android.provider.CallLog;
 import com.fsck.k9.mail.Address;
 import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.filter.EOLConvertingOutputStream;
 import com.fsck.k9.mail.internet.MimeHeader;
-import com.zegoggles.smssync.SmsConsts;
+import com.fsck.k9.mail.internet.MimeMessage;
+import com.fsck.k9.mail.internet.MimeUtility;
 import com.zegoggles.smssync.contacts.ContactGroupIds;
 import com.zegoggles.smssync.preferences.AddressStyle;
+import org.apache.commons.io.IOUtils;
 import org.apache.james.mime4j.util.MimeUtil;
 import org.junit.Before;
 import org.junit.Test;
@@ -16,9 +19,9 @@ import org.mockito.Mock;
 import org.robolectric.Robolectric;
 import org.robolectric.RobolectricTestRunner;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.Map;
 
 import static org.fest.assertions.api.Assertions.assertThat;
 import static org.mockito.Matchers.any;
@@ -53,8 +56,8 @@ public class MessageGeneratorTest {
     }
 
     @Test public void testShouldReturnNullIfMessageHasNoAddress() throws Exception {
-        Map<String, String> map = new HashMap<String, String>();
-        Message msg = generator.messageForDataType(map, DataType.SMS);
+        BackupRow row = new BackupRow();
+        Message msg = generator.messageForDataType(row, DataType.SMS);
         assertThat(msg).isNull();
     }
 
@@ -169,17 +172,17 @@ public class MessageGeneratorTest {
 
     @Test public void shouldGenerateCorrectHeaders() throws Exception {
         PersonRecord record = new PersonRecord(1, "Test Testor", "test@test.com", "1234");
-        Map<String, String> map = mockMessage("1234", record);
+        BackupRow row = mockMessage("1234", record);
 
         Date date = new Date();
-        map.put(SmsConsts.DATE, String.valueOf(date.getTime()));
-        map.put(SmsConsts.TYPE, "0");
+        row.date = date.getTime();
+        row.type = 0;
 
-        Message msg = generator.messageForDataType(map, DataType.SMS);
+        Message msg = generator.messageForDataType(row, DataType.SMS);
         assertThat(msg).isNotNull();
 
         verify(headerGenerator).setHeaders(any(Message.class),
-                any(Map.class),
+                any(BackupRow.class),
                 eq(DataType.SMS),
                 anyString(),
                 eq(record),
@@ -189,10 +192,10 @@ public class MessageGeneratorTest {
 
     @Test public void shouldGenerateCorrectToHeaderWhenUserisRecipient() throws Exception {
         PersonRecord record = new PersonRecord(1, "Test Testor", "test@test.com", "1234");
-        Map<String, String> map = mockMessage("1234", record);
-        map.put(SmsConsts.TYPE, "1");
+        BackupRow row = mockMessage("1234", record);
+        row.type = 1;
 
-        Message msg = generator.messageForDataType(map, DataType.SMS);
+        Message msg = generator.messageForDataType(row, DataType.SMS);
         assertThat(msg).isNotNull();
 
         assertThat(msg.getFrom()[0].toString())
@@ -219,27 +222,142 @@ public class MessageGeneratorTest {
                 mmsSupport
         );
         PersonRecord record = new PersonRecord(1, "Test Testor", "test@test.com", "1234");
-        Map<String, String> map = mockMessage("1234", record);
-        map.put(SmsConsts.TYPE, "1");
+        BackupRow row = mockMessage("1234", record);
+        row.type = 1;
 
         when(groupIds.contains(record)).thenReturn(false);
-        assertThat(generator.messageForDataType(map, DataType.SMS)).isNull();
+        assertThat(generator.messageForDataType(row, DataType.SMS)).isNull();
         when(groupIds.contains(record)).thenReturn(true);
-        assertThat(generator.messageForDataType(map, DataType.SMS)).isNotNull();
+        assertThat(generator.messageForDataType(row, DataType.SMS)).isNotNull();
     }
 
-    private Map<String, String> mockMessage(String address, PersonRecord record) {
-        Map<String, String> map = new HashMap<String, String>();
-        map.put(SmsConsts.ADDRESS, address);
+    @Test public void shouldGenerateSameRawSmsAsMimeMessage() throws Exception {
+        PersonRecord record = new PersonRecord(1, "Test Testor", "test@test.com", "1234");
+        for (int type : new int[] { 1, 2 }) {
+            BackupRow row = mockMessage("1234", record);
+            row.type = type;
+            row.id = 12;
+            row.threadId = 3;
+            row.read = 1;
+            row.date = 1420759456762L;
+            row.status = "-1";
+            row.protocol = "0";
+            row.body = "Hello";
+
+            assertSameSerialization(row, DataType.SMS);
+        }
+    }
+
+    @Test public void shouldGenerateSameRawSmsAsMimeMessageWithEncodedText() throws Exception {
+        PersonRecord record = new PersonRecord(1, "J\u00fcrgen M\u00fcller", "test@test.com", "1234");
+        BackupRow row = mockMessage("1234", record);
+        row.type = 1;
+        row.date = 1420759456762L;
+        row.body = "Gr\u00fc\u00dfe \u2013 this is a long message with a line break\nand more than " +
+                "seventy-six characters per line, which needs soft line breaks when encoded.  ";
+
+        assertSameSerialization(row, DataType.SMS);
+    }
+
+    @Test public void shouldGenerateSameRawSmsAsMimeMessageWithCarriageReturns() throws Exception {
+        PersonRecord record = new PersonRecord(1, "Test\rTestor", "test@test.com", "12\r34");
+        BackupRow row = mockMessage("12\r34", record);
+        row.type = 1;
+        row.date = 1420759456762L;
+        row.body = "Hello\rthere\r\n";
+
+        assertSameSerialization(row, DataType.SMS);
+    }
+
+    @Test public void shouldGenerateSameRawCallLogAsMimeMessage() throws Exception {
+        PersonRecord record = new PersonRecord(1, "Test Testor", "test@test.com", "1234");
+        for (int type : new int[] { CallLog.Calls.INCOMING_TYPE, CallLog.Calls.OUTGOING_TYPE, CallLog.Calls.MISSED_TYPE }) {
+            BackupRow row = mockCalllogMessage("1234", type, record);
+            row.id = 12;
+            row.date = 1420759456762L;
+            row.duration = 65;
+
+            assertSameSerialization(row, DataType.CALLLOG);
+        }
+    }
+
+    @Test public void shouldGenerateRawMessageWithHeaders() throws Exception {
+        PersonRecord record = new PersonRecord(1, "Test Testor", "test@test.com", "1234");
+        BackupRow row = mockMessage("1234", record);
+        row.type = 1;
+        row.date = 1420759456762L;
+        row.body = "Hello";
+
+        Message msg = generator(new HeaderGenerator("ref", "1.0"), true).messageForDataType(row, DataType.SMS);
+        assertThat(msg).isInstanceOf(RawMessage.class);
+        assertThat(Headers.get(msg, Headers.DATE)).isEqualTo("1420759456762");
+        assertThat(Headers.get(msg, Headers.DATATYPE)).isEqualTo("SMS");
+        assertThat(Headers.get(msg, Headers.STATUS)).isNull();
+
+        MimeMessage parsed = new MimeMessage(new ByteArrayInputStream(serialize(msg).getBytes("UTF-8")), true);
+        assertThat(parsed.getSubject()).isEqualTo("SMS with Test Testor");
+        assertThat(Headers.get(parsed, Headers.ADDRESS)).isEqualTo("1234");
+        assertThat(IOUtils.toString(MimeUtility.decodeBody(parsed.getBody()))).isEqualTo("Hello");
+    }
+
+    private void assertSameSerialization(BackupRow row, DataType dataType) throws Exception {
+        HeaderGenerator headerGenerator = new HeaderGenerator("ref", "1.0");
+        Message mime = generator(headerGenerator, false).messageForDataType(row, dataType);
+        Message raw = generator(headerGenerator, true).messageForDataType(row, dataType);
+
+        assertThat(mime).isNotNull();
+        assertThat(raw).isInstanceOf(RawMessage.class);
+        assertThat(withoutBackupTime(serialize(raw))).isEqualTo(withoutBackupTime(serializeMime(mime)));
+    }
+
+    private MessageGenerator generator(HeaderGenerator headerGenerator, boolean rawMessages) {
+        return new MessageGenerator(Robolectric.application,
+                me,
+                AddressStyle.NAME,
+                headerGenerator,
+                personLookup,
+                false,
+                null,
+                mmsSupport,
+                rawMessages);
+    }
+
+    private static String serialize(Message message) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CrlfOutputStream crlfOut = new CrlfOutputStream(out);
+        message.writeTo(crlfOut);
+        crlfOut.flush();
+        return out.toString("UTF-8");
+    }
+
+    /**
+     * Serializes the way k9 appends a {@link MimeMessage}, for comparison with the raw path.
+     */
+    private static String serializeMime(Message message) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        EOLConvertingOutputStream eolOut = new EOLConvertingOutputStream(out);
+        message.writeTo(eolOut);
+        eolOut.flush();
+        return out.toString("UTF-8");
+    }
+
+    private static String withoutBackupTime(String message) {
+        // generated separately, might be a second apart
+        return message.replaceAll(Headers.BACKUP_TIME + ": [^\\r]*\\r\\n", "");
+    }
+
+    private BackupRow mockMessage(String address, PersonRecord record) {
+        BackupRow row = new BackupRow();
+        row.address = address;
         when(personLookup.lookupPerson(eq(address))).thenReturn(record);
-        return map;
+        return row;
     }
 
-    private Map<String, String> mockCalllogMessage(String address, int type, PersonRecord record) {
-        Map<String, String> map = new HashMap<String, String>();
-        map.put(CallLog.Calls.NUMBER, address);
-        map.put(CallLog.Calls.TYPE, String.valueOf(type));
+    private BackupRow mockCalllogMessage(String address, int type, PersonRecord record) {
+        BackupRow row = new BackupRow();
+        row.address = address;
+        row.type = type;
         when(personLookup.lookupPerson(eq(address))).thenReturn(record);
-        return map;
+        return row;
     }
 }
@@ -0,0 +1,70 @@
+package com.zegoggles.smssync.mail;
+
+import android.content.ContentResolver;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import com.fsck.k9.mail.BodyPart;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+@RunWith(RobolectricTestRunner.class)
+public class MmsSupportTest {
+    @Mock ContentResolver resolver;
+    @Mock PersonLookup personLookup;
+    MmsSupport mmsSupport;
+
+    @Before public void before() {
+        initMocks(this);
+        mmsSupport = new MmsSupport(resolver, personLookup);
+    }
+
+    @Test public void shouldPrefetchPartsWithOneQuery() throws Exception {
+        MatrixCursor parts = new MatrixCursor(new String[] { "_id", "mid", "ct", "cl", "text" });
+        parts.addRow(new Object[] { 10, 1, "text/plain", "text.txt", "Hello" });
+        parts.addRow(new Object[] { 11, 1, "application/smil", "smil.xml", "<smil/>" });
+        parts.addRow(new Object[] { 12, 2, "text/plain", "text.txt", "World" });
+
+        when(resolver.query(eq(Uri.parse("content://mms/part")), any(String[].class),
+                eq("mid IN (1,2,3)"), any(String[].class), anyString())).thenReturn(parts);
+
+        List<BackupRow> rows = Arrays.asList(row(1), row(2), row(3));
+        mmsSupport.prefetchParts(rows);
+
+        verify(resolver, times(1)).query(any(Uri.class), any(String[].class), anyString(), any(String[].class), anyString());
+        assertThat(rows.get(0).parts).hasSize(2);
+        assertThat(rows.get(1).parts).hasSize(1);
+        assertThat(rows.get(2).parts).isEmpty();
+
+        List<BodyPart> bodyParts = mmsSupport.getMMSBodyParts(rows.get(0).parts);
+        assertThat(bodyParts).hasSize(1);
+        assertThat(bodyParts.get(0).getMimeType()).isEqualTo("text/plain");
+    }
+
+    @Test public void shouldNotSetPartsWithoutResult() throws Exception {
+        List<BackupRow> rows = Arrays.asList(row(1));
+        mmsSupport.prefetchParts(rows);
+
+        assertThat(rows.get(0).parts).isNull();
+    }
+
+    private static BackupRow row(long id) {
+        BackupRow row = new BackupRow();
+        row.id = id;
+        return row;
+    }
+}
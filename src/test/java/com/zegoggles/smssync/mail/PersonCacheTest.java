@@ -0,0 +1,73 @@
+package com.zegoggles.smssync.mail;
+
+import android.content.ContentResolver;
+import android.os.Build;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(reportSdk = Build.VERSION_CODES.ECLAIR)
+public class PersonCacheTest {
+    PersonCache cache;
+    ContentResolver resolver;
+
+    @Before public void before() {
+        cache = new PersonCache(Robolectric.application, PersonCache.NEGATIVE_TTL_MILLIS);
+        resolver = mock(ContentResolver.class);
+        cache.validate(resolver);
+    }
+
+    @Test public void shouldReturnNullForUnknownAddress() throws Exception {
+        assertThat(cache.get("1234")).isNull();
+    }
+
+    @Test public void shouldCachePerson() throws Exception {
+        cache.put("1234", new PersonRecord(23, "Testor Test", "test@test.com", "+1234"));
+
+        PersonRecord record = cache.get("1234");
+        assertThat(record).isNotNull();
+        assertThat(record.getContactId()).isEqualTo(23);
+        assertThat(record.getName()).isEqualTo("Testor Test");
+        assertThat(record.getEmail()).isEqualTo("test@test.com");
+        assertThat(record.getNumber()).isEqualTo("+1234");
+        assertThat(record.isUnknown()).isFalse();
+    }
+
+    @Test public void shouldCacheUnknownPerson() throws Exception {
+        cache.put("1234", new PersonRecord(0, null, null, "1234"));
+
+        PersonRecord record = cache.get("1234");
+        assertThat(record).isNotNull();
+        assertThat(record.isUnknown()).isTrue();
+        assertThat(record.getEmail()).isEqualTo("1234@unknown.email");
+    }
+
+    @Test public void shouldExpireUnknownPerson() throws Exception {
+        cache = new PersonCache(Robolectric.application, -1);
+        cache.put("1234", new PersonRecord(0, null, null, "1234"));
+        cache.put("5678", new PersonRecord(23, "Testor Test", null, "5678"));
+
+        assertThat(cache.get("1234")).isNull();
+        assertThat(cache.get("5678")).isNotNull();
+    }
+
+    @Test public void shouldKeepEntriesIfContactsUnchanged() throws Exception {
+        cache.put("1234", new PersonRecord(23, "Testor Test", null, "1234"));
+        cache.validate(resolver);
+        assertThat(cache.get("1234")).isNotNull();
+    }
+
+    @Test public void shouldClearAfterContactsChanged() throws Exception {
+        cache.put("1234", new PersonRecord(23, "Testor Test", null, "1234"));
+        cache.onContactsChanged();
+        cache.validate(resolver);
+        assertThat(cache.get("1234")).isNull();
+    }
+}
@@ -15,6 +15,10 @@ import org.robolectric.annotation.Config;
 
 import static org.fest.assertions.api.Assertions.assertThat;
 import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
 
@@ -103,6 +107,123 @@ public class PersonLookupTest {
         assertThat(record.getEmail()).isEqualTo("foo@gmail.com");
     }
 
+    @Test
+    @Config(reportSdk = Build.VERSION_CODES.ECLAIR)
+    public void shouldCachePersonRecords() throws Exception {
+        when(resolver.query( eq(Uri.parse("content://com.android.contacts/phone_lookup/1234")), any(String[].class),
+                (String) isNull(),
+                (String[]) isNull(),
+                (String) isNull()
+        )).thenReturn(name("Testor Test"));
+
+        PersonRecord record = lookup.lookupPerson("1234");
+        assertThat(lookup.lookupPerson("1234")).isSameAs(record);
+
+        verify(resolver, times(1)).query(eq(Uri.parse("content://com.android.contacts/phone_lookup/1234")), any(String[].class),
+                (String) isNull(),
+                (String[]) isNull(),
+                (String) isNull());
+    }
+
+    @Test
+    @Config(reportSdk = Build.VERSION_CODES.ECLAIR)
+    public void shouldLookupPersonFromPersistentCache() throws Exception {
+        PersonCache cache = mock(PersonCache.class);
+        when(cache.get("1234")).thenReturn(new PersonRecord(23, "Testor Test", null, "1234"));
+        lookup = new PersonLookup(resolver, cache);
+
+        PersonRecord record = lookup.lookupPerson("1234");
+        assertThat(record.getName()).isEqualTo("Testor Test");
+
+        verify(cache).validate(resolver);
+        verify(resolver, never()).query(any(Uri.class), any(String[].class), anyString(), any(String[].class), anyString());
+    }
+
+    @Test
+    @Config(reportSdk = Build.VERSION_CODES.ECLAIR)
+    public void shouldStoreLookupsInPersistentCache() throws Exception {
+        PersonCache cache = mock(PersonCache.class);
+        lookup = new PersonLookup(resolver, cache);
+        when(resolver.query( eq(Uri.parse("content://com.android.contacts/phone_lookup/1234")), any(String[].class),
+                (String) isNull(),
+                (String[]) isNull(),
+                (String) isNull()
+        )).thenReturn(name("Testor Test"));
+
+        PersonRecord record = lookup.lookupPerson("1234");
+
+        verify(cache).put("1234", record);
+    }
+
+    @Test
+    @Config(reportSdk = Build.VERSION_CODES.ECLAIR)
+    public void shouldLookupPersonFromPreloadedIndex() throws Exception {
+        mockContactData(ContactsContract.CommonDataKinds.Phone.CONTENT_ITEM_TYPE, phones());
+        mockContactData(ContactsContract.CommonDataKinds.Email.CONTENT_ITEM_TYPE, emails());
+
+        ContactIndex index = lookup.preload();
+        assertThat(index).isNotNull();
+        assertThat(index.getContactCount()).isEqualTo(2);
+        assertThat(index.getNumberCount()).isEqualTo(3);
+
+        PersonRecord record = lookup.lookupPerson("+4917612345678");
+        assertThat(record.isUnknown()).isFalse();
+        assertThat(record.getContactId()).isEqualTo(1);
+        assertThat(record.getName()).isEqualTo("Testor Test");
+        assertThat(record.getEmail()).isEqualTo("foo@gmail.com");
+
+        record = lookup.lookupPerson("5550100");
+        assertThat(record.getContactId()).isEqualTo(2);
+        assertThat(record.getEmail()).isEqualTo("bar@test.com");
+
+        verify(resolver, never()).query(eq(Uri.parse("content://com.android.contacts/phone_lookup/5550100")),
+                any(String[].class), anyString(), any(String[].class), anyString());
+    }
+
+    @Test
+    @Config(reportSdk = Build.VERSION_CODES.ECLAIR)
+    public void shouldReturnUnknownPersonIfNotInPreloadedIndex() throws Exception {
+        mockContactData(ContactsContract.CommonDataKinds.Phone.CONTENT_ITEM_TYPE, phones());
+        mockContactData(ContactsContract.CommonDataKinds.Email.CONTENT_ITEM_TYPE, emails());
+        lookup.preload();
+
+        PersonRecord record = lookup.lookupPerson("1234");
+        assertThat(record.isUnknown()).isTrue();
+        assertThat(record.getNumber()).isEqualTo("1234");
+    }
+
+    private void mockContactData(String mimeType, Cursor cursor) {
+        when(resolver.query(eq(ContactsContract.Data.CONTENT_URI), any(String[].class),
+                eq(ContactsContract.Data.MIMETYPE + " = ?"),
+                eq(new String[] { mimeType }),
+                anyString())).thenReturn(cursor);
+    }
+
+    private Cursor phones() {
+        MatrixCursor cursor = new MatrixCursor(new String[] {
+                ContactsContract.Data.CONTACT_ID,
+                ContactsContract.CommonDataKinds.Phone.NUMBER,
+                ContactsContract.Data.DISPLAY_NAME
+        });
+        cursor.addRow(new Object[] { 1, "+49 176 12345678", "Testor Test" });
+        cursor.addRow(new Object[] { 1, "0176 87654321", "Testor Test" });
+        cursor.addRow(new Object[] { 2, "555-0100", "Other" });
+        return cursor;
+    }
+
+    private Cursor emails() {
+        MatrixCursor cursor = new MatrixCursor(new String[] {
+                ContactsContract.Data.CONTACT_ID,
+                ContactsContract.CommonDataKinds.Email.DATA,
+                ContactsContract.CommonDataKinds.Email.IS_PRIMARY
+        });
+        cursor.addRow(new Object[] { 1, "foo@test.com", 1 });
+        cursor.addRow(new Object[] { 1, "foo@gmail.com", 0 });
+        cursor.addRow(new Object[] { 2, "bar@test.com", 0 });
+        cursor.addRow(new Object[] { 3, "nobody@test.com", 0 });
+        return cursor;
+    }
+
     private Cursor name(String... names) {
         MatrixCursor cursor = new MatrixCursor(new String[] {
             ContactsContract.Contacts._ID,
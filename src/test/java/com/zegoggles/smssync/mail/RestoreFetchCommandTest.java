@@ -0,0 +1,130 @@
+package com.zegoggles.smssync.mail;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class RestoreFetchCommandTest {
+    static final String SMS_HEADERS =
+            "X-smssync-datatype: SMS\r\n" +
+            "X-smssync-type: 1\r\n" +
+            "X-smssync-address: +121332\r\n" +
+            "X-smssync-date: 1420759456762\r\n" +
+            "Content-Type: text/plain;\r\n" +
+            " charset=utf-8\r\n" +
+            "Content-Transfer-Encoding: quoted-printable\r\n" +
+            "\r\n";
+
+    @Test public void shouldBuildCommandForHeadersAndText() throws Exception {
+        String command = new RestoreFetchCommand(true).getCommand(Arrays.asList("1", "5", "7"));
+
+        assertThat(command).startsWith("UID FETCH 1,5,7 (UID BODY.PEEK[HEADER.FIELDS (X-smssync-datatype X-smssync-type ");
+        assertThat(command).endsWith(" Content-Type Content-Transfer-Encoding)] BODY.PEEK[TEXT])");
+    }
+
+    @Test public void shouldBuildCommandForHeadersOnly() throws Exception {
+        String command = new RestoreFetchCommand(false).getCommand(Collections.singletonList("1"));
+
+        assertThat(command).endsWith(")])");
+        assertThat(command).doesNotContain("TEXT");
+    }
+
+    @Test public void shouldParseHeadersAndText() throws Exception {
+        RestoreFetchCommand command = new RestoreFetchCommand(true);
+        Map<String, FetchedMessage> messages = command.parse(Collections.singletonList(
+                fetch("12", SMS_HEADERS, "Das=C3=9FAs=C3=9F")));
+
+        FetchedMessage message = messages.get("12");
+        assertThat(message).isNotNull();
+        assertThat(message.getUid()).isEqualTo("12");
+        assertThat(message.getHeader(Headers.DATATYPE)).isEqualTo(new String[] { "SMS" });
+        assertThat(message.getHeader("x-SMSSYNC-address")).isEqualTo(new String[] { "+121332" });
+        assertThat(message.getHeader("Content-Type")).isEqualTo(new String[] { "text/plain; charset=utf-8" });
+        assertThat(message.getHeader(Headers.DURATION)).isNull();
+        assertThat(message.getText()).isEqualTo("DasßAsß");
+        assertThat(command.getBytes()).isEqualTo(SMS_HEADERS.length() + "Das=C3=9FAs=C3=9F".length());
+    }
+
+    @Test public void shouldParseHeadersOnly() throws Exception {
+        Map<String, FetchedMessage> messages = new RestoreFetchCommand(false).parse(Collections.<List<?>>singletonList(
+                Arrays.asList("3", "FETCH", Arrays.asList("UID", "7",
+                        "BODY", Arrays.asList("HEADER.FIELDS", Arrays.asList("X-SMSSYNC-TYPE")),
+                        "X-smssync-datatype: CALLLOG\r\nX-smssync-duration: 44\r\n\r\n"))));
+
+        FetchedMessage message = messages.get("7");
+        assertThat(message.getHeader(Headers.DURATION)).isEqualTo(new String[] { "44" });
+        assertThat(message.getText()).isNull();
+    }
+
+    @Test public void shouldDecodeEncodedWords() throws Exception {
+        String[] fields = RestoreFetchCommand.parseHeaders("X-smssync-address: =?UTF-8?Q?Stra=C3=9Fe?=\r\n");
+
+        assertThat(fields).isEqualTo(new String[] { "X-smssync-address", "Straße" });
+    }
+
+    @Test public void shouldDecodeText() throws Exception {
+        assertThat(RestoreFetchCommand.decodeText("Hello", null, null)).isEqualTo("Hello");
+        assertThat(RestoreFetchCommand.decodeText("Hello", "text/plain", "7bit")).isEqualTo("Hello");
+        assertThat(RestoreFetchCommand.decodeText("SGVsbG8=", "text/plain", "base64")).isEqualTo("Hello");
+        assertThat(RestoreFetchCommand.decodeText("Hel=\r\nlo", "text/plain", "quoted-printable")).isEqualTo("Hello");
+    }
+
+    @Test public void shouldDecodeTextInCharsetOfContentType() throws Exception {
+        assertThat(RestoreFetchCommand.decodeText("Stra=DFe", "text/plain; charset=ISO-8859-1", "quoted-printable"))
+                .isEqualTo("Stra\u00dfe");
+        assertThat(RestoreFetchCommand.decodeText("Stra=C3=9Fe", "text/plain; charset=\"utf-8\"", "quoted-printable"))
+                .isEqualTo("Stra\u00dfe");
+    }
+
+    @Test public void shouldParseTextInCharsetOfContentType() throws Exception {
+        Map<String, FetchedMessage> messages = new RestoreFetchCommand(true).parse(Collections.singletonList(
+                fetch("12", SMS_HEADERS.replace("utf-8", "iso-8859-1"), "Das=DFAs=DF")));
+
+        assertThat(messages.get("12").getText()).isEqualTo("Das\u00dfAs\u00df");
+    }
+
+    @Test public void shouldNotDecodeTextInUnsupportedCharset() throws Exception {
+        assertThat(RestoreFetchCommand.decodeText("Hello", "text/plain; charset=x-unknown", "7bit")).isNull();
+        assertThat(RestoreFetchCommand.decodeText("Hello", "text/plain; charset=\"in valid\"", "7bit")).isNull();
+        assertThat(new RestoreFetchCommand(true).parse(Collections.singletonList(
+                fetch("12", SMS_HEADERS.replace("utf-8", "x-unknown"), "Hello")))).isEmpty();
+    }
+
+    @Test public void shouldNotDecodeUnsupportedText() throws Exception {
+        assertThat(RestoreFetchCommand.decodeText("Stra\uFFFDe", "text/plain", "8bit")).isNull();
+        assertThat(RestoreFetchCommand.decodeText("--boundary", "multipart/mixed; boundary=boundary", "7bit")).isNull();
+        assertThat(RestoreFetchCommand.decodeText("Hello", "text/plain", "x-uuencode")).isNull();
+    }
+
+    @Test public void shouldLeaveOutMessagesWithoutText() throws Exception {
+        Map<String, FetchedMessage> messages = new RestoreFetchCommand(true).parse(Arrays.<List<?>>asList(
+                fetch("1", SMS_HEADERS, "Hello"),
+                Arrays.asList("2", "FETCH", Arrays.asList("UID", "2",
+                        "BODY", Arrays.asList("HEADER.FIELDS", Arrays.asList("X-SMSSYNC-TYPE")), SMS_HEADERS)),
+                fetch("3", SMS_HEADERS.replace("text/plain", "multipart/mixed"), "Hello")));
+
+        assertThat(messages.keySet()).containsOnly("1");
+    }
+
+    @Test public void shouldIgnoreOtherResponses() throws Exception {
+        Map<String, FetchedMessage> messages = new RestoreFetchCommand(true).parse(Arrays.<List<?>>asList(
+                Arrays.asList("4", "EXISTS"),
+                Arrays.asList("1", "FETCH", Arrays.asList("FLAGS", Arrays.asList("\\Seen")))));
+
+        assertThat(messages).isEmpty();
+    }
+
+    static List<Object> fetch(String uid, String headers, String text) {
+        return Arrays.<Object>asList("1", "FETCH", Arrays.asList("UID", uid,
+                "BODY", Arrays.asList("HEADER.FIELDS", Arrays.asList("X-SMSSYNC-DATATYPE", "X-SMSSYNC-TYPE")), headers,
+                "BODY", Arrays.asList("TEXT"), text));
+    }
+}
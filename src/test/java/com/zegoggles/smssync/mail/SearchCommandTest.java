@@ -0,0 +1,92 @@
+package com.zegoggles.smssync.mail;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class SearchCommandTest {
+    SearchCommand command = new SearchCommand("1:* (HEADER X-SMSSYNC-DATATYPE \"CALLLOG\") UNDELETED");
+
+    @Test public void shouldBuildCommands() throws Exception {
+        assertThat(command.getSearchCommand()).isEqualTo(
+                "UID SEARCH 1:* (HEADER X-SMSSYNC-DATATYPE \"CALLLOG\") UNDELETED");
+        assertThat(command.getExtendedSearchCommand()).isEqualTo(
+                "UID SEARCH RETURN (ALL) 1:* (HEADER X-SMSSYNC-DATATYPE \"CALLLOG\") UNDELETED");
+        assertThat(command.getSortCommand()).isEqualTo(
+                "UID SORT (REVERSE DATE) US-ASCII 1:* (HEADER X-SMSSYNC-DATATYPE \"CALLLOG\") UNDELETED");
+    }
+
+    @Test public void shouldParseSortResponse() throws Exception {
+        List<String> uids = SearchCommand.parseSort(Arrays.<List<?>>asList(
+                Arrays.asList("SORT", "5", "3", "4"),
+                Arrays.asList("3", "EXISTS")));
+
+        assertThat(uids).containsExactly("5", "3", "4");
+    }
+
+    @Test public void shouldParseEmptySortResponse() throws Exception {
+        assertThat(SearchCommand.parseSort(Collections.<List<?>>singletonList(Arrays.asList("SORT")))).isEmpty();
+    }
+
+    @Test public void shouldParseExtendedSearchResponse() throws Exception {
+        long[][] ranges = SearchCommand.parseExtendedSearch(Collections.<List<?>>singletonList(
+                Arrays.asList("ESEARCH", Arrays.asList("TAG", "A1"), "UID", "ALL", "10,2:4,8:7")));
+
+        assertThat(ranges).isEqualTo(new long[][] { { 10, 10 }, { 2, 4 }, { 7, 8 } });
+        assertThat(SearchCommand.count(ranges)).isEqualTo(6);
+    }
+
+    @Test public void shouldParseExtendedSearchResponseWithoutMatches() throws Exception {
+        long[][] ranges = SearchCommand.parseExtendedSearch(Collections.<List<?>>singletonList(
+                Arrays.asList("ESEARCH", Arrays.asList("TAG", "A1"), "UID")));
+
+        assertThat(ranges).isEmpty();
+        assertThat(SearchCommand.highest(ranges, 10)).isEmpty();
+    }
+
+    @Test public void shouldSelectHighestUidsFromRanges() throws Exception {
+        long[][] ranges = { { 10, 10 }, { 2, 4 }, { 7, 8 } };
+
+        assertThat(SearchCommand.highest(ranges, 4)).containsExactly("10", "8", "7", "4");
+        assertThat(SearchCommand.highest(ranges, 10)).containsExactly("10", "8", "7", "4", "3", "2");
+    }
+
+    @Test public void shouldNotExpandRangesBeyondCandidates() throws Exception {
+        long[][] ranges = { { 1, Long.MAX_VALUE - 1 } };
+
+        assertThat(SearchCommand.highest(ranges, 2)).containsExactly(
+                String.valueOf(Long.MAX_VALUE - 1), String.valueOf(Long.MAX_VALUE - 2));
+    }
+
+    @Test public void shouldSelectOverlappingRangesOnce() throws Exception {
+        long[][] ranges = { { 5, 8 }, { 1, 10 }, { 6, 7 } };
+
+        assertThat(SearchCommand.highest(ranges, 20)).containsExactly(
+                "10", "9", "8", "7", "6", "5", "4", "3", "2", "1");
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void shouldRejectInvalidSequenceSet() throws Exception {
+        SearchCommand.parseExtendedSearch(Collections.<List<?>>singletonList(
+                Arrays.asList("ESEARCH", "UID", "ALL", "1:*")));
+    }
+
+    @Test public void shouldSelectHighestUids() throws Exception {
+        long[] uids = { 1, 2, 5, 9, 12 };
+
+        assertThat(SearchCommand.highest(uids, 3)).containsExactly("12", "9", "5");
+        assertThat(SearchCommand.highest(uids, 10)).containsExactly("12", "9", "5", "2", "1");
+    }
+
+    @Test public void shouldLimitCandidateCount() throws Exception {
+        assertThat(SearchCommand.getCandidateCount(100)).isEqualTo(100 * SearchCommand.CANDIDATES_PER_MESSAGE);
+        assertThat(SearchCommand.getCandidateCount(Integer.MAX_VALUE)).isEqualTo(Integer.MAX_VALUE);
+    }
+}
@@ -0,0 +1,88 @@
+package com.zegoggles.smssync.mail;
+
+import com.fsck.k9.mail.filter.Base64OutputStream;
+import com.fsck.k9.mail.filter.EOLConvertingOutputStream;
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Compares the time it takes to encode attachments for an APPEND with {@link StreamingBase64} and
+ * {@link CrlfOutputStream} against the previous {@link Base64OutputStream} and {@link EOLConvertingOutputStream}.
+ * Not a unit test, run it with <code>main</code>.
+ */
+public class StreamingBase64Benchmark {
+    private static final int[] SIZES = { 100 * 1024, 1024 * 1024, 10 * 1024 * 1024 };
+    private static final int WARMUP = 5;
+    private static final int RUNS = 10;
+
+    interface Encoder {
+        void encode(byte[] data, OutputStream out) throws IOException;
+    }
+
+    static final Encoder STREAMING = new Encoder() {
+        @Override public void encode(byte[] data, OutputStream out) throws IOException {
+            final CrlfOutputStream crlfOut = new CrlfOutputStream(out);
+            StreamingBase64.encode(new ByteArrayInputStream(data), crlfOut);
+            crlfOut.flush();
+        }
+    };
+
+    static final Encoder BASE64_OUTPUT_STREAM = new Encoder() {
+        @Override public void encode(byte[] data, OutputStream out) throws IOException {
+            final EOLConvertingOutputStream eolOut = new EOLConvertingOutputStream(out);
+            final Base64OutputStream base64Out = new Base64OutputStream(eolOut);
+            IOUtils.copy(new ByteArrayInputStream(data), base64Out);
+            base64Out.close();
+        }
+    };
+
+    public static void main(String[] args) throws IOException {
+        final Random random = new Random(42);
+        for (int size : SIZES) {
+            final byte[] data = new byte[size];
+            random.nextBytes(data);
+
+            final long streaming = time(STREAMING, data);
+            final long previous = time(BASE64_OUTPUT_STREAM, data);
+            System.out.println(String.format(Locale.ENGLISH, "%,11d bytes: streaming %7.2f ms, previous %7.2f ms (%.1fx)",
+                    size, streaming / 1e6, previous / 1e6, (double) previous / streaming));
+        }
+    }
+
+    /**
+     * @return the fastest of {@link #RUNS} runs in nanoseconds
+     */
+    private static long time(Encoder encoder, byte[] data) throws IOException {
+        for (int i = 0; i < WARMUP; i++) {
+            encoder.encode(data, new NullOutputStream());
+        }
+        long fastest = Long.MAX_VALUE;
+        for (int i = 0; i < RUNS; i++) {
+            final NullOutputStream out = new NullOutputStream();
+            final long start = System.nanoTime();
+            encoder.encode(data, out);
+            fastest = Math.min(fastest, System.nanoTime() - start);
+            if (out.count != StreamingBase64.encodedSize(data.length)) {
+                throw new AssertionError("unexpected encoded size " + out.count);
+            }
+        }
+        return fastest;
+    }
+
+    private static class NullOutputStream extends OutputStream {
+        long count;
+
+        @Override public void write(int b) {
+            count++;
+        }
+
+        @Override public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
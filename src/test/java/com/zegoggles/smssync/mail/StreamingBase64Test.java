@@ -0,0 +1,59 @@
+package com.zegoggles.smssync.mail;
+
+import android.util.Base64;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.Random;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class StreamingBase64Test {
+
+    @Test public void shouldEncodeLikeAndroid() throws Exception {
+        Random random = new Random(42);
+        for (int size : new int[] { 0, 1, 2, 3, 56, 57, 58, 114, 115, 3647, 3648, 3649, 100000 }) {
+            byte[] data = new byte[size];
+            random.nextBytes(data);
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertThat(StreamingBase64.encode(new ByteArrayInputStream(data), out)).isEqualTo(size);
+
+            assertThat(out.toString("US-ASCII")).isEqualTo(Base64.encodeToString(data, Base64.CRLF));
+            assertThat((long) out.size()).isEqualTo(StreamingBase64.encodedSize(size));
+        }
+    }
+
+    @Test public void shouldEncodeFilesInChunks() throws Exception {
+        byte[] data = new byte[3 * StreamingBase64.CHUNK_SIZE + 1];
+        new Random(42).nextBytes(data);
+        File file = File.createTempFile("attachment", ".bin");
+        file.deleteOnExit();
+        FileOutputStream fileOut = new FileOutputStream(file);
+        fileOut.write(data);
+        fileOut.close();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FileInputStream in = new FileInputStream(file);
+        try {
+            assertThat(StreamingBase64.encode(in, out)).isEqualTo(data.length);
+        } finally {
+            in.close();
+        }
+        assertThat(out.toString("US-ASCII")).isEqualTo(Base64.encodeToString(data, Base64.CRLF));
+    }
+
+    @Test public void shouldCalculateEncodedSize() throws Exception {
+        assertThat(StreamingBase64.encodedSize(0)).isEqualTo(0);
+        assertThat(StreamingBase64.encodedSize(1)).isEqualTo(6);
+        assertThat(StreamingBase64.encodedSize(57)).isEqualTo(78);
+        assertThat(StreamingBase64.encodedSize(58)).isEqualTo(84);
+    }
+}
@@ -0,0 +1,121 @@
+package com.zegoggles.smssync.preferences;
+
+import android.content.SharedPreferences;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.preference.PreferenceManager;
+import com.zegoggles.smssync.mail.DataType;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class SyncStateStoreTest {
+    SyncStateStore store;
+    SharedPreferences prefs;
+
+    @Before public void before() {
+        store = SyncStateStore.get(Robolectric.application);
+        prefs = PreferenceManager.getDefaultSharedPreferences(Robolectric.application);
+    }
+
+    @Test public void shouldReturnDefaultIfNotSet() throws Exception {
+        assertThat(store.getMaxSyncedDate(DataType.SMS)).isEqualTo(DataType.Defaults.MAX_SYNCED_DATE);
+        assertThat(store.contains(DataType.SMS)).isFalse();
+    }
+
+    @Test public void shouldSetMaxSyncedDate() throws Exception {
+        assertThat(store.setMaxSyncedDate(DataType.SMS, 1234L)).isTrue();
+        assertThat(store.getMaxSyncedDate(DataType.SMS)).isEqualTo(1234L);
+        assertThat(store.contains(DataType.SMS)).isTrue();
+        // preferences are only updated when mirrored
+        assertThat(prefs.contains(DataType.SMS.maxSyncedPreference)).isFalse();
+    }
+
+    @Test public void shouldMirrorStoredStateToPreferences() throws Exception {
+        store.setMaxSyncedDate(DataType.SMS, 1234L);
+        store.setMaxSyncedDate(DataType.CALLLOG, 5678L);
+        assertThat(store.mirror()).isTrue();
+        assertThat(prefs.getLong(DataType.SMS.maxSyncedPreference, -1)).isEqualTo(1234L);
+        assertThat(prefs.getLong(DataType.CALLLOG.maxSyncedPreference, -1)).isEqualTo(5678L);
+    }
+
+    @Test public void shouldWritePreferencesIfDatabaseFails() throws Exception {
+        SyncStateStore failing = new SyncStateStore(Robolectric.application, new FailingHelper());
+
+        assertThat(failing.setMaxSyncedDate(DataType.SMS, 1234L)).isFalse();
+        assertThat(prefs.getLong(DataType.SMS.maxSyncedPreference, -1)).isEqualTo(1234L);
+        assertThat(failing.getMaxSyncedDate(DataType.SMS)).isEqualTo(1234L);
+    }
+
+    @Test public void shouldWriteUncommittedStateToPreferencesWhenClosingCheckpoint() throws Exception {
+        SyncStateStore failing = new SyncStateStore(Robolectric.application, new FailingHelper());
+        SyncStateStore.Checkpoint checkpoint = failing.beginCheckpoint(100, Long.MAX_VALUE);
+        checkpoint.update(DataType.SMS, 1000L, 1);
+        checkpoint.close();
+
+        assertThat(prefs.getLong(DataType.SMS.maxSyncedPreference, -1)).isEqualTo(1000L);
+    }
+
+    @Test public void shouldMigrateValueFromPreferences() throws Exception {
+        prefs.edit().putLong(DataType.CALLLOG.maxSyncedPreference, 5678L).commit();
+        assertThat(store.contains(DataType.CALLLOG)).isTrue();
+        assertThat(store.getMaxSyncedDate(DataType.CALLLOG)).isEqualTo(5678L);
+    }
+
+    @Test public void shouldCommitCheckpointAfterMaxMessages() throws Exception {
+        SyncStateStore.Checkpoint checkpoint = store.beginCheckpoint(2, Long.MAX_VALUE);
+
+        checkpoint.update(DataType.SMS, 1000L, 1);
+        assertThat(store.getMaxSyncedDate(DataType.SMS)).isEqualTo(DataType.Defaults.MAX_SYNCED_DATE);
+
+        checkpoint.update(DataType.SMS, 2000L, 1);
+        assertThat(store.getMaxSyncedDate(DataType.SMS)).isEqualTo(2000L);
+        // preferences are only updated once the checkpoint is closed
+        assertThat(prefs.contains(DataType.SMS.maxSyncedPreference)).isFalse();
+    }
+
+    @Test public void shouldWritePendingStateAndPreferencesWhenClosingCheckpoint() throws Exception {
+        SyncStateStore.Checkpoint checkpoint = store.beginCheckpoint(100, Long.MAX_VALUE);
+        checkpoint.update(DataType.SMS, 1000L, 1);
+        checkpoint.update(DataType.CALLLOG, 3000L, 1);
+        checkpoint.close();
+
+        assertThat(store.getMaxSyncedDate(DataType.SMS)).isEqualTo(1000L);
+        assertThat(store.getMaxSyncedDate(DataType.CALLLOG)).isEqualTo(3000L);
+        assertThat(prefs.getLong(DataType.SMS.maxSyncedPreference, -1)).isEqualTo(1000L);
+        assertThat(prefs.getLong(DataType.CALLLOG.maxSyncedPreference, -1)).isEqualTo(3000L);
+    }
+
+    @Test public void shouldClearState() throws Exception {
+        store.setMaxSyncedDate(DataType.MMS, 1234L);
+        store.clear();
+        assertThat(store.contains(DataType.MMS)).isFalse();
+        assertThat(store.getMaxSyncedDate(DataType.MMS)).isEqualTo(DataType.Defaults.MAX_SYNCED_DATE);
+    }
+
+    private static class FailingHelper extends SQLiteOpenHelper {
+        FailingHelper() {
+            super(Robolectric.application, "failing.db", null, 1);
+        }
+
+        @Override public void onCreate(SQLiteDatabase db) {
+        }
+
+        @Override public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        }
+
+        @Override public synchronized SQLiteDatabase getWritableDatabase() {
+            throw new SQLiteException("disk full");
+        }
+
+        @Override public synchronized SQLiteDatabase getReadableDatabase() {
+            throw new SQLiteException("disk full");
+        }
+    }
+}
@@ -6,8 +6,10 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mockito;
+import org.robolectric.Robolectric;
 import org.robolectric.RobolectricTestRunner;
 
+import java.util.List;
 import java.util.NoSuchElementException;
 
 import static com.zegoggles.smssync.mail.DataType.*;
@@ -82,6 +84,28 @@ public class BackupCursorsTest {
         verify(mockedCursor2).close();
     }
 
+    @Test public void shouldSplitNonEmptyTypesByFolder() throws Exception {
+        cursors.add(CALLLOG, cursor(2));
+        List<BackupCursors> split = cursors.split(3, Robolectric.application);
+        assertThat(split).hasSize(2);
+        assertThat(split.get(0).getTypes()).containsOnly(SMS, MMS);
+        assertThat(split.get(0).count()).isEqualTo(5);
+        assertThat(split.get(1).getTypes()).containsOnly(CALLLOG);
+    }
+
+    @Test public void shouldKeepTypesOfSameFolderInOrder() throws Exception {
+        BackupCursors part = cursors.split(3, Robolectric.application).get(0);
+        assertThat(part.next().type).isEqualTo(SMS);
+        assertThat(part.next().type).isEqualTo(MMS);
+    }
+
+    @Test public void shouldSplitIntoLimitedNumberOfParts() throws Exception {
+        cursors.add(CALLLOG, cursor(2));
+        List<BackupCursors> split = cursors.split(1, Robolectric.application);
+        assertThat(split).hasSize(1);
+        assertThat(split.get(0).getTypes()).containsOnly(SMS, MMS, CALLLOG);
+    }
+
     @Test(expected = UnsupportedOperationException.class)
     public void shouldNotSupportRemove() throws Exception {
         cursors.remove();
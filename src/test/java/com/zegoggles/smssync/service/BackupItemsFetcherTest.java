@@ -5,6 +5,8 @@ import android.content.Context;
 import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteException;
 import android.net.Uri;
+import com.zegoggles.smssync.Consts;
+import com.zegoggles.smssync.contacts.ContactGroupIds;
 import com.zegoggles.smssync.mail.DataType;
 import org.junit.Before;
 import org.junit.Test;
@@ -17,6 +19,7 @@ import static com.zegoggles.smssync.mail.DataType.*;
 import static org.fest.assertions.api.Assertions.assertThat;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.*;
 import static org.mockito.MockitoAnnotations.initMocks;
 
@@ -52,6 +55,26 @@ public class BackupItemsFetcherTest {
         assertThat(fetcher.getItemsForDataType(SMS, null, -1).getCount()).isEqualTo(0);
     }
 
+    @Test public void shouldQueryWithoutGroupSelectionIfProviderRejectsIt() throws Exception {
+        ContactGroupIds group = new ContactGroupIds();
+        group.addNumber("+4412345");
+        BackupQueryBuilder.Query filtered = new BackupQueryBuilder.Query(Consts.CALLLOG_PROVIDER, null,
+                "date > ? AND (PHONE_NUMBERS_EQUAL(number, '+4412345'))", null, 10);
+        BackupQueryBuilder.Query unfiltered = new BackupQueryBuilder.Query(Consts.CALLLOG_PROVIDER, null,
+                "date > ?", null, 10);
+        when(queryBuilder.buildQueryForDataType(CALLLOG, group, 10)).thenReturn(filtered);
+        when(queryBuilder.buildQueryForDataType(CALLLOG, null, 10)).thenReturn(unfiltered);
+
+        MatrixCursor cursor = new MatrixCursor(new String[] { "_id" });
+        cursor.addRow(new Object[] { 1L });
+        when(resolver.query(any(Uri.class), any(String[].class), eq(filtered.selection), any(String[].class), anyString()))
+                .thenThrow(new SQLiteException("no such function: PHONE_NUMBERS_EQUAL"));
+        when(resolver.query(any(Uri.class), any(String[].class), eq(unfiltered.selection), any(String[].class), anyString()))
+                .thenReturn(cursor);
+
+        assertThat(fetcher.getItemsForDataType(CALLLOG, group, 10).getCount()).isEqualTo(1);
+    }
+
     @Test public void shouldCatchNullPointerExceptions() throws Exception {
         SMS.setBackupEnabled(context, true);
         when(resolver.query(any(Uri.class), any(String[].class), anyString(), any(String[].class), anyString()))
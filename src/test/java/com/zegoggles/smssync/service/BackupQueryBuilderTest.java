@@ -29,7 +29,9 @@ public class BackupQueryBuilderTest {
         BackupQueryBuilder.Query query = builder.buildQueryForDataType(DataType.SMS, null, 200);
 
         assertThat(query.uri).isEqualTo(Uri.parse("content://sms"));
-        assertThat(query.projection).isNull();
+        assertThat(query.projection).isEqualTo(new String[] {
+            "_id", "address", "body", "date", "type", "thread_id", "read", "status", "protocol", "service_center"
+        });
         assertThat(query.selection).isEqualTo("date > ? AND type <> ?");
         assertThat(query.selectionArgs).isEqualTo(new String[] { "-1", "3"} );
         assertThat(query.sortOrder).isEqualTo("date LIMIT 200");
@@ -42,7 +44,9 @@ public class BackupQueryBuilderTest {
         BackupQueryBuilder.Query query = builder.buildQueryForDataType(DataType.SMS, ids, 200);
 
         assertThat(query.uri).isEqualTo(Uri.parse("content://sms"));
-        assertThat(query.projection).isNull();
+        assertThat(query.projection).isEqualTo(new String[] {
+            "_id", "address", "body", "date", "type", "thread_id", "read", "status", "protocol", "service_center"
+        });
         assertThat(query.selection).isEqualTo("date > ? AND type <> ?  AND (type = 2 OR person IN (20))");
         assertThat(query.selectionArgs).isEqualTo(new String[] { "-1", "3"} );
         assertThat(query.sortOrder).isEqualTo("date LIMIT 200");
@@ -52,7 +56,9 @@ public class BackupQueryBuilderTest {
         BackupQueryBuilder.Query query = builder.buildQueryForDataType(DataType.MMS, null, 200);
 
         assertThat(query.uri).isEqualTo(Uri.parse("content://mms"));
-        assertThat(query.projection).isNull();
+        assertThat(query.projection).isEqualTo(new String[] {
+            "_id", "date", "m_type", "msg_box", "thread_id", "read", "m_size"
+        });
         assertThat(query.selection).isEqualTo("date > ? AND m_type <> ?");
         assertThat(query.selectionArgs).isEqualTo(new String[] { "-1", "134"} );
         assertThat(query.sortOrder).isEqualTo("date LIMIT 200");
@@ -66,7 +72,9 @@ public class BackupQueryBuilderTest {
         BackupQueryBuilder.Query query = builder.buildQueryForDataType(DataType.MMS, null, 200);
 
         assertThat(query.uri).isEqualTo(Uri.parse("content://mms"));
-        assertThat(query.projection).isNull();
+        assertThat(query.projection).isEqualTo(new String[] {
+            "_id", "date", "m_type", "msg_box", "thread_id", "read", "m_size"
+        });
         assertThat(query.selection).isEqualTo("date > ? AND m_type <> ?");
         assertThat(query.selectionArgs).isEqualTo(new String[] {
             String.valueOf(nowInSecs), "134"
@@ -84,6 +92,75 @@ public class BackupQueryBuilderTest {
         assertThat(query.sortOrder).isEqualTo("date LIMIT 200");
     }
 
+    @Test public void shouldBuildQueryForMMSIncludingContactGroup() throws Exception {
+        ContactGroupIds ids = new ContactGroupIds();
+        ids.add(1L, 20L);
+        ids.addNumber("+44 7700 900123");
+        ids.addNumber("0176 O'Brien");
+
+        BackupQueryBuilder.Query query = builder.buildQueryForDataType(DataType.MMS, ids, 200);
+
+        assertThat(query.selection).isEqualTo("date > ? AND m_type <> ?  AND _id IN (SELECT msg_id FROM addr WHERE " +
+                "PHONE_NUMBERS_EQUAL(address, '+44 7700 900123') OR PHONE_NUMBERS_EQUAL(address, '0176 O''Brien'))");
+        assertThat(query.selectionArgs).isEqualTo(new String[] { "-1", "134"} );
+    }
+
+    @Test public void shouldBuildQueryForCallLogIncludingContactGroup() throws Exception {
+        ContactGroupIds ids = new ContactGroupIds();
+        ids.add(1L, 20L);
+        ids.addNumber("+44 7700 900123");
+
+        BackupQueryBuilder.Query query = builder.buildQueryForDataType(DataType.CALLLOG, ids, 200);
+
+        assertThat(query.selection).isEqualTo("date > ?  AND (PHONE_NUMBERS_EQUAL(number, '+44 7700 900123'))");
+        assertThat(query.selectionArgs).isEqualTo(new String[] { "-1" } );
+    }
+
+    @Test public void shouldNotSelectAnyCallsForContactGroupWithoutNumbers() throws Exception {
+        ContactGroupIds ids = new ContactGroupIds();
+        ids.add(1L, 20L);
+
+        BackupQueryBuilder.Query query = builder.buildQueryForDataType(DataType.CALLLOG, ids, 200);
+
+        assertThat(query.selection).isEqualTo("date > ?  AND (0)");
+    }
+
+    @Test public void shouldNotFilterCallLogForContactGroupWithTooManyNumbers() throws Exception {
+        ContactGroupIds ids = new ContactGroupIds();
+        ids.add(1L, 20L);
+        for (int i = 0; i <= BackupQueryBuilder.MAX_SELECTION_NUMBERS; i++) {
+            ids.addNumber(String.valueOf(5550000 + i));
+        }
+
+        BackupQueryBuilder.Query query = builder.buildQueryForDataType(DataType.CALLLOG, ids, 200);
+
+        assertThat(query.selection).isEqualTo("date > ?");
+    }
+
+    @Test public void shouldBuildFirstPageQuery() throws Exception {
+        BackupQueryBuilder.Query query = builder.buildQueryForDataType(DataType.SMS, null, -1).page(100, 0, -1);
+
+        assertThat(query.selection).isEqualTo("date > ? AND type <> ?");
+        assertThat(query.selectionArgs).isEqualTo(new String[] { "-1", "3"} );
+        assertThat(query.sortOrder).isEqualTo("date, _id LIMIT 100");
+    }
+
+    @Test public void shouldBuildNextPageQuery() throws Exception {
+        BackupQueryBuilder.Query query = builder.buildQueryForDataType(DataType.SMS, null, -1).page(100, 1234L, 56L);
+
+        assertThat(query.selection).isEqualTo("(date > ? AND type <> ?) AND (date > ? OR (date = ? AND _id > ?))");
+        assertThat(query.selectionArgs).isEqualTo(new String[] { "-1", "3", "1234", "1234", "56"} );
+        assertThat(query.sortOrder).isEqualTo("date, _id LIMIT 100");
+    }
+
+    @Test public void shouldBuildCountQuery() throws Exception {
+        BackupQueryBuilder.Query query = builder.buildQueryForDataType(DataType.CALLLOG, null, 200).count();
+
+        assertThat(query.projection).isEqualTo(new String[] { "_id" });
+        assertThat(query.selection).isEqualTo("date > ?");
+        assertThat(query.sortOrder).isEqualTo("date LIMIT 200");
+    }
+
     @Test public void shouldBuildMostRecentQueryForSMS() throws Exception {
         BackupQueryBuilder.Query query = builder.buildMostRecentQueryForDataType(DataType.SMS);
         assertThat(query.uri).isEqualTo(Uri.parse("content://sms"));
@@ -1,10 +1,13 @@
 package com.zegoggles.smssync.service;
 
 
+import android.content.ContentResolver;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.MatrixCursor;
+import android.preference.PreferenceManager;
 import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.MessagingException;
 import com.fsck.k9.mail.internet.MimeMessage;
 import com.fsck.k9.mail.store.XOAuth2AuthenticationFailedException;
 import com.zegoggles.smssync.auth.TokenRefreshException;
@@ -13,16 +16,22 @@ import com.zegoggles.smssync.contacts.ContactAccessor;
 import com.zegoggles.smssync.contacts.ContactGroup;
 import com.zegoggles.smssync.contacts.ContactGroupIds;
 import com.zegoggles.smssync.mail.BackupImapStore;
+import com.zegoggles.smssync.mail.BackupRow;
 import com.zegoggles.smssync.mail.ConversionResult;
 import com.zegoggles.smssync.mail.DataType;
+import com.zegoggles.smssync.mail.Headers;
 import com.zegoggles.smssync.mail.MessageConverter;
+import com.zegoggles.smssync.mail.TransferStats;
 import com.zegoggles.smssync.preferences.AuthPreferences;
 import com.zegoggles.smssync.preferences.Preferences;
 import com.zegoggles.smssync.service.state.BackupState;
 import com.zegoggles.smssync.service.state.SmsSyncState;
+import org.hamcrest.Matcher;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.ArgumentMatcher;
 import org.mockito.Mock;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
@@ -30,15 +39,19 @@ import org.robolectric.Robolectric;
 import org.robolectric.RobolectricTestRunner;
 
 import java.util.EnumSet;
-import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import static com.zegoggles.smssync.mail.DataType.CALLLOG;
 import static com.zegoggles.smssync.mail.DataType.MMS;
 import static com.zegoggles.smssync.mail.DataType.SMS;
 import static com.zegoggles.smssync.service.BackupItemsFetcher.emptyCursor;
 import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.api.Assertions.fail;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.argThat;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.notNull;
 import static org.mockito.Mockito.anyListOf;
@@ -73,6 +86,7 @@ public class BackupTaskTest {
         config = getBackupConfig(EnumSet.of(SMS));
         when(service.getApplicationContext()).thenReturn(Robolectric.application);
         when(service.getState()).thenReturn(state);
+        when(store.getTransferStats()).thenReturn(new TransferStats());
 
         task = new BackupTask(service, fetcher, converter, syncer, authPreferences, preferences, accessor, tokenRefresher);
         context = Robolectric.application;
@@ -96,7 +110,7 @@ public class BackupTaskTest {
 
     @Test public void shouldVerifyStoreSettings() throws Exception {
         mockFetch(SMS, 1);
-        when(converter.convertMessages(any(Cursor.class), eq(SMS))).thenReturn(result(SMS, 1));
+        when(converter.convertMessages(any(BackupRow.class), eq(SMS))).thenReturn(result(SMS, 1));
         when(store.getFolder(SMS)).thenReturn(folder);
         task.doInBackground(config);
         verify(store).checkSettings();
@@ -105,7 +119,7 @@ public class BackupTaskTest {
     @Test public void shouldBackupItems() throws Exception {
         mockFetch(SMS, 1);
 
-        when(converter.convertMessages(any(Cursor.class), eq(SMS))).thenReturn(result(SMS, 1));
+        when(converter.convertMessages(any(BackupRow.class), eq(SMS))).thenReturn(result(SMS, 1));
         when(store.getFolder(notNull(DataType.class))).thenReturn(folder);
 
         BackupState finalState = task.doInBackground(config);
@@ -127,7 +141,7 @@ public class BackupTaskTest {
         mockFetch(SMS, 1);
         mockFetch(MMS, 2);
         when(store.getFolder(notNull(DataType.class))).thenReturn(folder);
-        when(converter.convertMessages(any(Cursor.class), any(DataType.class))).thenReturn(result(SMS, 1));
+        when(converter.convertMessages(any(BackupRow.class), any(DataType.class))).thenReturn(result(SMS, 1));
 
         BackupState finalState = task.doInBackground(getBackupConfig(EnumSet.of(SMS, MMS)));
 
@@ -136,10 +150,128 @@ public class BackupTaskTest {
         verify(folder, times(3)).appendMessages(anyListOf(Message.class));
     }
 
+    @Test @SuppressWarnings("unchecked")
+    public void shouldPrefetchMmsParts() throws Exception {
+        mockFetch(SMS, 1);
+        mockFetch(MMS, 2);
+        when(store.getFolder(notNull(DataType.class))).thenReturn(folder);
+        when(converter.convertMessages(any(BackupRow.class), any(DataType.class))).thenReturn(result(SMS, 1));
+
+        task.doInBackground(getBackupConfig(EnumSet.of(SMS, MMS)));
+
+        ArgumentCaptor<List> rows = ArgumentCaptor.forClass(List.class);
+        verify(converter, times(1)).prefetchMms(rows.capture());
+        assertThat(rows.getValue()).hasSize(2);
+    }
+
+    @Test public void shouldBackupItemsInBatches() throws Exception {
+        mockFetch(SMS, 3);
+        when(preferences.getBackupBatchSize()).thenReturn(10);
+        when(store.getFolder(notNull(DataType.class))).thenReturn(folder);
+        when(converter.convertMessages(any(BackupRow.class), eq(SMS))).thenReturn(result(SMS, 1));
+
+        BackupState finalState = task.doInBackground(config);
+
+        verify(folder, times(1)).appendMessages(argThat(hasSize(3)));
+        assertThat(finalState.currentSyncedItems).isEqualTo(3);
+    }
+
+    @Test public void shouldFlushBatchWhenFull() throws Exception {
+        mockFetch(SMS, 5);
+        when(preferences.getBackupBatchSize()).thenReturn(2);
+        when(store.getFolder(notNull(DataType.class))).thenReturn(folder);
+        when(converter.convertMessages(any(BackupRow.class), eq(SMS))).thenReturn(result(SMS, 1));
+
+        BackupState finalState = task.doInBackground(config);
+
+        verify(folder, times(2)).appendMessages(argThat(hasSize(2)));
+        verify(folder, times(1)).appendMessages(argThat(hasSize(1)));
+        assertThat(finalState.currentSyncedItems).isEqualTo(5);
+    }
+
+    @Test public void shouldKeepMessageOrderWithMultipleConverterThreads() throws Exception {
+        mockFetch(SMS, 20);
+        when(preferences.getBackupBatchSize()).thenReturn(100);
+        when(preferences.getBackupConverterThreads()).thenReturn(4);
+        when(store.getFolder(notNull(DataType.class))).thenReturn(folder);
+        when(converter.convertMessages(any(BackupRow.class), eq(SMS))).then(new Answer<Object>() {
+            @Override public Object answer(InvocationOnMock invocation) throws Throwable {
+                long date = ((BackupRow) invocation.getArguments()[0]).date;
+                // make later rows finish first
+                Thread.sleep(20 - date);
+                return result(SMS, 1, date);
+            }
+        });
+
+        BackupState finalState = task.doInBackground(config);
+
+        verify(folder).appendMessages(argThat(isSortedByDate(20)));
+        assertThat(finalState.currentSyncedItems).isEqualTo(20);
+    }
+
+    @Test public void shouldUploadDataTypesConcurrently() throws Exception {
+        mockFetch(SMS, 1);
+        mockFetch(CALLLOG, 1);
+        when(preferences.getBackupMaxConnections()).thenReturn(3);
+        BackupImapStore.BackupFolder callLogFolder = mock(BackupImapStore.BackupFolder.class);
+        when(store.getFolder(SMS)).thenReturn(folder);
+        when(store.getFolder(CALLLOG)).thenReturn(callLogFolder);
+        when(converter.convertMessages(any(BackupRow.class), eq(SMS))).thenReturn(result(SMS, 1, 1000L));
+        when(converter.convertMessages(any(BackupRow.class), eq(CALLLOG))).thenReturn(result(CALLLOG, 1, 2000L));
+
+        final CountDownLatch callLogAppended = new CountDownLatch(1);
+        when(callLogFolder.appendMessages(anyListOf(Message.class))).then(new Answer<Object>() {
+            @Override public Object answer(InvocationOnMock invocation) throws Throwable {
+                callLogAppended.countDown();
+                return null;
+            }
+        });
+        when(folder.appendMessages(anyListOf(Message.class))).then(new Answer<Object>() {
+            @Override public Object answer(InvocationOnMock invocation) throws Throwable {
+                // only succeeds if the call log is uploaded at the same time
+                if (!callLogAppended.await(5, TimeUnit.SECONDS)) {
+                    throw new MessagingException("call log not uploaded concurrently");
+                }
+                return null;
+            }
+        });
+
+        BackupState finalState = task.doInBackground(getBackupConfig(EnumSet.of(SMS, CALLLOG)));
+
+        assertThat(finalState.currentSyncedItems).isEqualTo(2);
+        assertThat(SMS.getMaxSyncedDate(context)).isEqualTo(1000L);
+        assertThat(CALLLOG.getMaxSyncedDate(context)).isEqualTo(2000L);
+    }
+
+    @Test public void shouldOnlyUpdateMaxSyncedDateAfterBatchIsAccepted() throws Exception {
+        mockFetch(SMS, 2);
+        when(preferences.getBackupBatchSize()).thenReturn(10);
+        when(store.getFolder(notNull(DataType.class))).thenReturn(folder);
+        when(converter.convertMessages(any(BackupRow.class), eq(SMS))).thenReturn(result(SMS, 1, 1234L));
+        when(folder.appendMessages(anyListOf(Message.class))).thenThrow(new MessagingException("failed"));
+
+        task.doInBackground(config);
+
+        assertThat(DataType.SMS.getMaxSyncedDate(context)).isEqualTo(-1);
+    }
+
+    @Test public void shouldStopBackupIfConversionFails() throws Exception {
+        mockFetch(SMS, 3);
+        when(store.getFolder(notNull(DataType.class))).thenReturn(folder);
+        MessagingException exception = new MessagingException("conversion failed");
+        when(converter.convertMessages(any(BackupRow.class), eq(SMS))).thenThrow(exception);
+
+        task.doInBackground(config);
+
+        verify(service).transition(SmsSyncState.ERROR, exception);
+        verify(folder, never()).appendMessages(anyListOf(Message.class));
+        verify(service).releaseBackupImapStore(store, false);
+    }
+
     @Test public void shouldCreateFoldersLazilyOnlyForNeededTypes() throws Exception {
         mockFetch(SMS, 1);
 
-        when(converter.convertMessages(any(Cursor.class), eq(SMS))).thenReturn(result(SMS, 1));
+        when(converter.convertMessages(any(BackupRow.class), eq(SMS))).thenReturn(result(SMS, 1));
         when(store.getFolder(notNull(DataType.class))).thenReturn(folder);
 
         task.doInBackground(config);
@@ -149,14 +281,15 @@ public class BackupTaskTest {
         verify(store, never()).getFolder(CALLLOG);
     }
 
-    @Test public void shouldCloseImapFolderAfterBackup() throws Exception {
+    @Test public void shouldReleaseImapStoreForReuseAfterBackup() throws Exception {
         mockFetch(SMS, 1);
-        when(converter.convertMessages(any(Cursor.class), eq(SMS))).thenReturn(result(SMS, 1));
+        when(converter.convertMessages(any(BackupRow.class), eq(SMS))).thenReturn(result(SMS, 1));
         when(store.getFolder(notNull(DataType.class))).thenReturn(folder);
 
         task.doInBackground(config);
 
-        verify(store).closeFolders();
+        verify(service).releaseBackupImapStore(store, true);
+        verify(store, never()).closeFolders();
     }
 
     @Test public void shouldCreateNoFoldersIfNoItemsToBackup() throws Exception {
@@ -175,14 +308,31 @@ public class BackupTaskTest {
         assertThat(DataType.SMS.getMaxSyncedDate(context)).isEqualTo(-23);
         assertThat(DataType.MMS.getMaxSyncedDate(context)).isEqualTo(-1);
         assertThat(DataType.CALLLOG.getMaxSyncedDate(context)).isEqualTo(-1);
+        assertThat(PreferenceManager.getDefaultSharedPreferences(context)
+                .getLong(DataType.SMS.maxSyncedPreference, -1)).isEqualTo(-23);
 
         assertThat(finalState).isNotNull();
         assertThat(finalState.isFinished()).isTrue();
+        verify(service).releaseBackupImapStore(store, true);
+    }
+
+    @Test public void shouldReleaseImapStoreIfFetchingFails() throws Exception {
+        RuntimeException exception = new IllegalStateException("query failed");
+        when(accessor.getGroupContactIds(any(ContentResolver.class), any(ContactGroup.class))).thenThrow(exception);
+
+        try {
+            task.doInBackground(config);
+            fail("expected exception");
+        } catch (IllegalStateException e) {
+            assertThat(e).isSameAs(exception);
+        }
+        verify(service).releaseBackupImapStore(store, false);
+        verify(service).releaseLocks();
     }
 
     @Test public void shouldHandleAuthErrorAndTokenCannotBeRefreshed() throws Exception {
         mockFetch(SMS, 1);
-        when(converter.convertMessages(any(Cursor.class), notNull(DataType.class))).thenReturn(result(SMS, 1));
+        when(converter.convertMessages(any(BackupRow.class), notNull(DataType.class))).thenReturn(result(SMS, 1));
 
         XOAuth2AuthenticationFailedException exception = mock(XOAuth2AuthenticationFailedException.class);
         when(exception.getStatus()).thenReturn(400);
@@ -203,7 +353,7 @@ public class BackupTaskTest {
 
     @Test public void shouldHandleAuthErrorAndTokenCouldBeRefreshed() throws Exception {
         mockFetch(SMS, 1);
-        when(converter.convertMessages(any(Cursor.class), notNull(DataType.class))).thenReturn(result(SMS, 1));
+        when(converter.convertMessages(any(BackupRow.class), notNull(DataType.class))).thenReturn(result(SMS, 1));
 
         XOAuth2AuthenticationFailedException exception = mock(XOAuth2AuthenticationFailedException.class);
         when(exception.getStatus()).thenReturn(400);
@@ -228,11 +378,44 @@ public class BackupTaskTest {
     private ConversionResult result(DataType type, int n) {
         ConversionResult result = new ConversionResult(type);
         for (int i = 0; i<n; i++) {
-            result.add(new MimeMessage(), new HashMap<String, String>());
+            result.add(new MimeMessage(), new BackupRow());
         }
         return result;
     }
 
+    private ConversionResult result(DataType type, int n, long date) throws MessagingException {
+        ConversionResult result = new ConversionResult(type);
+        for (int i = 0; i<n; i++) {
+            MimeMessage message = new MimeMessage();
+            message.setHeader(Headers.DATE, String.valueOf(date));
+            result.add(message, new BackupRow());
+        }
+        return result;
+    }
+
+    private static Matcher<List<Message>> hasSize(final int size) {
+        return new ArgumentMatcher<List<Message>>() {
+            @Override public boolean matches(Object argument) {
+                return argument instanceof List && ((List<?>) argument).size() == size;
+            }
+        };
+    }
+
+    private static Matcher<List<Message>> isSortedByDate(final int size) {
+        return new ArgumentMatcher<List<Message>>() {
+            @Override public boolean matches(Object argument) {
+                List<?> messages = (List<?>) argument;
+                if (messages.size() != size) return false;
+                for (int i = 0; i < size; i++) {
+                    if (!String.valueOf(i).equals(Headers.get((Message) messages.get(i), Headers.DATE))) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        };
+    }
+
     private void mockFetch(DataType type, final int n) {
         when(fetcher.getItemsForDataType(eq(type), any(ContactGroupIds.class), anyInt())).then(new Answer<Object>() {
             @Override public Object answer(InvocationOnMock invocationOnMock) throws Throwable {
@@ -242,10 +425,10 @@ public class BackupTaskTest {
     }
 
     private Cursor testMessages(int n) {
-        MatrixCursor cursor = new MatrixCursor(new String[] {"_id"} );
+        MatrixCursor cursor = new MatrixCursor(new String[] {"_id", "date"} );
         for (int i = 0; i < n; i++) {
             cursor.addRow(new Object[]{
-                    "12345"
+                    12345L, (long) i
             });
         }
         return cursor;
@@ -0,0 +1,95 @@
+package com.zegoggles.smssync.service;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.provider.CallLog;
+import com.zegoggles.smssync.Consts;
+import com.zegoggles.smssync.SmsConsts;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+@RunWith(RobolectricTestRunner.class)
+public class DuplicateIndexTest {
+    @Mock ContentResolver resolver;
+    DuplicateIndex index;
+
+    @Before public void before() {
+        initMocks(this);
+        index = DuplicateIndex.sms();
+    }
+
+    @Test public void shouldLoadRowsFromProvider() throws Exception {
+        MatrixCursor cursor = new MatrixCursor(new String[] { SmsConsts.DATE, SmsConsts.TYPE, SmsConsts.ADDRESS });
+        cursor.addRow(new Object[] { 1000L, 1, "1234" });
+        cursor.addRow(new Object[] { 2000L, 2, null });
+        when(resolver.query(eq(Consts.SMS_PROVIDER), any(String[].class), any(String.class),
+                any(String[].class), any(String.class))).thenReturn(cursor);
+
+        assertThat(index.load(resolver)).isTrue();
+        assertThat(index.isLoaded()).isTrue();
+        assertThat(index.size()).isEqualTo(2);
+
+        assertThat(index.contains(sms("1000", "1", "1234"))).isTrue();
+        assertThat(index.contains(sms("2000", "2", null))).isTrue();
+        assertThat(index.contains(sms("1000", "2", "1234"))).isFalse();
+        assertThat(index.contains(sms("1000", "1", "12345"))).isFalse();
+        assertThat(index.contains(sms("1001", "1", "1234"))).isFalse();
+    }
+
+    @Test public void shouldNotBeLoadedWithoutCursor() throws Exception {
+        assertThat(index.load(resolver)).isFalse();
+        assertThat(index.isLoaded()).isFalse();
+    }
+
+    @Test public void shouldAddRows() throws Exception {
+        assertThat(index.add(sms("1000", "1", "1234"))).isTrue();
+        assertThat(index.add(sms("1000", "1", "1234"))).isFalse();
+        assertThat(index.contains(sms("1000", "1", "1234"))).isTrue();
+        assertThat(index.size()).isEqualTo(1);
+    }
+
+    @Test public void shouldGrow() throws Exception {
+        for (int i = 0; i < 10000; i++) {
+            assertThat(index.add(sms(String.valueOf(i), "1", "1234"))).isTrue();
+        }
+        assertThat(index.size()).isEqualTo(10000);
+        for (int i = 0; i < 10000; i++) {
+            assertThat(index.contains(sms(String.valueOf(i), "1", "1234"))).isTrue();
+        }
+        assertThat(index.contains(sms("10000", "1", "1234"))).isFalse();
+    }
+
+    @Test public void shouldIdentifyCallLogEntriesByDuration() throws Exception {
+        DuplicateIndex callLog = DuplicateIndex.callLog();
+        ContentValues call = new ContentValues();
+        call.put(CallLog.Calls.DATE, "1000");
+        call.put(CallLog.Calls.TYPE, 1);
+        call.put(CallLog.Calls.DURATION, 60L);
+        call.put(CallLog.Calls.NUMBER, "1234");
+        callLog.add(call);
+
+        ContentValues other = new ContentValues(call);
+        other.put(CallLog.Calls.DURATION, 61L);
+        assertThat(callLog.contains(call)).isTrue();
+        assertThat(callLog.contains(other)).isFalse();
+    }
+
+    private static ContentValues sms(String date, String type, String address) {
+        ContentValues values = new ContentValues();
+        values.put(SmsConsts.DATE, date);
+        values.put(SmsConsts.TYPE, type);
+        values.put(SmsConsts.ADDRESS, address);
+        return values;
+    }
+}
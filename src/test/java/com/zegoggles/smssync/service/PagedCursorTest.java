@@ -0,0 +1,96 @@
+package com.zegoggles.smssync.service;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class PagedCursorTest {
+    List<BackupQueryBuilder.Query> queries;
+    List<Cursor> pages;
+    PagedCursor.PageLoader loader;
+    BackupQueryBuilder.Query query;
+
+    @Before public void before() {
+        queries = new ArrayList<BackupQueryBuilder.Query>();
+        pages = new ArrayList<Cursor>();
+        loader = new PagedCursor.PageLoader() {
+            @Override public @NotNull Cursor load(@NotNull BackupQueryBuilder.Query query) {
+                queries.add(query);
+                return pages.remove(0);
+            }
+        };
+        query = new BackupQueryBuilder.Query(null, null, "date > ?", new String[] { "-1" }, -1);
+    }
+
+    @Test public void shouldIterateOverAllPages() throws Exception {
+        Cursor firstPage = page(1, 2);
+        pages.add(page(3, 4));
+        pages.add(page(5));
+
+        PagedCursor cursor = new PagedCursor(loader, query, firstPage, 5, 2);
+        assertThat(cursor.getCount()).isEqualTo(5);
+        assertThat(cursor.getColumnNames()).isEqualTo(new String[] { "_id", "date" });
+
+        int expectedId = 1;
+        while (cursor.moveToNext()) {
+            assertThat(cursor.getLong(0)).isEqualTo(expectedId++);
+        }
+        assertThat(expectedId).isEqualTo(6);
+        assertThat(cursor.isAfterLast()).isTrue();
+        cursor.close();
+    }
+
+    @Test public void shouldContinueAfterLastRowOfPreviousPage() throws Exception {
+        Cursor firstPage = page(1, 2);
+        pages.add(page(3));
+
+        PagedCursor cursor = new PagedCursor(loader, query, firstPage, 3, 2);
+        cursor.moveToPosition(2);
+
+        assertThat(queries).hasSize(1);
+        assertThat(queries.get(0).selectionArgs).isEqualTo(new String[] { "-1", "2000", "2000", "2" });
+        assertThat(queries.get(0).sortOrder).isEqualTo("date, _id LIMIT 2");
+    }
+
+    @Test public void shouldCloseFinishedPages() throws Exception {
+        Cursor firstPage = page(1);
+        Cursor secondPage = page(2);
+        pages.add(secondPage);
+
+        PagedCursor cursor = new PagedCursor(loader, query, firstPage, 2, 1);
+        cursor.moveToFirst();
+        cursor.moveToNext();
+        assertThat(firstPage.isClosed()).isTrue();
+        assertThat(secondPage.isClosed()).isFalse();
+
+        cursor.close();
+        assertThat(secondPage.isClosed()).isTrue();
+    }
+
+    @Test public void shouldStopIfRowsDisappear() throws Exception {
+        Cursor firstPage = page(1);
+        pages.add(page());
+
+        PagedCursor cursor = new PagedCursor(loader, query, firstPage, 2, 1);
+        assertThat(cursor.moveToFirst()).isTrue();
+        assertThat(cursor.moveToNext()).isFalse();
+    }
+
+    private static Cursor page(long... ids) {
+        MatrixCursor cursor = new MatrixCursor(new String[] { "_id", "date" });
+        for (long id : ids) {
+            cursor.addRow(new Object[] { id, id * 1000 });
+        }
+        return cursor;
+    }
+}
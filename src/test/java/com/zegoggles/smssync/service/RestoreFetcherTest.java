@@ -0,0 +1,173 @@
+package com.zegoggles.smssync.service;
+
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.store.imap.ImapStore;
+import com.zegoggles.smssync.mail.BackupImapStore;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.AdditionalAnswers;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+@RunWith(RobolectricTestRunner.class)
+public class RestoreFetcherTest {
+    @Mock BackupImapStore.BackupFolder folder;
+    @Mock BackupImapStore.BackupFolder otherFolder;
+    @Mock SmsRestoreService service;
+
+    @Before public void before() throws Exception {
+        initMocks(this);
+        when(folder.fetchForRestore(anyListOf(Message.class))).thenAnswer(AdditionalAnswers.<List<Message>>returnsFirstArg());
+        when(otherFolder.fetchForRestore(anyListOf(Message.class))).thenAnswer(AdditionalAnswers.<List<Message>>returnsFirstArg());
+    }
+
+    @Test public void shouldFetchMessagesInWindows() throws Exception {
+        List<Message> messages = messages(folder, 5);
+        List<Message> copy = new ArrayList<Message>(messages);
+
+        List<RestoreFetcher.Window> windows = fetchAll(new RestoreFetcher(messages, service, 2, 1));
+
+        assertThat(windows).hasSize(3);
+        assertThat(windows.get(0).messages).isEqualTo(copy.subList(0, 2));
+        assertThat(windows.get(1).messages).isEqualTo(copy.subList(2, 4));
+        assertThat(windows.get(2).messages).isEqualTo(copy.subList(4, 5));
+        for (RestoreFetcher.Window window : windows) {
+            assertThat(window.fetched).isTrue();
+        }
+        verify(folder, times(3)).fetchForRestore(anyListOf(Message.class));
+        verify(folder).fetchForRestore(copy.subList(0, 2));
+    }
+
+    @Test public void shouldHandOutMessagesReturnedByFolder() throws Exception {
+        List<Message> fetched = messages(folder, 2);
+        when(folder.fetchForRestore(anyListOf(Message.class))).thenReturn(fetched);
+
+        List<RestoreFetcher.Window> windows = fetchAll(new RestoreFetcher(messages(folder, 2), service, 2, 1));
+
+        assertThat(windows).hasSize(1);
+        assertThat(windows.get(0).messages).isSameAs(fetched);
+    }
+
+    @Test public void shouldKeepMessagesUntilWindowIsReleased() throws Exception {
+        List<Message> messages = messages(folder, 3);
+        RestoreFetcher fetcher = new RestoreFetcher(messages, service, 2, 1);
+
+        List<RestoreFetcher.Window> windows = fetchAll(fetcher);
+
+        assertThat(messages).doesNotContainNull();
+        fetcher.release(windows.get(1));
+        assertThat(messages.get(0)).isNotNull();
+        assertThat(messages.get(1)).isNotNull();
+        assertThat(messages.get(2)).isNull();
+    }
+
+    @Test public void shouldNotMixFoldersInOneWindow() throws Exception {
+        List<Message> messages = messages(folder, 2);
+        messages.addAll(messages(otherFolder, 2));
+
+        List<RestoreFetcher.Window> windows = fetchAll(new RestoreFetcher(messages, service, 3, 2));
+
+        assertThat(windows).hasSize(2);
+        assertThat(windows.get(0).messages).hasSize(2);
+        assertThat(windows.get(1).messages).hasSize(2);
+        verify(folder, times(1)).fetchForRestore(anyListOf(Message.class));
+        verify(otherFolder, times(1)).fetchForRestore(anyListOf(Message.class));
+    }
+
+    @Test public void shouldMarkWindowAsNotFetchedOnError() throws Exception {
+        when(folder.fetchForRestore(anyListOf(Message.class))).thenThrow(new MessagingException("failed"));
+
+        List<RestoreFetcher.Window> windows = fetchAll(new RestoreFetcher(messages(folder, 3), service, 2, 1));
+
+        assertThat(windows).hasSize(2);
+        assertThat(windows.get(0).fetched).isFalse();
+        assertThat(windows.get(1).fetched).isFalse();
+    }
+
+    @Test public void shouldPassCachedBodiesAfterFetching() throws Exception {
+        File[] bodies = new File[] { new File("body1"), new File("body2") };
+        when(service.getCachedBodies()).thenReturn(bodies);
+
+        List<RestoreFetcher.Window> windows = fetchAll(new RestoreFetcher(messages(folder, 1), service, 2, 1));
+
+        assertThat(windows.get(0).cachedBodies).isSameAs(bodies);
+    }
+
+    @Test public void shouldNotReturnWindowsWhenStopped() throws Exception {
+        RestoreFetcher fetcher = new RestoreFetcher(messages(folder, 10), service, 1, 1);
+        fetcher.start();
+        fetcher.stop();
+
+        assertThat(fetcher.next()).isNull();
+    }
+
+    @Test public void shouldWaitForCommandInProgressWhenStopped() throws Exception {
+        final CountDownLatch fetching = new CountDownLatch(1);
+        final AtomicBoolean finished = new AtomicBoolean();
+        when(folder.fetchForRestore(anyListOf(Message.class))).thenAnswer(new Answer<List<Message>>() {
+            @Override public List<Message> answer(InvocationOnMock invocation) throws Throwable {
+                fetching.countDown();
+                Thread.sleep(200);
+                finished.set(true);
+                return Collections.emptyList();
+            }
+        });
+        RestoreFetcher fetcher = new RestoreFetcher(messages(folder, 10), service, 1, 1);
+        fetcher.start();
+        assertThat(fetching.await(5, TimeUnit.SECONDS)).isTrue();
+
+        assertThat(fetcher.stop()).isTrue();
+        assertThat(finished.get()).isTrue();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldPropagateUnexpectedFailures() throws Exception {
+        when(folder.fetchForRestore(anyListOf(Message.class))).thenThrow(new IllegalStateException());
+
+        fetchAll(new RestoreFetcher(messages(folder, 1), service, 1, 1));
+    }
+
+    private static List<RestoreFetcher.Window> fetchAll(RestoreFetcher fetcher) {
+        List<RestoreFetcher.Window> windows = new ArrayList<RestoreFetcher.Window>();
+        fetcher.start();
+        try {
+            RestoreFetcher.Window window;
+            while ((window = fetcher.next()) != null) {
+                windows.add(window);
+            }
+        } finally {
+            fetcher.stop();
+        }
+        return windows;
+    }
+
+    private static List<Message> messages(BackupImapStore.BackupFolder folder, int count) {
+        List<Message> messages = new ArrayList<Message>();
+        for (int i = 0; i < count; i++) {
+            ImapStore.ImapMessage message = mock(ImapStore.ImapMessage.class);
+            when(message.getFolder()).thenReturn(folder);
+            messages.add(message);
+        }
+        return messages;
+    }
+}
@@ -1,10 +1,16 @@
 package com.zegoggles.smssync.service;
 
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.MatrixCursor;
 import android.net.Uri;
+import android.preference.PreferenceManager;
+import com.fsck.k9.mail.Message;
 import com.fsck.k9.mail.MessagingException;
 import com.fsck.k9.mail.store.imap.ImapStore;
 import com.zegoggles.smssync.Consts;
@@ -13,23 +19,34 @@ import com.zegoggles.smssync.auth.TokenRefresher;
 import com.zegoggles.smssync.mail.BackupImapStore;
 import com.zegoggles.smssync.mail.DataType;
 import com.zegoggles.smssync.mail.MessageConverter;
+import com.zegoggles.smssync.mail.TransferStats;
 import com.zegoggles.smssync.service.state.RestoreState;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.AdditionalAnswers;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.robolectric.Robolectric;
 import org.robolectric.RobolectricTestRunner;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 
 import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.AdditionalMatchers.aryEq;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyBoolean;
 import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
@@ -50,11 +67,13 @@ public class RestoreTaskTest {
     @Before
     public void before() throws MessagingException {
         initMocks(this);
-        config = new RestoreConfig(store, 0, true, false, false, -1, 0);
+        config = new RestoreConfig(store, 0, true, false, false, -1, 0, 2);
         when(service.getApplicationContext()).thenReturn(Robolectric.application);
         when(service.getState()).thenReturn(state);
 
         when(store.getFolder(any(DataType.class))).thenReturn(folder);
+        when(store.getTransferStats()).thenReturn(new TransferStats());
+        when(folder.fetchForRestore(anyListOf(Message.class))).thenAnswer(AdditionalAnswers.<List<Message>>returnsFirstArg());
 
         task = new RestoreTask(service, converter, resolver, tokenRefresher);
         context = Robolectric.application;
@@ -79,28 +98,160 @@ public class RestoreTaskTest {
     @Test
     public void shouldRestoreItems() throws Exception {
         Date now = new Date();
-        List<ImapStore.ImapMessage> messages = new ArrayList<ImapStore.ImapMessage>();
-        ContentValues values = new ContentValues();
-        values.put(SmsConsts.TYPE, SmsConsts.MESSAGE_TYPE_INBOX);
-        values.put(SmsConsts.DATE, now.getTime());
+        ContentValues values = smsValues(now.getTime());
+        mockMessages(values);
 
-        ImapStore.ImapMessage mockMessage = mock(ImapStore.ImapMessage.class);
-        when(mockMessage.getFolder()).thenReturn(folder);
-        when(converter.getDataType(mockMessage)).thenReturn(DataType.SMS);
-        when(converter.messageToContentValues(mockMessage)).thenReturn(values);
+        when(resolver.applyBatch(eq("sms"), any(ArrayList.class))).thenReturn(new ContentProviderResult[] {
+                new ContentProviderResult(Uri.parse("content://sms/123"))
+        });
+        task.doInBackground(config);
 
-        messages.add(mockMessage);
+        ArrayList<ContentProviderOperation> operations = captureBatch(1).get(0);
+        assertThat(operations).hasSize(1);
+        assertThat(operations.get(0).getUri()).isEqualTo(Consts.SMS_PROVIDER);
+        verify(resolver, never()).insert(any(Uri.class), any(ContentValues.class));
+        verify(resolver).delete(Uri.parse("content://sms/conversations/-1"), null, null);
 
-        when(folder.getMessages(anyInt(), anyBoolean(), any(Date.class))).thenReturn(messages);
+        assertThat(DataType.SMS.getMaxSyncedDate(context)).isEqualTo(now.getTime());
+        assertThat(PreferenceManager.getDefaultSharedPreferences(context)
+                .getLong(DataType.SMS.maxSyncedPreference, -1)).isEqualTo(now.getTime());
+        assertThat(task.getSmsIds()).containsExactly("123");
+
+        verify(store).closeFolders();
+    }
+
+    @Test
+    public void shouldInsertInBatchesOfConfiguredSize() throws Exception {
+        mockMessages(smsValues(1000), smsValues(2000), smsValues(3000));
+
+        when(resolver.applyBatch(eq("sms"), any(ArrayList.class))).thenReturn(
+                new ContentProviderResult[] {
+                    new ContentProviderResult(Uri.parse("content://sms/1")),
+                    new ContentProviderResult(Uri.parse("content://sms/2"))
+                },
+                new ContentProviderResult[] {
+                    new ContentProviderResult(Uri.parse("content://sms/3"))
+                });
+        task.doInBackground(config);
+
+        List<ArrayList<ContentProviderOperation>> batches = captureBatch(2);
+        assertThat(batches.get(0)).hasSize(2);
+        assertThat(batches.get(1)).hasSize(1);
+        assertThat(task.getSmsIds()).containsOnly("1", "2", "3");
+        assertThat(DataType.SMS.getMaxSyncedDate(context)).isEqualTo(3000);
+    }
+
+    @Test
+    public void shouldNotRestoreDuplicatesWithinBatch() throws Exception {
+        mockMessages(smsValues(1000), smsValues(1000));
+
+        when(resolver.applyBatch(eq("sms"), any(ArrayList.class))).thenReturn(new ContentProviderResult[] {
+                new ContentProviderResult(Uri.parse("content://sms/1"))
+        });
+        task.doInBackground(config);
+
+        assertThat(captureBatch(1).get(0)).hasSize(1);
+        assertThat(task.getSmsIds()).containsExactly("1");
+    }
+
+    @Test
+    public void shouldInsertSingleRowsIfBatchFails() throws Exception {
+        ContentValues values = smsValues(1000);
+        mockMessages(values);
+
+        when(resolver.applyBatch(anyString(), any(ArrayList.class))).thenThrow(new OperationApplicationException());
         when(resolver.insert(Consts.SMS_PROVIDER, values)).thenReturn(Uri.parse("content://sms/123"));
         task.doInBackground(config);
 
         verify(resolver).insert(Consts.SMS_PROVIDER, values);
-        verify(resolver).delete(Uri.parse("content://sms/conversations/-1"), null, null);
-
-        assertThat(DataType.SMS.getMaxSyncedDate(context)).isEqualTo(now.getTime());
         assertThat(task.getSmsIds()).containsExactly("123");
+        assertThat(DataType.SMS.getMaxSyncedDate(context)).isEqualTo(1000);
+    }
+
+    @Test
+    public void shouldCountRowsAppliedBeforeBatchFailedAsRestored() throws Exception {
+        ContentValues applied = smsValues(1000);
+        ContentValues notApplied = smsValues(2000);
+        mockMessages(applied, notApplied);
+
+        when(resolver.query(eq(Consts.SMS_PROVIDER), any(String[].class), (String) isNull(),
+                any(String[].class), any(String.class)))
+                .thenReturn(new MatrixCursor(new String[] { SmsConsts.DATE, SmsConsts.TYPE, SmsConsts.ADDRESS }));
+        MatrixCursor found = new MatrixCursor(new String[] { "_id" });
+        found.addRow(new Object[] { 7L });
+        when(resolver.query(eq(Consts.SMS_PROVIDER), any(String[].class), anyString(),
+                aryEq(new String[] { "1000", null, String.valueOf(SmsConsts.MESSAGE_TYPE_INBOX) }), any(String.class)))
+                .thenReturn(found);
+        when(resolver.applyBatch(anyString(), any(ArrayList.class))).thenThrow(new OperationApplicationException());
+        when(resolver.insert(Consts.SMS_PROVIDER, notApplied)).thenReturn(Uri.parse("content://sms/8"));
+        task.doInBackground(config);
+
+        verify(resolver, never()).insert(Consts.SMS_PROVIDER, applied);
+        assertThat(task.getSmsIds()).containsOnly("7", "8");
+        assertThat(DataType.SMS.getMaxSyncedDate(context)).isEqualTo(2000);
+    }
+
+    @Test
+    public void shouldSkipMessagesInProviderWithoutQueryPerMessage() throws Exception {
+        mockMessages(smsValues(1000), smsValues(2000));
+
+        MatrixCursor existing = new MatrixCursor(new String[] { SmsConsts.DATE, SmsConsts.TYPE, SmsConsts.ADDRESS });
+        existing.addRow(new Object[] { 1000L, SmsConsts.MESSAGE_TYPE_INBOX, null });
+        when(resolver.query(eq(Consts.SMS_PROVIDER), any(String[].class), any(String.class),
+                any(String[].class), any(String.class))).thenReturn(existing);
+        when(resolver.applyBatch(eq("sms"), any(ArrayList.class))).thenReturn(new ContentProviderResult[] {
+                new ContentProviderResult(Uri.parse("content://sms/2"))
+        });
+        task.doInBackground(config);
+
+        verify(resolver, times(1)).query(any(Uri.class), any(String[].class), any(String.class),
+                any(String[].class), any(String.class));
+        assertThat(captureBatch(1).get(0)).hasSize(1);
+        assertThat(task.getSmsIds()).containsExactly("2");
+    }
 
+    @Test
+    public void shouldFetchMessagesWithOneCommandPerWindow() throws Exception {
+        mockMessages(smsValues(1000), smsValues(2000), smsValues(3000));
+        File[] bodies = new File[0];
+        when(service.getCachedBodies()).thenReturn(bodies);
+
+        task.doInBackground(config);
+
+        verify(folder, times(1)).fetchForRestore(anyListOf(Message.class));
+        verify(service).deleteCachedBodies(bodies);
+        verify(service, never()).clearCache();
+        verify(store, never()).disconnect();
         verify(store).closeFolders();
     }
+
+    private static ContentValues smsValues(long date) {
+        ContentValues values = new ContentValues();
+        values.put(SmsConsts.TYPE, SmsConsts.MESSAGE_TYPE_INBOX);
+        values.put(SmsConsts.DATE, date);
+        return values;
+    }
+
+    private void mockMessages(ContentValues... values) throws Exception {
+        List<ImapStore.ImapMessage> messages = new ArrayList<ImapStore.ImapMessage>();
+        for (ContentValues v : values) {
+            ImapStore.ImapMessage mockMessage = mock(ImapStore.ImapMessage.class);
+            when(mockMessage.getFolder()).thenReturn(folder);
+            when(converter.getDataType(mockMessage)).thenReturn(DataType.SMS);
+            when(converter.messageToContentValues(mockMessage)).thenReturn(v);
+            messages.add(mockMessage);
+        }
+        when(folder.getMessages(anyInt(), anyBoolean(), any(Date.class))).thenReturn(messages);
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<ArrayList<ContentProviderOperation>> captureBatch(int times) throws Exception {
+        ArgumentCaptor<ArrayList> captor = ArgumentCaptor.forClass(ArrayList.class);
+        verify(resolver, times(times)).applyBatch(eq("sms"), captor.capture());
+        List<ArrayList<ContentProviderOperation>> batches = new ArrayList<ArrayList<ContentProviderOperation>>();
+        for (ArrayList batch : captor.getAllValues()) {
+            batches.add((ArrayList<ContentProviderOperation>) batch);
+        }
+        return batches;
+    }
 }
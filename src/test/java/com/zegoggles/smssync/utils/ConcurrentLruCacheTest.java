@@ -0,0 +1,43 @@
+package com.zegoggles.smssync.utils;
+
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class ConcurrentLruCacheTest {
+
+    @Test public void shouldStoreValues() throws Exception {
+        ConcurrentLruCache<String, Long> cache = new ConcurrentLruCache<String, Long>(10);
+        cache.put("foo", 1L);
+        assertThat(cache.get("foo")).isEqualTo(1L);
+        assertThat(cache.get("bar")).isNull();
+    }
+
+    @Test public void shouldEvictLeastRecentlyUsedEntries() throws Exception {
+        ConcurrentLruCache<String, Long> cache = new ConcurrentLruCache<String, Long>(2, 1);
+        cache.put("a", 1L);
+        cache.put("b", 2L);
+        cache.get("a");
+        cache.put("c", 3L);
+
+        assertThat(cache.size()).isEqualTo(2);
+        assertThat(cache.get("a")).isEqualTo(1L);
+        assertThat(cache.get("b")).isNull();
+        assertThat(cache.get("c")).isEqualTo(3L);
+    }
+
+    @Test public void shouldNotGrowBeyondMaxSize() throws Exception {
+        ConcurrentLruCache<Integer, Integer> cache = new ConcurrentLruCache<Integer, Integer>(100);
+        for (int i = 0; i < 1000; i++) {
+            cache.put(i, i);
+        }
+        assertThat(cache.size()).isLessThanOrEqualTo(104);
+    }
+
+    @Test public void shouldClear() throws Exception {
+        ConcurrentLruCache<String, Long> cache = new ConcurrentLruCache<String, Long>(10);
+        cache.put("foo", 1L);
+        cache.clear();
+        assertThat(cache.size()).isEqualTo(0);
+    }
+}